@@ -0,0 +1,44 @@
+package org.jorgeroberto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Utilitários compartilhados pelos benchmarks.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Cria um RoomManager que grava os logs em um diretório temporário.
+     * A política DROP mede apenas o custo de enfileirar o log, sem esperar pelo disco.
+     */
+    static RoomManager newRoomManager(Path logDir) {
+        RoomLogWriter logWriter = new RoomLogWriter(logDir.toFile(), null, RoomLogWriter.DEFAULT_CAPACITY,
+                RoomLogWriter.DEFAULT_BATCH_SIZE, RoomLogWriter.DEFAULT_FLUSH_INTERVAL_MILLIS,
+                RoomLogWriter.BackpressurePolicy.DROP);
+        RoomManager roomManager = new RoomManager(logWriter);
+        // Os benchmarks medem o servidor, não o controle de flood
+        roomManager.setFloodPolicy(FloodControl.Policy.UNLIMITED);
+        return roomManager;
+    }
+
+    static Path tempDir() throws IOException {
+        return Files.createTempDirectory("chat-bench");
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (dir == null || !dir.toFile().exists()) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
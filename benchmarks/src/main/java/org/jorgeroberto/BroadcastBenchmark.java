@@ -0,0 +1,72 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Custo de um broadcast (RoomManager.broadcastChat) em função do tamanho da sala:
+ * registro no histórico, enfileiramento do log e entrega a cada membro.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int roomSize;
+
+    @Param({"32", "512"})
+    public int messageLength;
+
+    private Path logDir;
+    private RoomManager roomManager;
+    private InMemoryConnection sender;
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        logDir = Benchmarks.tempDir();
+        roomManager = Benchmarks.newRoomManager(logDir);
+        sender = new InMemoryConnection("sender");
+        roomManager.addClient(sender, "sender", "#bench");
+        for (int i = 1; i < roomSize; i++) {
+            String name = "user" + i;
+            roomManager.addClient(new InMemoryConnection(name), name, "#bench");
+        }
+        text = "x".repeat(messageLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        roomManager.shutdown();
+        Benchmarks.delete(logDir);
+    }
+
+    @Benchmark
+    public void broadcastChat() {
+        roomManager.broadcastChat("#bench", "sender", text, sender);
+    }
+
+    @Benchmark
+    public void broadcastNotice() {
+        roomManager.broadcast("#bench", "SERVER: aviso para a sala");
+    }
+}
@@ -0,0 +1,94 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Entradas e saídas concorrentes de uma sala (/join e /leave) disputando com broadcasts
+ * para a mesma sala, medindo o custo das atualizações do RoomRegistry sobre os leitores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChurnBenchmark {
+
+    @State(Scope.Group)
+    public static class Shared {
+        @Param({"100", "1000"})
+        public int roomSize;
+
+        Path logDir;
+        RoomManager roomManager;
+        InMemoryConnection sender;
+        final AtomicInteger ids = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            logDir = Benchmarks.tempDir();
+            roomManager = Benchmarks.newRoomManager(logDir);
+            sender = new InMemoryConnection("sender");
+            roomManager.addClient(sender, "sender", "#bench");
+            for (int i = 1; i < roomSize; i++) {
+                String name = "member" + i;
+                roomManager.addClient(new InMemoryConnection(name), name, "#bench");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            roomManager.shutdown();
+            Benchmarks.delete(logDir);
+        }
+    }
+
+    /**
+     * Cliente próprio de cada thread que entra e sai da sala.
+     */
+    @State(Scope.Thread)
+    public static class Joiner {
+        InMemoryConnection connection;
+        String name;
+
+        @Setup(Level.Trial)
+        public void setUp(Shared shared) {
+            name = "joiner" + shared.ids.incrementAndGet();
+            connection = new InMemoryConnection(name);
+            shared.roomManager.addClient(connection, name, "lobby");
+        }
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public void joinLeave(Shared shared, Joiner joiner) {
+        shared.roomManager.joinRoom(joiner.connection, joiner.name, "lobby", "#bench", cursor -> { });
+        shared.roomManager.leaveRoom(joiner.connection, joiner.name, "#bench", "lobby", () -> { });
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public void broadcast(Shared shared) {
+        shared.roomManager.broadcastChat("#bench", "sender", "mensagem durante a rotatividade", shared.sender);
+    }
+}
@@ -0,0 +1,64 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Interpretação e despacho dos comandos de texto (ChatSession.handleCommand, que
+ * substituiu ClientHandler.handleCommand) e da linha completa recebida do cliente.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandBenchmark {
+
+    @Param({"/join #bench", "/private bob oi, tudo bem?", "/leave", "/desconhecido argumento"})
+    public String command;
+
+    private Path logDir;
+    private RoomManager roomManager;
+    private ChatSession session;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        logDir = Benchmarks.tempDir();
+        roomManager = Benchmarks.newRoomManager(logDir);
+        roomManager.addClient(new InMemoryConnection("bob"), "bob", "lobby");
+        session = new ChatSession(new InMemoryConnection("alice"), roomManager);
+        session.handleLine("NICK alice");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        roomManager.shutdown();
+        Benchmarks.delete(logDir);
+    }
+
+    @Benchmark
+    public void handleCommand() {
+        session.handleCommand(command);
+    }
+
+    @Benchmark
+    public void handleLine() {
+        session.handleLine(command);
+    }
+}
@@ -0,0 +1,54 @@
+package org.jorgeroberto;
+
+/**
+ * Conexão em memória usada nos benchmarks no lugar de um socket.
+ * Codifica cada frame recebido como o escritor real faria (a codificação é
+ * compartilhada entre os destinatários) e apenas contabiliza os bytes.
+ */
+final class InMemoryConnection implements ChatConnection {
+
+    private final String userName;
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+    private long frames;
+    private long bytes;
+
+    InMemoryConnection(String userName) {
+        this.userName = userName;
+    }
+
+    @Override
+    public void send(MessageFrame frame) {
+        for (MessageFrame part : frame.parts()) {
+            bytes += part.textBytes().length;
+        }
+        frames++;
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+
+    @Override
+    public void close() {
+        outboundQueue.close();
+    }
+
+    @Override
+    public void abort() {
+        outboundQueue.abort();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    long frames() {
+        return frames;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,331 @@
+package org.jorgeroberto;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Gerador de carga sem interface: abre milhares de usuários simulados contra um ChatServer
+ * local, cada um em threads virtuais, e executa o mesmo roteiro de um ChatClient
+ * (NICK, /join, mensagens na sala e /private) em taxas configuráveis.
+ *
+ * Cada mensagem leva o System.nanoTime() do envio; como remetentes e destinatários
+ * estão no mesmo processo, quem recebe calcula a latência de ponta a ponta, reportada
+ * em percentis (HdrHistogram), junto com a vazão e o teto de conexões alcançado.
+ *
+ * Uso: LoadGenerator [--host=127.0.0.1] [--port=9000] [--users=1000] [--rooms=10]
+ *      [--distribution=uniform|zipf] [--rate=1.0] [--private-ratio=0.1] [--message-size=64]
+ *      [--ramp=500] [--warmup=5] [--duration=30]
+ */
+public class LoadGenerator {
+
+    // Marcador das mensagens geradas: "LG <nanoTime> <usuário> <enchimento>"
+    private static final String MARKER = "LG ";
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final String host;
+    private final int port;
+    private final int users;
+    private final int rooms;
+    private final boolean zipf;
+    private final double rate;
+    private final double privateRatio;
+    private final String padding;
+    private final int rampPerSecond;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+
+    private final Recorder latencies = new Recorder(MAX_LATENCY_NANOS, 3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger maxConnected = new AtomicInteger();
+    private final AtomicInteger failedConnections = new AtomicInteger();
+    private final List<Socket> sockets = new ArrayList<>();
+    private final ReentrantLock socketsLock = new ReentrantLock();
+    private volatile String firstFailure;
+    private volatile boolean running = true;
+
+    LoadGenerator(String[] args) {
+        String host = "127.0.0.1";
+        int port = 9000;
+        int users = 1000;
+        int rooms = 10;
+        boolean zipf = false;
+        double rate = 1.0;
+        double privateRatio = 0.1;
+        int messageSize = 64;
+        int ramp = 500;
+        int warmup = 5;
+        int duration = 30;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--host=")) {
+                host = value;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(value);
+            } else if (arg.startsWith("--rooms=")) {
+                rooms = Integer.parseInt(value);
+            } else if (arg.startsWith("--distribution=")) {
+                zipf = value.equalsIgnoreCase("zipf");
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(value);
+            } else if (arg.startsWith("--private-ratio=")) {
+                privateRatio = Double.parseDouble(value);
+            } else if (arg.startsWith("--message-size=")) {
+                messageSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--ramp=")) {
+                ramp = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(value);
+            } else {
+                System.out.println("Argumento inválido ignorado: " + arg);
+            }
+        }
+        this.host = host;
+        this.port = port;
+        this.users = users;
+        this.rooms = Math.max(1, rooms);
+        this.zipf = zipf;
+        this.rate = rate;
+        this.privateRatio = privateRatio;
+        this.padding = "x".repeat(Math.max(0, messageSize));
+        this.rampPerSecond = Math.max(1, ramp);
+        this.warmupSeconds = warmup;
+        this.durationSeconds = duration;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator(args).run();
+    }
+
+    void run() throws InterruptedException {
+        System.out.printf("CARGA: %d usuários em %d salas (%s), %.2f msg/s por usuário, %.0f%% privadas, contra %s:%d%n",
+                users, rooms, zipf ? "zipf" : "uniforme", rate, privateRatio * 100, host, port);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            long rampStart = System.nanoTime();
+            for (int i = 0; i < users && running; i++) {
+                int id = i;
+                executor.execute(() -> simulate(id));
+                // Abre as conexões no ritmo configurado
+                long due = rampStart + TimeUnit.SECONDS.toNanos(i + 1) / rampPerSecond;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            System.out.printf("CARGA: abertura concluída em %.1fs: %d conectados, %d falhas%n",
+                    (System.nanoTime() - rampStart) / 1e9, connected.get(), failedConnections.get());
+
+            TimeUnit.SECONDS.sleep(warmupSeconds);
+            measure();
+            running = false;
+            closeAll();
+        }
+    }
+
+    /**
+     * Janela de medição: reporta a cada segundo e imprime o resumo ao final.
+     */
+    private void measure() throws InterruptedException {
+        latencies.reset();
+        sent.reset();
+        received.reset();
+        Histogram total = new Histogram(MAX_LATENCY_NANOS, 3);
+        Histogram interval = null;
+        long start = System.nanoTime();
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int second = 1; second <= durationSeconds; second++) {
+            TimeUnit.NANOSECONDS.sleep(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            interval = latencies.getIntervalHistogram(interval);
+            total.add(interval);
+            long nowSent = sent.sum();
+            long nowReceived = received.sum();
+            System.out.printf("[%3ds] conectados=%d enviadas/s=%d entregues/s=%d p50=%.2fms p99=%.2fms%n",
+                    second, connected.get(), nowSent - lastSent, nowReceived - lastReceived,
+                    millis(interval.getValueAtPercentile(50)), millis(interval.getValueAtPercentile(99)));
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("--------------------------------------------------------------------");
+        System.out.printf("Vazão: %.0f msg/s enviadas, %.0f msg/s entregues (%d erros de envio)%n",
+                sent.sum() / elapsed, received.sum() / elapsed, sendErrors.sum());
+        System.out.printf("Latência (ms): p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f (%d amostras)%n",
+                millis(total.getValueAtPercentile(50)), millis(total.getValueAtPercentile(90)),
+                millis(total.getValueAtPercentile(99)), millis(total.getValueAtPercentile(99.9)),
+                millis(total.getMaxValue()), total.getTotalCount());
+        System.out.printf("Conexões: máximo de %d simultâneas, %d falhas%s%n", maxConnected.get(),
+                failedConnections.get(), firstFailure != null ? " (primeira: " + firstFailure + ")" : "");
+        System.out.println("--------------------------------------------------------------------");
+    }
+
+    /**
+     * Roteiro de um usuário: conecta, identifica-se, entra em uma sala e passa a enviar
+     * mensagens enquanto uma segunda thread virtual lê as entregas.
+     */
+    private void simulate(int id) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), 10_000);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            int failures = failedConnections.incrementAndGet();
+            if (failures == 1) {
+                firstFailure = "usuário " + id + " com " + connected.get() + " conectados: " + e.getMessage();
+            }
+            closeQuietly(socket);
+            return;
+        }
+        maxConnected.accumulateAndGet(connected.incrementAndGet(), Math::max);
+        socketsLock.lock();
+        try {
+            sockets.add(socket);
+        } finally {
+            socketsLock.unlock();
+        }
+
+        // O leitor também escreve (respostas ao PING do servidor)
+        ReentrantLock writeLock = new ReentrantLock();
+        Thread.ofVirtual().start(() -> read(socket, writeLock));
+        try {
+            OutputStream out = socket.getOutputStream();
+            String name = "lg" + id;
+            write(out, writeLock, "NICK " + name + "\n/join #sala" + chooseRoom() + "\n");
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long intervalNanos = rate > 0 ? (long) (1e9 / rate) : Long.MAX_VALUE;
+            // Início aleatório para espalhar os envios dos usuários
+            long next = System.nanoTime() + (long) (random.nextDouble() * Math.min(intervalNanos, TimeUnit.SECONDS.toNanos(1)));
+            while (running && rate > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                next += intervalNanos;
+                String body = MARKER + System.nanoTime() + " " + name + " " + padding;
+                if (users > 1 && random.nextDouble() < privateRatio) {
+                    int target = random.nextInt(users - 1);
+                    write(out, writeLock, "/private lg" + (target >= id ? target + 1 : target) + " " + body + "\n");
+                } else {
+                    write(out, writeLock, body + "\n");
+                }
+                sent.increment();
+            }
+        } catch (IOException e) {
+            if (running) {
+                sendErrors.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connected.decrementAndGet();
+            closeQuietly(socket);
+        }
+    }
+
+    private void read(Socket socket, ReentrantLock writeLock) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals(Heartbeat.PING_LINE)) {
+                    write(out, writeLock, Heartbeat.PONG_LINE + "\n");
+                    continue;
+                }
+                int marker = line.indexOf(MARKER);
+                // A confirmação "(PRIVADO para ...)" volta ao próprio remetente e não é uma entrega
+                if (marker < 0 || line.startsWith("(PRIVADO para")) {
+                    continue;
+                }
+                int end = line.indexOf(' ', marker + MARKER.length());
+                long sentAt = Long.parseLong(line.substring(marker + MARKER.length(), end));
+                latencies.recordValue(Math.min(System.nanoTime() - sentAt, MAX_LATENCY_NANOS));
+                received.increment();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Conexão encerrada
+        }
+    }
+
+    /**
+     * Sala do usuário: distribuição uniforme ou Zipf (poucas salas concentram a maioria).
+     */
+    private int chooseRoom() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (!zipf) {
+            return random.nextInt(rooms);
+        }
+        double norm = 0;
+        for (int k = 1; k <= rooms; k++) {
+            norm += 1.0 / k;
+        }
+        double target = random.nextDouble() * norm;
+        double sum = 0;
+        for (int k = 1; k <= rooms; k++) {
+            sum += 1.0 / k;
+            if (sum >= target) {
+                return k - 1;
+            }
+        }
+        return rooms - 1;
+    }
+
+    private static void write(OutputStream out, ReentrantLock writeLock, String text) throws IOException {
+        writeLock.lock();
+        try {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void closeAll() {
+        socketsLock.lock();
+        try {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            sockets.clear();
+        } finally {
+            socketsLock.unlock();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignorado no encerramento
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,86 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Vazão do log de mensagens. RoomManager.logMessage apenas delega ao RoomLogWriter,
+ * então o enfileiramento é medido diretamente nele (com a política BLOCK o resultado
+ * é limitado pela thread de gravação), assim como a gravação no MessageStore.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class WriterState {
+        @Param({"BLOCK", "DROP"})
+        public RoomLogWriter.BackpressurePolicy policy;
+
+        Path logDir;
+        RoomLogWriter logWriter;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            logDir = Benchmarks.tempDir();
+            logWriter = new RoomLogWriter(logDir.toFile(), null, RoomLogWriter.DEFAULT_CAPACITY,
+                    RoomLogWriter.DEFAULT_BATCH_SIZE, RoomLogWriter.DEFAULT_FLUSH_INTERVAL_MILLIS, policy);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            logWriter.close();
+            Benchmarks.delete(logDir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class StoreState {
+        Path logDir;
+        MessageStore store;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            logDir = Benchmarks.tempDir();
+            store = new MessageStore(logDir.toFile());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            store.close();
+            Benchmarks.delete(logDir);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logWriterAppend(WriterState state) {
+        state.logWriter.append("#bench", "alice", "mensagem de tamanho típico em uma sala de chat");
+    }
+
+    @Benchmark
+    public long storeAppend(StoreState state) throws IOException {
+        // Chamado por uma única thread, como a thread do RoomLogWriter
+        return state.store.appendRoom("#bench", System.currentTimeMillis(), "alice",
+                "mensagem de tamanho típico em uma sala de chat");
+    }
+}
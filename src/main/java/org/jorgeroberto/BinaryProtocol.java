@@ -0,0 +1,278 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Definições e utilitários do protocolo binário do chat.
+ * <p>
+ * A negociação acontece no início da conexão: o cliente envia a linha {@value #HELLO}
+ * antes do NICK e o servidor responde {@value #HELLO_ACK}; a partir daí os dois lados
+ * trocam frames binários. Clientes que não enviam a linha continuam no protocolo de texto.
+ * Com {@value #HELLO_COMPRESSED}, o cliente pede também a compressão de frames grandes;
+ * se o servidor não a aceitar, responde apenas {@value #HELLO_ACK}.
+ * <p>
+ * Formato de cada frame: [opcode: 1 byte][tamanho do payload: varint][payload].
+ * Strings são codificadas como [tamanho: varint][bytes UTF-8]; o texto final de uma
+ * mensagem ocupa o restante do payload e pode conter quebras de linha.
+ * Salas e usuários são referenciados como [identificador: varint], ou [0][nome: string]. Os
+ * identificadores valem apenas para a conexão e apenas do servidor para o cliente: o servidor
+ * envia DEFINE_ROOM/DEFINE_USER na primeira referência e depois usa apenas o identificador,
+ * que pode ser redefinido para outro nome mais tarde. Como o cliente não sabe quando isso
+ * acontece, as referências que ele envia sempre trazem o nome. Dentro de um frame COMPRESSED,
+ * compartilhado por vários destinatários, as referências também trazem o nome.
+ */
+public final class BinaryProtocol {
+
+    public static final String HELLO = "PROTO BIN/1";
+    public static final String HELLO_ACK = "PROTO OK BIN/1";
+    // Pedido e confirmação do protocolo binário com compressão (ver FrameCompression)
+    public static final String HELLO_COMPRESSED = HELLO + " " + FrameCompression.NAME;
+    public static final String HELLO_ACK_COMPRESSED = HELLO_ACK + " " + FrameCompression.NAME;
+
+    // Tamanho máximo do payload de um frame
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+
+    // Cliente -> Servidor
+    public static final int NICK = 0x01;
+    public static final int CHAT = 0x02;
+    public static final int JOIN = 0x03;
+    public static final int LEAVE = 0x04;
+    public static final int PRIVATE = 0x05;
+    public static final int EXIT = 0x06;
+    public static final int COMMAND = 0x07;
+
+    // Nos dois sentidos: quem recebe PING responde PONG
+    public static final int PING = 0x20;
+    public static final int PONG = 0x21;
+
+    // Servidor -> Cliente
+    public static final int NOTICE = 0x40;
+    public static final int ROOM_MESSAGE = 0x41;
+    public static final int PRIVATE_FROM = 0x42;
+    public static final int PRIVATE_TO = 0x43;
+    public static final int DEFINE_ROOM = 0x44;
+    public static final int DEFINE_USER = 0x45;
+    // Um ou mais frames comprimidos (ver FrameCompression)
+    public static final int COMPRESSED = 0x46;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Identificadores de salas ou de usuários apresentados a uma única conexão, limitados a
+     * uma capacidade fixa: com a tabela cheia, o nome usado há mais tempo cede seu identificador
+     * ao novo, que precisa então ser redefinido para o cliente. Usado apenas pelo escritor da
+     * conexão, sem sincronização: a leitura não resolve identificadores (ver {@link #readReference}).
+     */
+    static final class ConnectionSymbols {
+        private final int capacity;
+        // Em ordem de uso, do menos para o mais recente
+        private final LinkedHashMap<String, Integer> ids = new LinkedHashMap<>(16, 0.75f, true);
+
+        ConnectionSymbols(int capacity) {
+            this.capacity = Math.max(1, capacity);
+        }
+
+        /**
+         * Identificador do nome, se já definido para o cliente.
+         * @return O identificador, ou 0 se o nome precisa ser definido com {@link #assign(String)}.
+         */
+        int find(String name) {
+            Integer id = ids.get(name);
+            return id != null ? id : 0;
+        }
+
+        /**
+         * Atribui um identificador ao nome, reaproveitando o do nome menos usado se a tabela estiver cheia.
+         */
+        int assign(String name) {
+            int id;
+            if (ids.size() < capacity) {
+                id = ids.size() + 1;
+            } else {
+                Iterator<Map.Entry<String, Integer>> eldest = ids.entrySet().iterator();
+                id = eldest.next().getValue();
+                eldest.remove();
+            }
+            ids.put(name, id);
+            return id;
+        }
+
+        int size() {
+            return ids.size();
+        }
+    }
+
+    /**
+     * Monta o payload de um frame e o serializa com o cabeçalho.
+     */
+    public static final class FrameBuilder {
+        private final int opcode;
+        private byte[] payload = new byte[32];
+        private int length;
+
+        public FrameBuilder(int opcode) {
+            this.opcode = opcode;
+        }
+
+        public FrameBuilder varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+            return this;
+        }
+
+        public FrameBuilder string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            return bytes(bytes);
+        }
+
+        public FrameBuilder text(String value) {
+            return bytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private FrameBuilder bytes(byte[] bytes) {
+            return bytes(bytes, 0, bytes.length);
+        }
+
+        FrameBuilder bytes(byte[] bytes, int offset, int count) {
+            ensure(count);
+            System.arraycopy(bytes, offset, payload, length, count);
+            length += count;
+            return this;
+        }
+
+        private void put(byte b) {
+            ensure(1);
+            payload[length++] = b;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > payload.length) {
+                payload = Arrays.copyOf(payload, Math.max(payload.length * 2, length + extra));
+            }
+        }
+
+        /**
+         * Serializa o frame completo: opcode, tamanho e payload.
+         */
+        public byte[] build() {
+            byte[] frame = new byte[1 + varintSize(length) + length];
+            frame[0] = (byte) opcode;
+            int pos = writeVarint(frame, 1, length);
+            System.arraycopy(payload, 0, frame, pos, length);
+            return frame;
+        }
+    }
+
+    /**
+     * Escreve um varint no array, a partir de pos.
+     * @return A posição seguinte ao varint.
+     */
+    static int writeVarint(byte[] target, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Lê um varint do buffer.
+     */
+    public static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Frame binário truncado");
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint inválido");
+    }
+
+    /**
+     * Lê uma string prefixada pelo tamanho.
+     */
+    public static String readString(ByteBuffer buffer) throws IOException {
+        int length = readVarint(buffer);
+        if (length > buffer.remaining()) {
+            throw new IOException("Frame binário truncado");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Lê o restante do payload como texto.
+     */
+    public static String readText(ByteBuffer buffer) {
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+        buffer.position(buffer.limit());
+        return value;
+    }
+
+    /**
+     * Lê uma referência a sala ou usuário enviada pelo cliente, que deve ser 0 seguido do nome.
+     * Um identificador não é aceito: o escritor pode tê-lo redefinido para outro nome depois que
+     * o cliente o leu, e a mensagem iria para a sala ou o usuário errado.
+     * @return O nome referenciado, ou null se o cliente enviou um identificador.
+     */
+    static String readReference(ByteBuffer buffer) throws IOException {
+        int id = readVarint(buffer);
+        if (id == 0) {
+            return readString(buffer);
+        }
+        return null;
+    }
+
+    /**
+     * Cabeçalho de um frame cujo payload é formado pelas referências informadas seguidas de
+     * textLength bytes de texto, que o chamador envia em seguida, sem cópia.
+     */
+    static byte[] header(int opcode, int textLength, int... ids) {
+        int idBytes = 0;
+        for (int id : ids) {
+            idBytes += varintSize(id);
+        }
+        int payload = idBytes + textLength;
+        byte[] header = new byte[1 + varintSize(payload) + idBytes];
+        header[0] = (byte) opcode;
+        int pos = writeVarint(header, 1, payload);
+        for (int id : ids) {
+            pos = writeVarint(header, pos, id);
+        }
+        return header;
+    }
+
+    /**
+     * Frame DEFINE_ROOM/DEFINE_USER que apresenta um identificador ao cliente.
+     */
+    static byte[] define(int opcode, int id, String name) {
+        return new FrameBuilder(opcode).varint(id).string(name).build();
+    }
+}
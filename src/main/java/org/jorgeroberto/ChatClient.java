@@ -1,90 +1,422 @@
 package org.jorgeroberto;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Classe principal do Cliente de Chat.
- * Responsável por configurar a conexão, solicitar dados do servidor (IP e porta)
- * e gerenciar a interface de entrada/saída do usuário (console).
+ * Responsável por configurar a conexão e gerenciar a interface de entrada/saída do usuário (console).
+ * O servidor é definido com --host=IP (padrão 127.0.0.1) e --port=N (padrão 9000), ou pelas
+ * variáveis CHAT_HOST e CHAT_PORT (ver ChatConfig).
+ * Com o argumento --binary, negocia o protocolo binário e, se o servidor não
+ * o suportar, continua no protocolo de texto. Com --compress, pede também a compressão
+ * dos frames grandes (ver FrameCompression).
+ * Responde sozinho ao heartbeat (PING) do servidor e, se o servidor avisar que está
+ * reiniciando, se reconecta sozinho.
  */
 public class ChatClient {
 
+    // Tempo máximo de espera pela resposta da negociação do protocolo binário
+    private static final long NEGOTIATION_TIMEOUT_SECONDS = 3;
+    // Espera aleatória antes de reconectar, para os clientes não voltarem todos no mesmo instante
+    private static final long RECONNECT_JITTER_MILLIS = 2000;
+    private static final int RECONNECT_ATTEMPTS = 10;
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 9000;
+
+    private static String serverIP;
+    private static int serverPort;
+    private static boolean requestBinary;
+    private static boolean requestCompression;
+    private static volatile Connection connection;
+    // Último NICK enviado, reenviado ao reconectar
+    private static volatile String nickname;
+
     public static void main(String[] args) {
+        // Configuração Inicial: IP e Porta do servidor
+        ChatConfig config = ChatConfig.load(args);
+        serverIP = config.getString("host", DEFAULT_HOST);
+        serverPort = config.getInt("port", DEFAULT_PORT);
+        requestCompression = config.getBoolean("compress", false);
+        requestBinary = requestCompression || config.getBoolean("binary", false);
         Scanner scanner = new Scanner(System.in);
 
-        // Configuração Inicial: Solicitar IP e Porta
-        System.out.print("Digite o Endereço IP do Servidor: ");
-        String serverIP = scanner.nextLine();
-
-        System.out.print("Digite a Porta do Servidor: ");
-        int serverPort;
         try {
-            serverPort = Integer.parseInt(scanner.nextLine());
-        } catch (NumberFormatException e) {
-            System.err.println("Porta inválida. Usando padrão 9090.");
-            serverPort = 9090;
-        }
-
-        try (
-                // Conexão TCP
-                Socket socket = new Socket(serverIP, serverPort);
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)
-        ) {
+            connection = connect();
             System.out.println("✅ Conectado ao Servidor.");
 
-            // Thread para escutar mensagens do servidor
-            new Thread(new ServerListener(reader)).start();
-
             // Loop principal para ler entrada do usuário e enviar ao servidor
             while (scanner.hasNextLine()) {
                 String message = scanner.nextLine();
+                Connection current = connection;
 
                 // Encerramento
                 if (message.equalsIgnoreCase("/exit") || message.equalsIgnoreCase("/quit")) {
-                    writer.println("/exit");
+                    current.exit();
                     break;
                 }
+                if (message.toUpperCase().startsWith("NICK ")) {
+                    nickname = message.substring(5).trim();
+                }
                 // Envia a mensagem/comando
-                writer.println(message);
+                try {
+                    current.send(message);
+                } catch (IOException e) {
+                    if (!current.listener.isRestarting()) {
+                        throw e;
+                    }
+                    System.out.println("Mensagem não enviada: o servidor está reiniciando.");
+                }
             }
 
         } catch (IOException e) {
             System.err.println("Erro de conexão com o Servidor: " + e.getMessage());
         } finally {
             scanner.close();
+            Connection current = connection;
+            if (current != null) {
+                current.close();
+            }
             System.out.println("Desconectado.");
         }
     }
 
+    /**
+     * Abre a conexão com o servidor e, se pedido, negocia o protocolo binário.
+     */
+    private static Connection connect() throws IOException {
+        Socket socket = new Socket(serverIP, serverPort);
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            // Thread para escutar mensagens do servidor
+            ServerListener listener = new ServerListener(in, out);
+            new Thread(listener).start();
+
+            boolean binary = false;
+            if (requestBinary) {
+                String hello = requestCompression ? BinaryProtocol.HELLO_COMPRESSED : BinaryProtocol.HELLO;
+                out.write((hello + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                binary = listener.awaitNegotiation();
+                if (!binary) {
+                    System.out.println("Servidor sem suporte ao protocolo binário; usando texto.");
+                } else {
+                    System.out.println(listener.isCompressed() ? "Protocolo binário negociado, com compressão." : "Protocolo binário negociado.");
+                }
+            }
+            return new Connection(socket, out, listener, binary);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reconecta após o reinício do servidor e se identifica de novo com o mesmo nome;
+     * o servidor devolve o usuário à sala em que ele estava. Executado pela thread do listener.
+     */
+    private static void reconnect() {
+        System.out.println("\nServidor reiniciando. Reconectando...");
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(RECONNECT_JITTER_MILLIS) + (attempt - 1) * 1000L);
+                Connection current = connect();
+                connection = current;
+                String name = nickname;
+                if (name != null) {
+                    current.send("NICK " + name);
+                }
+                System.out.println("✅ Reconectado ao Servidor.");
+                return;
+            } catch (IOException e) {
+                // Servidor novo ainda não está aceitando: tenta de novo
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.out.println("Não foi possível reconectar ao Servidor.");
+    }
+
+    /**
+     * Escreve no socket; o console e as respostas de heartbeat compartilham a mesma saída.
+     */
+    private static void write(OutputStream out, byte[] bytes) throws IOException {
+        synchronized (out) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    /**
+     * Conexão atual com o servidor. Trocada por uma nova ao reconectar.
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final ServerListener listener;
+        private final boolean binary;
+
+        Connection(Socket socket, OutputStream out, ServerListener listener, boolean binary) {
+            this.socket = socket;
+            this.out = out;
+            this.listener = listener;
+            this.binary = binary;
+        }
+
+        void send(String message) throws IOException {
+            write(out, binary ? listener.encode(message) : (message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void exit() throws IOException {
+            write(out, binary ? new BinaryProtocol.FrameBuilder(BinaryProtocol.EXIT).build() : "/exit\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Já fechado
+            }
+        }
+    }
+
     /**
      * Classe interna que implementa Runnable para escutar mensagens do servidor
-     * em uma Thread separada.
+     * em uma Thread separada. Lê linhas de texto até a confirmação da negociação
+     * e, a partir dela, frames binários.
      */
     private static class ServerListener implements Runnable {
-        private final BufferedReader reader;
+        private final InputStream in;
+        private final OutputStream out;
+        private final CompletableFuture<Boolean> negotiated = new CompletableFuture<>();
+        // Identificadores de salas e usuários definidos pelo servidor para esta conexão
+        private final Map<Integer, String> rooms = new ConcurrentHashMap<>();
+        private final Map<Integer, String> users = new ConcurrentHashMap<>();
+        private volatile boolean restarting;
+        private volatile boolean compressed;
 
-        public ServerListener(BufferedReader reader) {
-            this.reader = reader;
+        public ServerListener(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
         }
 
         @Override
         public void run() {
-            String line;
             try {
                 // Fica em loop esperando por mensagens do servidor
-                while ((line = reader.readLine()) != null) {
-                    System.out.println("\n" + line);
+                String line;
+                while ((line = readLine()) != null) {
+                    if (line.equals(BinaryProtocol.HELLO_ACK) || line.equals(BinaryProtocol.HELLO_ACK_COMPRESSED)) {
+                        compressed = line.equals(BinaryProtocol.HELLO_ACK_COMPRESSED);
+                        negotiated.complete(true);
+                        readFrames();
+                        break;
+                    }
+                    // Heartbeat do servidor: responde sem exibir
+                    if (line.equals(Heartbeat.PING_LINE)) {
+                        write(out, (Heartbeat.PONG_LINE + "\n").getBytes(StandardCharsets.UTF_8));
+                        continue;
+                    }
+                    if (!negotiated.isDone() && line.startsWith("SERVER: Comando de identificação inválido")) {
+                        // Servidor antigo tratou a negociação como um NICK inválido
+                        negotiated.complete(false);
+                    }
+                    print(line);
                 }
             } catch (IOException e) {
                 // Conexão encerrada pelo servidor
-                System.out.println("Servidor encerrou a conexão ou houve um erro.");
+                if (!restarting) {
+                    System.out.println("Servidor encerrou a conexão ou houve um erro.");
+                }
+            } finally {
+                negotiated.complete(false);
+            }
+            if (restarting) {
+                reconnect();
+            }
+        }
+
+        /**
+         * Indica se o servidor aceitou a compressão de frames.
+         */
+        boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * Indica se o servidor avisou que está reiniciando.
+         */
+        boolean isRestarting() {
+            return restarting;
+        }
+
+        private void print(String text) {
+            if (text.equals(ServerLifecycle.RESTART_NOTICE)) {
+                restarting = true;
+            }
+            System.out.println("\n" + text);
+        }
+
+        /**
+         * Aguarda a resposta do servidor à negociação do protocolo binário.
+         * @return true se o servidor confirmou o protocolo binário.
+         */
+        boolean awaitNegotiation() {
+            try {
+                return negotiated.get(NEGOTIATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException | TimeoutException e) {
+                return false;
+            }
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
+            }
+            String value = line.toString(StandardCharsets.UTF_8);
+            return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+        }
+
+        private void readFrames() throws IOException {
+            int opcode;
+            while ((opcode = in.read()) != -1) {
+                int length = readVarint();
+                byte[] payload = in.readNBytes(length);
+                if (payload.length < length) {
+                    throw new EOFException();
+                }
+                handleFrame(opcode, ByteBuffer.wrap(payload));
+            }
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint inválido");
+        }
+
+        private void handleFrame(int opcode, ByteBuffer payload) throws IOException {
+            switch (opcode) {
+                case BinaryProtocol.DEFINE_ROOM:
+                    rooms.put(BinaryProtocol.readVarint(payload), BinaryProtocol.readString(payload));
+                    break;
+                case BinaryProtocol.DEFINE_USER:
+                    users.put(BinaryProtocol.readVarint(payload), BinaryProtocol.readString(payload));
+                    break;
+                case BinaryProtocol.ROOM_MESSAGE:
+                    String room = reference(payload, rooms);
+                    String sender = reference(payload, users);
+                    System.out.println("\n[" + sender + " em " + room + "]: " + BinaryProtocol.readText(payload));
+                    break;
+                case BinaryProtocol.PRIVATE_FROM:
+                    String from = reference(payload, users);
+                    System.out.println("\n(PRIVADO de " + from + "): " + BinaryProtocol.readText(payload));
+                    break;
+                case BinaryProtocol.PRIVATE_TO:
+                    String to = reference(payload, users);
+                    System.out.println("\n(PRIVADO para " + to + "): " + BinaryProtocol.readText(payload));
+                    break;
+                case BinaryProtocol.NOTICE:
+                    print(BinaryProtocol.readText(payload));
+                    break;
+                case BinaryProtocol.PING:
+                    write(out, new BinaryProtocol.FrameBuilder(BinaryProtocol.PONG).build());
+                    break;
+                case BinaryProtocol.COMPRESSED:
+                    // Um ou mais frames comuns, em sequência
+                    ByteBuffer frames = FrameCompression.decompress(payload);
+                    while (frames.hasRemaining()) {
+                        int innerOpcode = frames.get() & 0xFF;
+                        int length = BinaryProtocol.readVarint(frames);
+                        if (length > frames.remaining()) {
+                            throw new IOException("Frame comprimido truncado");
+                        }
+                        handleFrame(innerOpcode, frames.slice(frames.position(), length));
+                        frames.position(frames.position() + length);
+                    }
+                    break;
+                default:
+                    // Opcodes desconhecidos são ignorados para manter compatibilidade
+                    break;
+            }
+        }
+
+        /**
+         * Lê uma referência a sala ou usuário: um identificador definido pelo servidor, ou 0 seguido do nome.
+         */
+        private static String reference(ByteBuffer payload, Map<Integer, String> names) throws IOException {
+            int id = BinaryProtocol.readVarint(payload);
+            return id == 0 ? BinaryProtocol.readString(payload) : names.get(id);
+        }
+
+        /**
+         * Converte uma linha digitada pelo usuário no frame binário correspondente.
+         * Salas e usuários vão sempre pelo nome: o servidor pode redefinir um identificador
+         * a qualquer momento, e uma referência em trânsito chegaria com outro significado.
+         */
+        byte[] encode(String input) {
+            String line = input.trim();
+            if (line.toUpperCase().startsWith("NICK ")) {
+                return new BinaryProtocol.FrameBuilder(BinaryProtocol.NICK).text(line.substring(5).trim()).build();
+            }
+            if (!line.startsWith("/")) {
+                return new BinaryProtocol.FrameBuilder(BinaryProtocol.CHAT).text(line).build();
+            }
+            String[] parts = line.split(" ", 3);
+            switch (parts[0].toLowerCase()) {
+                case "/join":
+                    if (parts.length == 2) {
+                        return new BinaryProtocol.FrameBuilder(BinaryProtocol.JOIN).varint(0).string(parts[1]).build();
+                    }
+                    break;
+                case "/leave":
+                    return new BinaryProtocol.FrameBuilder(BinaryProtocol.LEAVE).build();
+                case "/private":
+                    if (parts.length == 3) {
+                        return new BinaryProtocol.FrameBuilder(BinaryProtocol.PRIVATE)
+                                .varint(0).string(parts[1]).text(parts[2]).build();
+                    }
+                    break;
+                default:
+                    break;
             }
+            // Demais comandos (e sintaxes inválidas) são validados pelo servidor
+            return new BinaryProtocol.FrameBuilder(BinaryProtocol.COMMAND).text(line).build();
         }
     }
 }
@@ -0,0 +1,172 @@
+package org.jorgeroberto;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Configuração do servidor e do cliente, sem perguntas no console.
+ * Cada opção tem uma chave, como "port" ou "queue-capacity", que pode vir de três fontes,
+ * nesta ordem de prioridade:
+ * argumento de linha de comando (--port=9000), variável de ambiente (CHAT_PORT=9000)
+ * e arquivo de propriedades (port=9000), indicado com --config=arquivo ou CHAT_CONFIG.
+ * Valores inválidos são avisados e substituídos pelo padrão.
+ */
+public final class ChatConfig {
+
+    private static final String ENV_PREFIX = "CHAT_";
+    private static final String CONFIG_KEY = "config";
+
+    private final Map<String, String> values;
+
+    private ChatConfig(Map<String, String> values) {
+        this.values = values;
+    }
+
+    /**
+     * Lê a configuração do processo atual.
+     * @param args Os argumentos de linha de comando.
+     */
+    public static ChatConfig load(String[] args) {
+        return load(args, System.getenv());
+    }
+
+    /**
+     * Lê a configuração a partir das fontes informadas.
+     * @param args Os argumentos de linha de comando (--chave=valor; --chave sozinho vale "true").
+     * @param env As variáveis de ambiente.
+     */
+    public static ChatConfig load(String[] args, Map<String, String> env) {
+        Map<String, String> flags = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                System.out.println("Argumento inválido ignorado: " + arg);
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                flags.put(arg.substring(2), "true");
+            } else {
+                flags.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+
+        Map<String, String> values = new HashMap<>();
+        String file = flags.getOrDefault(CONFIG_KEY, env.get(envName(CONFIG_KEY)));
+        if (file != null) {
+            values.putAll(readFile(file));
+        }
+        for (Map.Entry<String, String> entry : env.entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith(ENV_PREFIX) && name.length() > ENV_PREFIX.length()) {
+                values.put(name.substring(ENV_PREFIX.length()).toLowerCase(Locale.ROOT).replace('_', '-'), entry.getValue());
+            }
+        }
+        values.putAll(flags);
+        values.remove(CONFIG_KEY);
+        return new ChatConfig(values);
+    }
+
+    private static Map<String, String> readFile(String path) {
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            System.err.println("Erro ao ler o arquivo de configuração " + path + ": " + e.getMessage());
+        }
+        Map<String, String> values = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            values.put(key.trim(), properties.getProperty(key).trim());
+        }
+        return values;
+    }
+
+    /**
+     * Nome da variável de ambiente de uma chave (ex: "queue-capacity" vira CHAT_QUEUE_CAPACITY).
+     */
+    static String envName(String key) {
+        return ENV_PREFIX + key.toUpperCase(Locale.ROOT).replace('-', '_');
+    }
+
+    /**
+     * Indica se a opção foi configurada em alguma das fontes.
+     */
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = values.get(key);
+        return value != null && !value.isBlank() ? value.trim() : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return invalid(key, value, defaultValue);
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return invalid(key, value, defaultValue);
+        }
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return invalid(key, value, defaultValue);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "true":
+            case "1":
+            case "yes":
+                return true;
+            case "false":
+            case "0":
+            case "no":
+                return false;
+            default:
+                return invalid(key, value, defaultValue);
+        }
+    }
+
+    /**
+     * Avisa sobre um valor inválido e devolve o padrão. Usado também pelas opções
+     * com formato próprio, como enums e listas.
+     */
+    <T> T invalid(String key, String value, T defaultValue) {
+        System.out.println("Configuração inválida ignorada: " + key + "=" + value + " (usando " + defaultValue + ")");
+        return defaultValue;
+    }
+}
@@ -0,0 +1,55 @@
+package org.jorgeroberto;
+
+/**
+ * Representa o lado do servidor de uma conexão com um cliente, independente
+ * do mecanismo de I/O utilizado (thread por conexão ou NIO).
+ * É a interface usada pelo RoomManager para entregar mensagens.
+ */
+public interface ChatConnection {
+
+    /**
+     * Envia um frame já codificado para este cliente específico.
+     * O mesmo frame pode ser compartilhado por todos os destinatários de um broadcast.
+     * @param frame O frame a ser enviado ao cliente.
+     */
+    void send(MessageFrame frame);
+
+    /**
+     * Envia uma mensagem para este cliente específico.
+     * @param message A string de mensagem a ser enviada ao cliente.
+     */
+    default void sendMessage(String message) {
+        send(MessageFrame.of(message));
+    }
+
+    /**
+     * Obtém o nome de usuário associado à conexão.
+     * @return O nome de usuário, ou null se o cliente ainda não se identificou.
+     */
+    String getUserName();
+
+    /**
+     * Encerra a conexão com o cliente após o envio das mensagens pendentes.
+     */
+    void close();
+
+    /**
+     * Encerra a conexão imediatamente, descartando as mensagens pendentes.
+     * Usado quando o cliente deixou de responder e nada mais pode ser entregue a ele.
+     */
+    void abort();
+
+    /**
+     * Codificador de saída da conexão, consultado pelas métricas de compressão.
+     * @return O codificador, ou null se a conexão não codifica os próprios frames.
+     */
+    default WireEncoder getEncoder() {
+        return null;
+    }
+
+    /**
+     * Obtém a fila de saída da conexão, usada para consultar sua profundidade.
+     * @return A fila de saída do cliente.
+     */
+    OutboundQueue getOutboundQueue();
+}
@@ -1,60 +1,358 @@
 package org.jorgeroberto;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Scanner;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Classe principal do Servidor de Chat.
  * Responsável por iniciar o ServerSocket e gerenciar a concorrência de clientes.
+ * Não faz perguntas no console: cada opção abaixo pode vir da linha de comando, de uma variável
+ * de ambiente (ex: --queue-capacity=N equivale a CHAT_QUEUE_CAPACITY=N) ou de um arquivo de
+ * propriedades indicado com --config=arquivo (ver ChatConfig).
+ * A porta é definida com --port=N (padrão 9000), o endereço de escuta com --bind=endereço e a
+ * pasta dos logs com --log-dir=pasta (padrão logs).
+ * O modo de execução: --engine=thread (padrão), --engine=virtual ou --engine=nio [--reactors=N].
+ * A fila de saída de cada cliente é configurada com --queue-capacity=N e
+ * --overflow=drop_oldest|disconnect|coalesce. Nos modos thread e virtual, a escritora de cada
+ * cliente envia os frames em lotes: --flush-delay-us=N (espera máxima por mais frames; 0 envia
+ * assim que a fila esvazia) e --flush-bytes=N (tamanho que dispara o envio).
+ * O histórico das salas é configurado com --history-size=N (mensagens em memória por sala)
+ * e --history-replay=N (mensagens reenviadas ao entrar em uma sala).
+ * As salas são divididas entre --shards=N threads (padrão: uma por processador).
+ * A gravação dos logs passa por uma fila de --log-queue=N entradas, gravadas em lotes de até
+ * --log-batch=N entradas ou a cada --log-flush-ms=N milissegundos; com a fila cheia,
+ * --log-overflow=block|drop|spill espera, descarta ou grava a entrada em logs/spill.txt.
+ * O armazenamento das mensagens é configurado com --segment-mb=N (tamanho máximo de cada segmento),
+ * --retention-mb=N (tamanho máximo do log de cada sala), --retention-days=N,
+ * --retention-total-mb=N (tamanho máximo somando todos os logs) e --max-open-logs=N.
+ * As métricas ficam sempre disponíveis via JMX; --metrics-port=N também as expõe
+ * em texto em http://127.0.0.1:N/metrics.
+ * Vários servidores formam um cluster com --cluster-port=N (porta usada entre os nós),
+ * --peers=host:porta,... (endereços de cluster dos outros nós) e, opcionalmente, --node-id=nome.
+ * A porta do cluster só aceita os endereços de --peers, e os nós se autenticam com o segredo
+ * da variável de ambiente CHAT_CLUSTER_SECRET, que deve ser a mesma em todos; sem ela o
+ * cluster não é iniciado.
+ * O controle de flood é configurado com --user-rate=N e --user-burst=N (mensagens por segundo e
+ * rajada de cada usuário), --room-rate=N e --room-burst=N (o mesmo para cada sala; 0 desativa o limite)
+ * e --max-line=N (tamanho máximo de uma linha ou frame binário, em bytes).
+ * Clientes binários podem negociar a compressão dos frames com pelo menos --compress-min-bytes=N
+ * bytes (0 recusa a compressão).
+ * O comando /search usa um índice em memória, reconstruído a partir dos logs a cada inicialização;
+ * --search=false o desativa.
+ * Conexões que ficam --idle-timeout-s=N segundos sem enviar nada recebem um PING e são encerradas
+ * se não responderem em --pong-timeout-s=N segundos (--idle-timeout-s=0 desativa o heartbeat).
+ * Ao receber o sinal de término, o servidor encerra de forma ordenada, esperando até
+ * --drain-ms=N pelo envio das mensagens pendentes. Para um reinício a quente, o novo processo
+ * é iniciado com --takeover=N, onde N é a porta de métricas (--metrics-port) do processo antigo.
+ * Os dois processos precisam do mesmo token na variável de ambiente CHAT_ADMIN_TOKEN; sem ela,
+ * o reinício a quente fica desativado.
  */
 public class ChatServer {
-    private static final RoomManager roomManager = new RoomManager();
+    private static RoomManager roomManager;
+    private static Supplier<OutboundQueue> outboundQueues = OutboundQueue::new;
+    private static ClientHandler.FlushPolicy flushPolicy = ClientHandler.FlushPolicy.DEFAULT;
+    private static ServerLifecycle lifecycle;
+    private static final int DEFAULT_PORT = 9000;
+    // Tentativas de abrir a porta de métricas enquanto o processo antigo ainda a libera
+    private static final int METRICS_BIND_ATTEMPTS = 50;
+    // Segredo compartilhado pelos nós do cluster, fora da linha de comando (visível a outros processos)
+    private static final String CLUSTER_SECRET_ENV = "CHAT_CLUSTER_SECRET";
+    // Token exigido pelo pedido de passagem do reinício a quente
+    private static final String ADMIN_TOKEN_ENV = "CHAT_ADMIN_TOKEN";
 
     /**
      * Ponto de entrada da aplicação Servidora.
-     * Inicia o loop de aceitação de clientes.
+     * Lê a configuração, prepara o estado e inicia o loop de aceitação de clientes.
      */
     public static void main(String[] args) {
-        // Solicitação da porta que irá se conectar
-        Scanner scanner = new Scanner(System.in);
+        ChatConfig config = ChatConfig.load(args);
+        int port = config.getInt("port", DEFAULT_PORT);
+        String bindAddress = config.getString("bind", null);
+        File logDir = new File(config.getString("log-dir", "logs"));
+        ServerMode mode = ServerMode.THREAD;
+        if (config.contains("engine")) {
+            try {
+                mode = ServerMode.fromString(config.getString("engine", "thread"));
+            } catch (IllegalArgumentException e) {
+                mode = config.invalid("engine", config.getString("engine", ""), mode);
+            }
+        }
+        int reactors = config.getInt("reactors", Runtime.getRuntime().availableProcessors());
+        int queueCapacity = config.getInt("queue-capacity", OutboundQueue.DEFAULT_CAPACITY);
+        OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+        if (config.contains("overflow")) {
+            try {
+                overflowPolicy = OutboundQueue.OverflowPolicy.fromString(config.getString("overflow", "drop_oldest"));
+            } catch (IllegalArgumentException e) {
+                overflowPolicy = config.invalid("overflow", config.getString("overflow", ""), overflowPolicy);
+            }
+        }
+        int historySize = config.getInt("history-size", RoomHistory.DEFAULT_CAPACITY);
+        int historyReplay = config.getInt("history-replay", RoomManager.DEFAULT_REPLAY_COUNT);
+        long segmentBytes = config.getLong("segment-mb", MessageStore.DEFAULT_SEGMENT_SIZE / (1024 * 1024)) * 1024 * 1024;
+        long retentionBytes = config.getLong("retention-mb", MessageStore.DEFAULT_MAX_BYTES / (1024 * 1024)) * 1024 * 1024;
+        long retentionMillis = TimeUnit.DAYS.toMillis(config.getLong("retention-days",
+                TimeUnit.MILLISECONDS.toDays(MessageStore.DEFAULT_MAX_AGE_MILLIS)));
+        long retentionTotalBytes = config.getLong("retention-total-mb", MessageStore.DEFAULT_MAX_TOTAL_BYTES / (1024 * 1024)) * 1024 * 1024;
+        int maxOpenLogs = config.getInt("max-open-logs", MessageStore.DEFAULT_MAX_OPEN_LOGS);
+        int logQueue = config.getInt("log-queue", RoomLogWriter.DEFAULT_CAPACITY);
+        int logBatch = config.getInt("log-batch", RoomLogWriter.DEFAULT_BATCH_SIZE);
+        long logFlushMillis = config.getLong("log-flush-ms", RoomLogWriter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+        RoomLogWriter.BackpressurePolicy logOverflow = RoomLogWriter.BackpressurePolicy.BLOCK;
+        if (config.contains("log-overflow")) {
+            try {
+                logOverflow = RoomLogWriter.BackpressurePolicy.fromString(config.getString("log-overflow", "block"));
+            } catch (IllegalArgumentException e) {
+                logOverflow = config.invalid("log-overflow", config.getString("log-overflow", ""), logOverflow);
+            }
+        }
+        long flushDelayMicros = config.getLong("flush-delay-us", ClientHandler.FlushPolicy.DEFAULT.delayMicros());
+        int flushBytes = config.getInt("flush-bytes", ClientHandler.FlushPolicy.DEFAULT.maxBytes());
+        double userRate = config.getDouble("user-rate", FloodControl.Policy.DEFAULT.userRate());
+        int userBurst = config.getInt("user-burst", FloodControl.Policy.DEFAULT.userBurst());
+        double roomRate = config.getDouble("room-rate", FloodControl.Policy.DEFAULT.roomRate());
+        int roomBurst = config.getInt("room-burst", FloodControl.Policy.DEFAULT.roomBurst());
+        int maxLine = config.getInt("max-line", FloodControl.Policy.DEFAULT.maxLineBytes());
+        long drainMillis = config.getLong("drain-ms", ServerLifecycle.DEFAULT_DRAIN_MILLIS);
+        long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getLong("idle-timeout-s",
+                TimeUnit.MILLISECONDS.toSeconds(Heartbeat.DEFAULT_IDLE_MILLIS)));
+        long pongTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getLong("pong-timeout-s",
+                TimeUnit.MILLISECONDS.toSeconds(Heartbeat.DEFAULT_PONG_TIMEOUT_MILLIS)));
+        int compressMinBytes = config.getInt("compress-min-bytes", FrameCompression.DEFAULT_MIN_BYTES);
+        boolean search = config.getBoolean("search", true);
+        int takeoverPort = config.getInt("takeover", 0);
+        int shards = config.getInt("shards", Runtime.getRuntime().availableProcessors());
+        int metricsPort = config.getInt("metrics-port", 0);
+        int clusterPort = config.getInt("cluster-port", 0);
+        List<InetSocketAddress> peers = List.of();
+        if (config.contains("peers")) {
+            try {
+                peers = ClusterNode.parsePeers(config.getString("peers", ""));
+            } catch (IllegalArgumentException e) {
+                peers = config.invalid("peers", config.getString("peers", ""), peers);
+            }
+        }
+        String nodeId = config.getString("node-id", null);
+
+        int capacity = queueCapacity;
+        OutboundQueue.OverflowPolicy policy = overflowPolicy;
+        outboundQueues = () -> new OutboundQueue(capacity, policy);
+        flushPolicy = new ClientHandler.FlushPolicy(Math.max(0, flushDelayMicros), Math.max(1, flushBytes));
+        FrameCompression.setMinBytes(compressMinBytes);
+
         System.out.println("--------------------------------------------------------------------");
         System.out.println("                  BEM VINDO AO CHAT JAVA");
         System.out.println("--------------------------------------------------------------------");
-        System.out.print("Por favor, digite a porta que será inicializado o Servidor: ");
-        int port;
+
+        ServerSocketChannel serverChannel;
         try {
-            port = Integer.parseInt(scanner.nextLine());
-        } catch (NumberFormatException e) {
-            System.out.println("Sinto muito, a porta digitada é inválida. Será usado a portão padrão 9000");
-            port = 9000;
+            serverChannel = ServerLifecycle.bind(bindAddress != null ? new InetSocketAddress(bindAddress, port) : new InetSocketAddress(port),
+                    takeoverPort > 0);
+        } catch (IOException e) {
+            System.err.println("Erro ao iniciar o Servidor: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        // Reinício a quente: a porta já está aberta, então os clientes que chegarem esperam na fila dela.
+        // Sem a passagem, o processo antigo continua com a porta e os logs: este não pode seguir
+        if (takeoverPort > 0) {
+            try {
+                ServerLifecycle.takeover(takeoverPort, System.getenv(ADMIN_TOKEN_ENV), Math.max(0, drainMillis));
+            } catch (IOException e) {
+                System.err.println("SERVIDOR: Não foi possível assumir o servidor antigo: " + e.getMessage());
+                try {
+                    serverChannel.close();
+                } catch (IOException ignored) {
+                    // Encerrando de qualquer forma
+                }
+                System.exit(1);
+                return;
+            }
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // Aberto só depois da passagem, quando o processo antigo já fechou os logs.
+        // Segmentos mapeados em memória são limitados a 1 GB
+        MessageStore store = new MessageStore(logDir, (int) Math.max(64 * 1024, Math.min(segmentBytes, 1L << 30)),
+                retentionBytes, retentionMillis, retentionTotalBytes, Math.max(1, maxOpenLogs));
+        // A pasta de logs é criada aqui, uma única vez
+        RoomLogWriter logWriter = new RoomLogWriter(logDir, store, Math.max(1, logQueue), Math.max(1, logBatch),
+                Math.max(1, logFlushMillis), logOverflow);
+        RoomHistory history = new RoomHistory(store, Math.max(1, historySize),
+                RoomHistory.DEFAULT_MAX_CHARS, RoomHistory.DEFAULT_IDLE_MILLIS);
+        roomManager = new RoomManager(logWriter, history, Math.max(0, Math.min(historyReplay, historySize)), Math.max(1, shards));
+        roomManager.setFloodPolicy(new FloodControl.Policy(Math.max(0, userRate), Math.max(1, userBurst),
+                Math.max(0, roomRate), Math.max(1, roomBurst), Math.max(64, Math.min(maxLine, BinaryProtocol.MAX_PAYLOAD))));
+        if (idleTimeoutMillis > 0) {
+            roomManager.setHeartbeat(new Heartbeat(idleTimeoutMillis, Math.max(1000, pongTimeoutMillis)));
+        }
+
+        lifecycle = new ServerLifecycle(roomManager, serverChannel, new File(logWriter.getLogDir(), "handover.snapshot"),
+                Math.max(0, drainMillis));
+        lifecycle.restore();
+
+        // Abre agora os logs que a primeira mensagem usaria: o lobby e as salas restauradas
+        Set<String> rooms = new HashSet<>(roomManager.restoredRoomNames());
+        rooms.add("lobby");
+        store.prepare(rooms);
+        // Depois do restore, para que a reconstrução já encontre tudo o que o processo antigo gravou
+        if (search) {
+            roomManager.setSearchIndex(new SearchIndex(store));
+        }
+
+        ServerMetrics.registerMBean();
+        ServerMetrics.trackQueues(roomManager.localConnections());
+        if (metricsPort > 0) {
+            startMetrics(metricsPort, takeoverPort > 0);
+        }
+
+        ClusterNode cluster = null;
+        String secret = System.getenv(CLUSTER_SECRET_ENV);
+        if (clusterPort > 0 && (secret == null || secret.isEmpty())) {
+            System.err.println("SERVIDOR: O cluster exige um segredo em " + CLUSTER_SECRET_ENV
+                    + "; o servidor seguirá sem cluster.");
+        } else if (clusterPort > 0) {
+            cluster = new ClusterNode(nodeId != null ? nodeId : defaultNodeId(clusterPort), clusterPort, peers,
+                    secret, Math.max(1, maxLine), roomManager);
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.err.println("SERVIDOR: Não foi possível iniciar o cluster na porta " + clusterPort + ": " + e.getMessage());
+                cluster = null;
+            }
+        }
+        if (cluster != null) {
+            lifecycle.closeOnStop(cluster);
+        }
+
+        // Encerramento ordenado: avisa os clientes, esvazia as filas e grava os logs pendentes
+        Runtime.getRuntime().addShutdownHook(new Thread(lifecycle::shutdown, "shutdown"));
+
+        try {
             System.out.println("--------------------------------------------------------------------");
             System.out.println("                           CHAT JAVA");
             System.out.println("--------------------------------------------------------------------");
             // Informa o local onde os logs serão salvos
-            System.out.println("LOGS: Os arquivos de log serão salvos em: " + new java.io.File(".").getAbsolutePath());
+            System.out.println("LOGS: Os arquivos de log serão salvos em: " + logWriter.getLogDir().getAbsolutePath());
 
+            switch (mode) {
+                case NIO:
+                    NioChatServer nioServer = new NioChatServer(port, reactors, roomManager, outboundQueues);
+                    lifecycle.ready();
+                    nioServer.start(serverChannel);
+                    break;
+                case VIRTUAL:
+                    lifecycle.ready();
+                    runVirtualThreads(serverChannel);
+                    break;
+                default:
+                    lifecycle.ready();
+                    //Cria uma thread para gerenciar cada conexão concorrente
+                    runThreadPerConnection(serverChannel, handler -> new Thread(handler).start(), Thread.ofPlatform().factory());
+                    break;
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao iniciar o Servidor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Inicia o endpoint de métricas. Em um reinício a quente, a porta só é liberada quando o
+     * processo antigo termina, então a abertura é repetida por alguns segundos.
+     */
+    private static void startMetrics(int port, boolean retry) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                new MetricsHttpServer(port, lifecycle, System.getenv(ADMIN_TOKEN_ENV));
+                return;
+            } catch (BindException e) {
+                if (!retry || attempt >= METRICS_BIND_ATTEMPTS) {
+                    System.err.println("SERVIDOR: Não foi possível iniciar o endpoint de métricas: " + e.getMessage());
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("SERVIDOR: Não foi possível iniciar o endpoint de métricas: " + e.getMessage());
+                return;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Identificador padrão de um nó: o nome da máquina e a porta do cluster.
+     */
+    private static String defaultNodeId(int clusterPort) {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + clusterPort;
+        } catch (UnknownHostException e) {
+            return "no-" + clusterPort;
+        }
+    }
+
+    /**
+     * Modo com threads virtuais: cada cliente roda em sua própria thread virtual,
+     * e os eventos de pinning são contabilizados via JFR.
+     * @param serverChannel A porta de escuta do servidor.
+     */
+    private static void runVirtualThreads(ServerSocketChannel serverChannel) throws IOException {
+        PinningMonitor pinningMonitor = new PinningMonitor(Duration.ZERO);
+        pinningMonitor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                System.out.println("SERVIDOR: Pinning de threads virtuais: " + pinningMonitor.summary())));
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            runThreadPerConnection(serverChannel, executor, Thread.ofVirtual().factory());
+        } finally {
+            pinningMonitor.close();
+        }
+    }
+
+    /**
+     * Loop de aceitação bloqueante: cada cliente aceito é executado pelo executor informado.
+     * O loop termina quando a porta é fechada pelo encerramento do servidor.
+     * @param serverChannel A porta de escuta do servidor.
+     * @param executor Define em qual tipo de thread cada ClientHandler será executado.
+     * @param writerThreads Fábrica das threads escritoras das filas de saída.
+     */
+    private static void runThreadPerConnection(ServerSocketChannel serverChannel, Executor executor, ThreadFactory writerThreads) throws IOException {
+        // Canais em modo bloqueante: a leitura continua bloqueante e a escrita pode ser vetorizada
+        try (serverChannel) {
             // Mostra o endereço IP local do servidor
-            System.out.println("Servidor de chat iniciado em " + serverSocket.getInetAddress().getHostName() + ":" + port);
+            System.out.println("Servidor de chat iniciado em " + serverChannel.socket().getInetAddress().getHostName() + ":" + serverChannel.socket().getLocalPort());
 
             //Loop de gerenciamento de conexão
             while (true) {
                 // Bloqueia e espera por uma conexão de cliente
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Cliente conectado de " +  clientSocket.getRemoteSocketAddress());
+                SocketChannel clientChannel = serverChannel.accept();
+                System.out.println("Cliente conectado de " +  clientChannel.socket().getRemoteSocketAddress());
 
-                //Cria uma thread para gerenciar a conexão concorrente
-                ClientHandler handler = new ClientHandler(clientSocket, roomManager);
-                new Thread(handler).start();
+                ClientHandler handler = new ClientHandler(clientChannel, roomManager, outboundQueues.get(), writerThreads, flushPolicy);
+                executor.execute(handler);
             }
-        } catch (IOException e) {
-            System.err.println("Erro ao iniciar o Servidor: " + e.getMessage());
-        } finally {
-            scanner.close();
+        } catch (ClosedChannelException e) {
+            // Porta fechada pelo encerramento do servidor
+            System.out.println("SERVIDOR: Não aceitando novas conexões.");
         }
     }
 }
@@ -0,0 +1,544 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Estado e regras do protocolo de chat para um único cliente.
+ * Recebe os bytes lidos pela camada de transporte (ClientHandler ou NIO), separa-os
+ * em linhas de texto ou frames binários e cuida da identificação (NICK), dos comandos
+ * e do broadcast. Os dois protocolos compartilham as mesmas operações.
+ */
+public final class ChatSession implements InboundDecoder.Handler {
+
+    private static final String WELCOME_MESSAGE = "SERVIDOR: Bem-vindo! Vamos cadastrar seu nickname.\n"
+            + "SERVIDOR: Para isso, escreva da seguinte forma: NICK <nome>\n"
+            + "SERVIDOR: Por exemplo, NICK test\n"
+            + "SERVIDOR: Agora sua vez, qual o seu Nickname?";
+    // Limite de mensagens por página do comando /history
+    private static final int MAX_HISTORY_PAGE = 200;
+    private static final DateTimeFormatter SEARCH_TIME = DateTimeFormatter.ofPattern("dd/MM HH:mm").withZone(ZoneId.systemDefault());
+
+    private final ChatConnection connection;
+    private final RoomManager roomManager;
+    private final InboundDecoder decoder;
+    private final FloodControl floodControl;
+    private Heartbeat.Watch heartbeat;
+    private String userName;
+    //Sala inicial
+    private volatile String currentRoom = "lobby";
+    private boolean identified;
+    // Instante do NICK aceito; a busca só mostra as mensagens privadas trocadas a partir dele
+    private long identifiedAt;
+    private boolean binary;
+    private boolean closing;
+    // Posição a partir da qual o próximo /history busca mensagens anteriores
+    private volatile long historyCursor = RoomHistory.LATEST;
+    // Troca de sala em andamento: a sala atual só muda quando o RoomManager conclui a entrada.
+    // Mensagens e trocas pedidas nesse intervalo são adiadas, na ordem, até a conclusão.
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final List<Runnable> deferred = new ArrayList<>();
+    private String movingTo;
+    private int moves;
+
+    /**
+     * Construtor da sessão.
+     * @param connection A conexão usada para responder ao cliente.
+     * @param roomManager A instância compartilhada que gerencia salas e estado.
+     */
+    public ChatSession(ChatConnection connection, RoomManager roomManager) {
+        this.connection = connection;
+        this.roomManager = roomManager;
+        FloodControl.Policy floodPolicy = roomManager.getFloodPolicy();
+        this.floodControl = new FloodControl(floodPolicy, connection);
+        this.decoder = new InboundDecoder(this, floodPolicy.maxLineBytes());
+    }
+
+    /**
+     * Inicia a sessão, solicitando o nome de usuário.
+     */
+    public void start() {
+        ServerMetrics.connectionOpened();
+        roomManager.addConnection(connection);
+        Heartbeat monitor = roomManager.getHeartbeat();
+        if (monitor != null) {
+            heartbeat = monitor.watch(connection);
+        }
+        connection.sendMessage(WELCOME_MESSAGE);
+    }
+
+    /**
+     * Entrega à sessão os bytes recebidos do socket, em pedaços de qualquer tamanho.
+     * @throws IOException se o cliente violar o protocolo binário.
+     */
+    public void receive(byte[] data, int offset, int length) throws IOException {
+        if (heartbeat != null) {
+            heartbeat.touch();
+        }
+        decoder.feed(data, offset, length);
+    }
+
+    /**
+     * Tempo que a camada de transporte deve esperar antes de ler de novo o socket,
+     * quando o cliente foi pausado por excesso de mensagens.
+     * @return A pausa restante em nanossegundos, ou 0.
+     */
+    public long readPauseNanos() {
+        return floodControl.pauseNanos();
+    }
+
+    /**
+     * Processa uma linha recebida do cliente no protocolo de texto.
+     * @param line A linha recebida, sem o terminador.
+     */
+    @Override
+    public void onLine(String line) {
+        handleLine(line);
+    }
+
+    /**
+     * Processa uma linha recebida do cliente.
+     * @param line A linha recebida, sem o terminador.
+     */
+    public void handleLine(String line) {
+        if (closing || !admit()) {
+            return;
+        }
+        // Linhas de controle (heartbeat): aceitas em qualquer etapa; as desconhecidas são ignoradas
+        if (!line.isEmpty() && line.charAt(0) == Heartbeat.CONTROL) {
+            if (line.equals(Heartbeat.PING_LINE)) {
+                connection.send(MessageFrame.PONG);
+            }
+            return;
+        }
+        if (!identified) {
+            // A negociação do protocolo binário só é aceita antes do NICK
+            if (!binary && BinaryProtocol.HELLO.equals(line)) {
+                negotiateBinary(false);
+            } else if (!binary && BinaryProtocol.HELLO_COMPRESSED.equals(line)) {
+                negotiateBinary(FrameCompression.isEnabled());
+            } else {
+                identify(line);
+            }
+            return;
+        }
+
+        String trimmedLine = line.trim();
+        if (trimmedLine.isEmpty()) {
+            return;
+        }
+
+        if (line.startsWith("/")) {
+            handleCommand(trimmedLine);
+        } else {
+            // Transmissão de Mensagens (Broadcast) para a sala atual
+            chat(trimmedLine);
+        }
+    }
+
+    /**
+     * Aplica o limite de mensagens do usuário antes de processar a mensagem.
+     * @return false se a mensagem foi descartada.
+     */
+    private boolean admit() {
+        switch (floodControl.check()) {
+            case ALLOW:
+                return true;
+            case DISCONNECT:
+                closing = true;
+                connection.sendMessage("SERVER: Conexão encerrada por excesso de mensagens.");
+                connection.close();
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Confirma a negociação e passa a usar o protocolo binário nos dois sentidos.
+     * A confirmação ainda é enviada em texto; o marcador enfileirado em seguida
+     * faz o escritor da conexão trocar de codificação.
+     * @param compressed Se a compressão pedida pelo cliente foi aceita.
+     */
+    private void negotiateBinary(boolean compressed) {
+        binary = true;
+        connection.sendMessage(compressed ? BinaryProtocol.HELLO_ACK_COMPRESSED : BinaryProtocol.HELLO_ACK);
+        connection.send(compressed ? MessageFrame.SWITCH_TO_COMPRESSED : MessageFrame.SWITCH_TO_BINARY);
+        decoder.switchToBinary();
+    }
+
+    /**
+     * Processa um frame recebido no protocolo binário.
+     */
+    @Override
+    public void onFrame(int opcode, ByteBuffer payload) throws IOException {
+        if (closing || !admit()) {
+            return;
+        }
+        if (opcode == BinaryProtocol.PONG) {
+            return;
+        }
+        if (opcode == BinaryProtocol.PING) {
+            connection.send(MessageFrame.PONG);
+            return;
+        }
+        if (!identified) {
+            if (opcode == BinaryProtocol.NICK) {
+                register(BinaryProtocol.readText(payload).trim());
+            } else {
+                connection.sendMessage("SERVER: Comando de identificação inválido. Use NICK <nome>.");
+            }
+            return;
+        }
+
+        switch (opcode) {
+            case BinaryProtocol.CHAT:
+                String text = BinaryProtocol.readText(payload).trim();
+                if (!text.isEmpty()) {
+                    chat(text);
+                }
+                break;
+            case BinaryProtocol.JOIN:
+                ServerMetrics.command("join");
+                join(BinaryProtocol.readReference(payload));
+                break;
+            case BinaryProtocol.LEAVE:
+                ServerMetrics.command("leave");
+                leave();
+                break;
+            case BinaryProtocol.PRIVATE:
+                ServerMetrics.command("private");
+                String target = BinaryProtocol.readReference(payload);
+                sendPrivate(target, BinaryProtocol.readText(payload).trim());
+                break;
+            case BinaryProtocol.EXIT:
+                ServerMetrics.command("exit");
+                exit();
+                break;
+            case BinaryProtocol.COMMAND:
+                String command = BinaryProtocol.readText(payload).trim();
+                if (command.startsWith("/")) {
+                    handleCommand(command);
+                } else {
+                    connection.sendMessage("SERVER: Comando desconhecido ou inválido: " + command);
+                }
+                break;
+            default:
+                connection.sendMessage("SERVER: Comando desconhecido ou inválido: opcode " + opcode);
+                break;
+        }
+    }
+
+    /**
+     * Trata a etapa de identificação do cliente (NICK <nome>).
+     */
+    private void identify(String line) {
+        if (line.toUpperCase().startsWith("NICK ")) {
+            register(line.substring(5).trim());
+        } else {
+            connection.sendMessage("SERVER: Comando de identificação inválido. Use NICK <nome>.");
+        }
+    }
+
+    private void register(String name) {
+        if (!name.isEmpty()) {
+            if (!roomManager.addClient(connection, name, currentRoom)) {
+                connection.sendMessage("SERVER: O nome " + name + " já está em uso. Escolha outro (NICK <nome>):");
+                return;
+            }
+            userName = name;
+            identified = true;
+            identifiedAt = System.currentTimeMillis();
+            connection.sendMessage("SERVER: Seu nome de usuário é " + userName + ".\nVocê está no lobby.\nUse /join #<sala> para entrar em uma sala.");
+            // Após um reinício do servidor, o usuário volta para a sala em que estava
+            String restoredRoom = roomManager.takeRestoredRoom(userName);
+            if (restoredRoom != null) {
+                join(restoredRoom);
+            } else {
+                roomManager.broadcast(currentRoom, "SERVER: " + userName + RoomManager.ENTERED_LOBBY, connection);
+            }
+        } else {
+            connection.sendMessage("SERVER: Nome de usuário não pode ser vazio. Tente novamente (NICK <nome>):");
+        }
+    }
+
+    /**
+     * Processa comandos específicos do protocolo de chat (Regras de Comando).
+     */
+    void handleCommand(String command) {
+        String[] parts = command.split(" ", 2);
+        String action = parts[0].toLowerCase();
+        ServerMetrics.command(action);
+
+        switch (action) {
+            case "/join":
+                join(parts.length > 1 ? parts[1] : null);
+                break;
+            case "/private":
+                // Validação da sintaxe e lógica de envio privado
+                if (parts.length < 2) {
+                    connection.sendMessage("SERVER: Comando /private inválido. Uso: /private <usuario> <mensagem>");
+                    return;
+                }
+                String messageContent = parts[1].trim();
+                int firstSpace = messageContent.indexOf(' ');
+
+                if (firstSpace == -1) {
+                    connection.sendMessage("SERVER: Comando /private inválido. Uso: /private <usuario> <mensagem>");
+                    return;
+                }
+
+                sendPrivate(messageContent.substring(0, firstSpace).trim(), messageContent.substring(firstSpace).trim());
+                break;
+            case "/leave":
+                leave();
+                break;
+            case "/history":
+                history(parts.length > 1 ? parts[1].trim() : null);
+                break;
+            case "/search":
+                search(parts.length > 1 ? parts[1].trim() : "");
+                break;
+            case "/exit":
+            case "/quit":
+                exit();
+                break;
+            default:
+                connection.sendMessage("SERVER: Comando desconhecido ou inválido: " + command);
+                break;
+        }
+    }
+
+    private void chat(String text) {
+        runOrDefer(() -> roomManager.broadcastChat(currentRoom, userName, text, connection));
+    }
+
+    private void join(String room) {
+        if (room != null && room.startsWith("#")) {
+            String newRoom = room.toLowerCase();
+            runOrDefer(() -> {
+                String oldRoom = startMove(newRoom);
+                roomManager.joinRoom(connection, userName, oldRoom, newRoom, cursor -> moved(newRoom, cursor));
+            });
+        } else {
+            connection.sendMessage("SERVER: Comando /join inválido.\nUse: /join #<nome_da_sala>\n");
+        }
+    }
+
+    /**
+     * Executa a ação agora ou, durante uma troca de sala, depois que ela terminar.
+     */
+    private void runOrDefer(Runnable action) {
+        roomLock.lock();
+        try {
+            if (movingTo != null) {
+                deferred.add(action);
+                return;
+            }
+        } finally {
+            roomLock.unlock();
+        }
+        action.run();
+    }
+
+    /**
+     * Marca o início de uma troca de sala.
+     * @return A sala atual, de onde o cliente sai.
+     */
+    private String startMove(String target) {
+        roomLock.lock();
+        try {
+            movingTo = target;
+            moves++;
+            historyCursor = RoomHistory.LATEST;
+            return currentRoom;
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    /**
+     * Conclusão da troca, chamada pela thread do shard depois que o cliente foi adicionado à
+     * sala e a entrada foi anunciada. Executa as ações adiadas até que uma delas inicie outra troca.
+     */
+    private void moved(String room, long cursor) {
+        roomLock.lock();
+        try {
+            currentRoom = room;
+            historyCursor = cursor;
+        } finally {
+            roomLock.unlock();
+        }
+        while (true) {
+            Runnable next;
+            int started;
+            roomLock.lock();
+            try {
+                if (deferred.isEmpty()) {
+                    movingTo = null;
+                    return;
+                }
+                next = deferred.remove(0);
+                started = moves;
+            } finally {
+                roomLock.unlock();
+            }
+            // Fora do lock: as ações só enfileiram tarefas nos shards
+            next.run();
+            roomLock.lock();
+            try {
+                if (moves != started) {
+                    return;
+                }
+            } finally {
+                roomLock.unlock();
+            }
+        }
+    }
+
+    private void sendPrivate(String targetUser, String privateMessage) {
+        if (targetUser == null || privateMessage.isEmpty()) {
+            connection.sendMessage("SERVER: Comando /private inválido. Uso: /private <usuario> <mensagem>");
+        } else if (targetUser.equalsIgnoreCase(userName)) {
+            connection.sendMessage("SERVER: Você não pode enviar mensagem privada para si mesmo.");
+        } else if (roomManager.sendPrivateMessage(userName, targetUser, privateMessage)) {
+            // O RoomManager já envia o feedback para o remetente e para o destinatário
+        } else {
+            connection.sendMessage("SERVER: O usuário '" + targetUser + "' não foi encontrado ou está desconectado.");
+        }
+    }
+
+    private void leave() {
+        runOrDefer(() -> {
+            // Não pode sair do lobby
+            if (!currentRoom.equals("lobby")) {
+                String oldRoom = startMove("lobby");
+                roomManager.leaveRoom(connection, userName, oldRoom, "lobby", () -> moved("lobby", RoomHistory.LATEST));
+            } else {
+                connection.sendMessage("SERVER: Você já está no lobby.\nUse /join #<sala> para mudar.");
+            }
+        });
+    }
+
+    /**
+     * Envia a página de mensagens anterior à última exibida na sala atual.
+     * @param argument A quantidade de mensagens pedida (opcional).
+     */
+    private void history(String argument) {
+        int count = roomManager.getReplayCount();
+        if (argument != null && !argument.isEmpty()) {
+            try {
+                count = Integer.parseInt(argument);
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count <= 0) {
+                connection.sendMessage("SERVER: Comando /history inválido. Uso: /history <n>");
+                return;
+            }
+        }
+        count = Math.min(count, MAX_HISTORY_PAGE);
+
+        RoomHistory.Page page = roomManager.history(currentRoom, historyCursor, count);
+        if (page.isEmpty()) {
+            connection.sendMessage("SERVER: Não há mensagens anteriores em " + currentRoom + ".");
+            return;
+        }
+        historyCursor = page.cursor();
+        List<MessageFrame> batch = new ArrayList<>(page.frames().size() + 1);
+        batch.add(MessageFrame.of("SERVER: " + page.frames().size() + " mensagens anteriores de " + currentRoom + ":"));
+        batch.addAll(page.frames());
+        connection.send(MessageFrame.batch(batch));
+    }
+
+    /**
+     * Busca nas mensagens das salas e nas privadas do próprio usuário trocadas nesta sessão.
+     * Uso: /search <termos> [#sala] [from:usuario] [since:30m|2h|7d]
+     */
+    private void search(String argument) {
+        SearchIndex index = roomManager.getSearchIndex();
+        if (index == null) {
+            connection.sendMessage("SERVER: A busca está desativada neste servidor.");
+            return;
+        }
+        SearchIndex.Query query = SearchIndex.Query.parse(argument);
+        if (query.terms().isEmpty()) {
+            connection.sendMessage("SERVER: Comando /search inválido. Uso: /search <termos> [#sala] [from:usuario] [since:2h]");
+            return;
+        }
+        List<SearchIndex.Hit> hits = index.search(query, userName, identifiedAt, SearchIndex.DEFAULT_LIMIT);
+        String partial = index.isRebuilding() ? " (índice em reconstrução, resultados podem estar incompletos)" : "";
+        if (hits.isEmpty()) {
+            connection.sendMessage("SERVER: Nenhuma mensagem encontrada" + partial + ".");
+            return;
+        }
+        List<MessageFrame> batch = new ArrayList<>(hits.size() + 1);
+        batch.add(MessageFrame.of("SERVER: " + hits.size() + " mensagens encontradas, das mais recentes" + partial + ":"));
+        for (SearchIndex.Hit hit : hits) {
+            MessageRecord record = hit.record();
+            String where = hit.privateMessage()
+                    ? "PRIVADO de " + record.sender() + " para " + record.target()
+                    : record.sender() + " em " + record.target();
+            batch.add(MessageFrame.of("[" + SEARCH_TIME.format(Instant.ofEpochMilli(record.timestamp())) + "] ["
+                    + where + "]: " + record.body()));
+        }
+        connection.send(MessageFrame.batch(batch));
+    }
+
+    private void exit() {
+        closing = true;
+        connection.sendMessage("SERVER: Encerrando conexão...");
+        connection.close();
+    }
+
+    /**
+     * Finaliza a sessão, removendo o cliente do sistema e notificando a sala atual.
+     * Chamado pela camada de transporte ao desconectar.
+     */
+    public void end() {
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+        ServerMetrics.connectionClosed();
+        roomManager.removeClient(connection, currentRoom);
+        String target = pendingRoom();
+        if (target != null && !target.equals(currentRoom)) {
+            // A troca pode ter adicionado o cliente à sala de destino antes da desconexão
+            roomManager.removeClient(connection, target);
+        }
+        if (identified) {
+            roomManager.broadcast(currentRoom, "SERVER: " + userName + RoomManager.LEFT_ROOM, connection);
+        }
+    }
+
+    private String pendingRoom() {
+        roomLock.lock();
+        try {
+            return movingTo;
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    /**
+     * Obtém o nome de usuário deste cliente.
+     * @return O nome de usuário do cliente.
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * Obtém a sala atual do cliente.
+     * @return O nome da sala atual.
+     */
+    public String getCurrentRoom() {
+        return currentRoom;
+    }
+}
@@ -1,43 +1,79 @@
 package org.jorgeroberto;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Thread responsável por gerenciar a comunicação com um único cliente.
- * Lida com leitura de comandos, identificação e encerramento.
+ * Lida com a leitura bloqueante do socket; as regras do protocolo ficam no ChatSession.
+ * As mensagens de saída passam por uma fila limitada drenada por uma thread escritora
+ * própria, de modo que um leitor lento nunca bloqueia quem faz o broadcast.
+ * A escritora acumula os frames pendentes e os envia com uma única escrita vetorizada
+ * (writev) quando o lote atinge o limite de bytes ou o prazo do FlushPolicy.
+ * Pode ser executado tanto em threads de plataforma quanto em threads virtuais.
  */
-public class ClientHandler implements Runnable{
+public final class ClientHandler implements Runnable, ChatConnection {
 
+    // Buffer de leitura reduzido: com threads virtuais há dezenas de milhares de conexões ociosas
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    /**
+     * Quando a escritora envia o lote acumulado.
+     * @param delayMicros Tempo máximo de espera por mais frames antes de enviar; 0 envia assim que a fila esvazia.
+     * @param maxBytes Tamanho do lote que dispara o envio imediato.
+     */
+    public record FlushPolicy(long delayMicros, int maxBytes) {
+        public static final FlushPolicy DEFAULT = new FlushPolicy(500, 16 * 1024);
+        public static final FlushPolicy IMMEDIATE = new FlushPolicy(0, 16 * 1024);
+    }
+
+    private final SocketChannel channel;
     private final Socket clientSocket;
-    private final RoomManager roomManager;
-    private PrintWriter writer;
-    private String userName;
-    //Sala inicial
-    private String currentRoom = "lobby";
+    private final ChatSession session;
+    private final OutboundQueue outboundQueue;
+    private final ThreadFactory writerThreads;
+    private final FlushPolicy flushPolicy;
+    // Usado apenas pela thread escritora
+    private final WireEncoder encoder = new WireEncoder();
+    private volatile boolean writerStarted;
 
 
     /**
      * Construtor do ClientHandler.
-     * @param clientSocket O socket TCP estabelecido com o cliente.
+     * @param channel O canal TCP (em modo bloqueante) estabelecido com o cliente.
      * @param roomManager A instância compartilhada que gerencia salas e estado.
+     * @param outboundQueue A fila de saída exclusiva deste cliente.
+     * @param writerThreads Fábrica da thread escritora (de plataforma ou virtual).
+     * @param flushPolicy Quando enviar os frames acumulados pela escritora.
      */
-    public ClientHandler(Socket clientSocket, RoomManager roomManager) {
-        this.clientSocket = clientSocket;
-        this.roomManager = roomManager;
+    public ClientHandler(SocketChannel channel, RoomManager roomManager, OutboundQueue outboundQueue,
+                         ThreadFactory writerThreads, FlushPolicy flushPolicy) {
+        this.channel = channel;
+        this.clientSocket = channel.socket();
+        this.outboundQueue = outboundQueue;
+        this.writerThreads = writerThreads;
+        this.flushPolicy = flushPolicy;
+        this.session = new ChatSession(this, roomManager);
     }
 
     /**
-     * Envia uma mensagem para este cliente específico.
+     * Enfileira um frame para este cliente específico, sem bloquear.
      * Utilizado pelo RoomManager para broadcast ou mensagens diretas.
-     * @param message A string de mensagem a ser enviada ao cliente.
+     * @param frame O frame a ser enviado ao cliente.
      */
-    public void sendMessage(String message) {
-        if (writer != null) {
-            writer.println(message);
+    @Override
+    public void send(MessageFrame frame) {
+        if (!outboundQueue.offer(frame)) {
+            System.err.println("Desconectando consumidor lento: " + (getUserName() != null ? getUserName() : clientSocket.getRemoteSocketAddress()));
+            outboundQueue.abort();
+            closeSocket();
         }
     }
 
@@ -46,136 +82,124 @@ public class ClientHandler implements Runnable{
      */
     @Override
     public void run() {
-        try (
-            BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
-        ) {
-            this.writer = writer;
-
-            //Solicitação do nome de Usuário
-            String welcomeMessage = "SERVIDOR: Bem-vindo! Vamos cadastrar seu nickname.\n"
-                    + "SERVIDOR: Para isso, escreva da seguinte forma: NICK <nome>\n"
-                    + "SERVIDOR: Por exemplo, NICK test\n"
-                    + "SERVIDOR: Agora sua vez, qual o seu Nickname?";
-
-            writer.println(welcomeMessage);
-
-            String line;
-            boolean identified = false;
-
-            while (!identified && (line = reader.readLine()) != null) {
-                if (line.toUpperCase().startsWith("NICK ")) {
-                    userName = line.substring(5).trim();
-                    if (!userName.isEmpty()) {
-                        identified = true;
-                        roomManager.addClient(this, userName, currentRoom); // Adiciona ao sistema
-                        writer.println("SERVER: Seu nome de usuário é " + userName + ".\nVocê está no lobby.\nUse /join #<sala> para entrar em uma sala.");
-                        roomManager.broadcast(currentRoom, "SERVER: " + userName + " entrou no lobby.", this);
-                    } else {
-                        writer.println("SERVER: Nome de usuário não pode ser vazio. Tente novamente (NICK <nome>):");
-                    }
-                } else {
-                    writer.println("SERVER: Comando de identificação inválido. Use NICK <nome>.");
-                }
-            }
-
-            if (!identified) {
-                return;
-            }
-
-            while ((line = reader.readLine()) != null) {
-
-                String trimmedLine = line.trim();
-                if (trimmedLine.isEmpty()) {
-                    continue;
-                }
-
-                if (line.startsWith("/")) {
-                    handleCommand(trimmedLine);
-                } else {
-                    // Transmissão de Mensagens (Broadcast) para a sala atual
-                    roomManager.broadcast(currentRoom, "[" + userName + " em #" + currentRoom + "]: " + trimmedLine, this);
+        try {
+            InputStream in = clientSocket.getInputStream();
+            writerThreads.newThread(this::writeLoop).start();
+            writerStarted = true;
+            session.start();
+
+            // Os bytes são entregues à sessão, que os separa em linhas ou frames binários
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                session.receive(buffer, 0, read);
+                // Cliente pausado por flood: deixa de ler o socket, e o TCP segura o remetente
+                long pause = session.readPauseNanos();
+                if (pause > 0) {
+                    TimeUnit.NANOSECONDS.sleep(pause);
                 }
             }
         } catch (IOException e) {
             //Conexão perdida ou encerrada de maneira abrupta
-            System.err.println("Conexão com " + (userName != null ? userName : "Cliente") + " perdida: " + e.getMessage());
+            System.err.println("Conexão com " + (getUserName() != null ? getUserName() : "Cliente") + " perdida: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            roomManager.removeClient(this, currentRoom);
-            if (userName != null) {
-                roomManager.broadcast(currentRoom, "SERVER: " + userName + " saiu da sala.", this);
-            }
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                //Erro ao fechar o socker, não preciso tratar
-            }
+            session.end();
+            close();
         }
     }
 
     /**
-     * Processa comandos específicos do protocolo de chat (Regras de Comando).
+     * Loop da thread escritora: drena a fila de saída em lotes e os escreve no socket.
+     * Ao esvaziar a fila fechada, encerra o socket.
      */
-    private void handleCommand(String command) {
-        String[] parts = command.split(" ", 2);
-        String action = parts[0].toLowerCase();
-
-        switch (action) {
-            case "/join":
-                if (parts.length > 1 && parts[1].startsWith("#")) {
-                    String newRoom = parts[1].toLowerCase();
-                    roomManager.joinRoom(this, userName, currentRoom, newRoom);
-                    currentRoom = newRoom;
-                } else {
-                    sendMessage("SERVER: Comando /join inválido.\nUse: /join #<nome_da_sala>\n");
+    private void writeLoop() {
+        // Blocos codificados do lote atual; os bytes dos frames compartilhados não são copiados
+        List<ByteBuffer> pending = new ArrayList<>();
+        long[] pendingBytes = new long[1];
+        WireEncoder.ChunkSink sink = chunk -> {
+            pending.add(ByteBuffer.wrap(chunk));
+            pendingBytes[0] += chunk.length;
+        };
+        long delayNanos = TimeUnit.MICROSECONDS.toNanos(flushPolicy.delayMicros());
+        try {
+            while (true) {
+                // Bloqueia até chegar um frame; close() e abort() acordam a escritora com a fila fechada
+                MessageFrame frame = outboundQueue.take();
+                if (frame == null) {
+                    break;
                 }
-                break;
-            case "/private":
-                // Validação da sintaxe e lógica de envio privado
-                if (parts.length < 2) {
-                    sendMessage("SERVER: Comando /private inválido. Uso: /private <usuario> <mensagem>");
-                    return;
+                int frames = 1;
+                encoder.encode(frame, sink);
+
+                // Junta ao lote o que já está na fila e, se ainda for pequeno, o que chegar dentro do prazo
+                long deadline = System.nanoTime() + delayNanos;
+                while (pendingBytes[0] < flushPolicy.maxBytes()) {
+                    MessageFrame next = outboundQueue.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || (next = outboundQueue.take(wait, TimeUnit.NANOSECONDS)) == null) {
+                            break;
+                        }
+                    }
+                    encoder.encode(next, sink);
+                    frames++;
                 }
-                String messageContent = parts[1].trim();
-                int firstSpace = messageContent.indexOf(' ');
+                flush(pending, frames, pendingBytes[0]);
+                pending.clear();
+                pendingBytes[0] = 0;
+            }
+        } catch (IOException e) {
+            // Falha de escrita: o loop de leitura percebe o socket fechado e finaliza a sessão
+            outboundQueue.abort();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeSocket();
+        }
+    }
 
-                if (firstSpace == -1) {
-                    sendMessage("SERVER: Comando /private inválido. Uso: /private <usuario> <mensagem>");
-                    return;
-                }
+    /**
+     * Escreve o lote com escritas vetorizadas, repetindo enquanto o socket aceitar só parte dos bytes.
+     */
+    private void flush(List<ByteBuffer> pending, int frames, long bytes) throws IOException {
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[0]);
+        int first = 0;
+        int calls = 0;
+        while (first < buffers.length) {
+            channel.write(buffers, first, buffers.length - first);
+            calls++;
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+        ServerMetrics.socketWrites(calls, frames, bytes);
+    }
 
-                String targetUser = messageContent.substring(0, firstSpace).trim();
-                String privateMessage = messageContent.substring(firstSpace).trim();
+    /**
+     * Encerra a conexão: a fila deixa de aceitar mensagens e o socket é fechado
+     * assim que as mensagens pendentes forem escritas.
+     */
+    @Override
+    public void close() {
+        outboundQueue.close();
+        if (!writerStarted) {
+            closeSocket();
+        }
+    }
 
-                if (targetUser.equalsIgnoreCase(userName)) {
-                    sendMessage("SERVER: Você não pode enviar mensagem privada para si mesmo.");
-                } else if (roomManager.sendPrivateMessage(userName, targetUser, privateMessage)) {
-                    // O RoomManager já envia o feedback para o remetente e para o destinatário
-                } else {
-                    sendMessage("SERVER: O usuário '" + targetUser + "' não foi encontrado ou está desconectado.");
-                }
-                break;
-            case "/leave":
-                // Não pode sair do lobby
-                if (!currentRoom.equals("lobby")) {
-                    roomManager.leaveRoom(this, userName, currentRoom, "lobby");
-                    currentRoom = "lobby";
-                } else {
-                    sendMessage("SERVER: Você já está no lobby.\nUse /join #<sala> para mudar.");
-                }
-                break;
-            case "/exit":
-            case "/quit":
-                sendMessage("SERVER: Encerrando conexão...");
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
+    @Override
+    public void abort() {
+        outboundQueue.abort();
+        closeSocket();
+    }
 
-                }
-                break;
-            default:
-                sendMessage("SERVER: Comando desconhecido ou inválido: " + command);
-                break;
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            //Erro ao fechar o socker, não preciso tratar
         }
     }
 
@@ -183,7 +207,18 @@ public class ClientHandler implements Runnable{
      * Obtém o nome de usuário deste cliente.
      * @return O nome de usuário do cliente.
      */
+    @Override
     public String getUserName() {
-        return userName;
+        return session.getUserName();
+    }
+
+    @Override
+    public WireEncoder getEncoder() {
+        return encoder;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
     }
 }
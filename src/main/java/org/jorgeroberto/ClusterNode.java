@@ -0,0 +1,583 @@
+package org.jorgeroberto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Nó de um cluster de servidores de chat ligados por TCP.
+ * Os pares vêm de uma lista estática de endereços (a mesma lista pode ser usada em
+ * todos os nós; o próprio endereço é reconhecido e ignorado). Cada nó abre uma conexão
+ * para cada par e envia somente por ela; o que recebe chega pelas conexões abertas pelos pares.
+ *
+ * Cada nó publica as salas em que tem membros locais e os usuários conectados a ele:
+ * um broadcast só é encaminhado aos nós com membros na sala, e uma mensagem privada
+ * vai direto ao nó do destinatário. Os frames de cada par são enfileirados e escritos
+ * em lotes, com um único flush por lote.
+ *
+ * Só são aceitas conexões vindas dos endereços da lista de pares. A identificação é mútua,
+ * com um segredo compartilhado: cada lado envia um nonce e o outro responde com o
+ * HMAC-SHA256 do papel (quem abriu ou quem aceitou a conexão), dos dois nonces e do próprio
+ * id, de modo que o segredo nunca trafega na rede e a resposta obtida numa conexão não serve
+ * como autenticação em outra.
+ * Textos recebidos de um par são limitados ao tamanho máximo de uma mensagem do protocolo.
+ */
+public class ClusterNode implements AutoCloseable {
+
+    // Frames entre nós: [tipo][campos]; textos são UTF-8 prefixados pelo tamanho (-1 = null)
+    private static final byte HELLO = 1;
+    private static final byte ROOM = 2;
+    private static final byte USER = 3;
+    private static final byte BROADCAST = 4;
+    private static final byte PRIVATE = 5;
+    private static final byte AUTH = 6;
+
+    private static final int QUEUE_CAPACITY = 65_536;
+    private static final int MAX_BATCH = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int NONCE_BYTES = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    // Papéis no handshake, incluídos no HMAC: quem abriu a conexão e quem a aceitou
+    private static final byte[] INITIATOR = "init".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESPONDER = "resp".getBytes(StandardCharsets.US_ASCII);
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    /**
+     * Frame pendente para um par. Em ROOM e USER só o nome é guardado:
+     * a presença é lida no momento do envio, então avisos fora de ordem não deixam estado errado.
+     */
+    private record Outbound(byte type, String first, String second, String third) {
+    }
+
+    /**
+     * Estado publicado por um nó remoto, válido enquanto a conexão aberta por ele durar.
+     */
+    private static final class RemoteNode {
+        private final String id;
+        private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        private final Set<String> users = ConcurrentHashMap.newKeySet();
+
+        private RemoteNode(String id) {
+            this.id = id;
+        }
+    }
+
+    private final String nodeId;
+    private final int port;
+    private final RoomManager roomManager;
+    private final byte[] secret;
+    private final int maxStringBytes;
+    private final SecureRandom random = new SecureRandom();
+    private final List<PeerLink> peers = new ArrayList<>();
+    private final Map<String, RemoteNode> remoteNodes = new ConcurrentHashMap<>();
+    // Diretório de usuários dos outros nós, usado para rotear mensagens privadas
+    private final Map<String, RemoteNode> remoteUsers = new ConcurrentHashMap<>();
+    // Conexões de saída já identificadas, pelo id do nó remoto
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    /**
+     * Construtor do nó.
+     * @param nodeId Identificador único do nó no cluster.
+     * @param port A porta TCP usada pelos outros nós.
+     * @param peerAddresses Os endereços de cluster dos pares, os únicos aceitos na porta do cluster.
+     * @param secret O segredo compartilhado pelos nós.
+     * @param maxStringBytes Tamanho máximo de um texto recebido de um par, em bytes.
+     * @param roomManager O gerenciador de salas local.
+     */
+    public ClusterNode(String nodeId, int port, List<InetSocketAddress> peerAddresses, String secret, int maxStringBytes,
+                       RoomManager roomManager) {
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("O segredo do cluster não pode ser vazio");
+        }
+        this.nodeId = nodeId;
+        this.port = port;
+        this.roomManager = roomManager;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.maxStringBytes = maxStringBytes;
+        for (InetSocketAddress address : peerAddresses) {
+            peers.add(new PeerLink(address));
+        }
+    }
+
+    /**
+     * Converte uma lista "host:porta,host:porta" em endereços.
+     * @throws IllegalArgumentException se algum endereço for inválido.
+     */
+    public static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Endereço de par inválido: " + entry);
+            }
+            addresses.add(new InetSocketAddress(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    /**
+     * Abre a porta do cluster e começa a conectar aos pares.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        roomManager.attachCluster(this);
+        Thread.ofPlatform().daemon().name("cluster-accept").start(this::acceptLoop);
+        for (PeerLink peer : peers) {
+            Thread.ofPlatform().daemon().name("cluster-peer-" + peer.address).start(peer::run);
+        }
+        System.out.println("CLUSTER: Nó " + nodeId + " aguardando pares na porta " + port + " ("
+                + peers.size() + " pares configurados)");
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Encaminha um broadcast aos nós que têm membros na sala.
+     * @param roomName A sala.
+     * @param frame A mensagem (aviso do servidor ou mensagem de usuário).
+     */
+    void forwardBroadcast(String roomName, MessageFrame frame) {
+        if (links.isEmpty()) {
+            return;
+        }
+        Outbound message = null;
+        for (RemoteNode node : remoteNodes.values()) {
+            if (!node.rooms.contains(roomName)) {
+                continue;
+            }
+            PeerLink link = links.get(node.id);
+            if (link != null) {
+                if (message == null) {
+                    String user = frame.kind() == MessageFrame.Kind.CHAT ? frame.user() : null;
+                    message = new Outbound(BROADCAST, roomName, user, frame.text());
+                }
+                link.offer(message);
+            }
+        }
+    }
+
+    /**
+     * Roteia uma mensagem privada ao nó em que o destinatário está conectado.
+     * @return true se o destinatário foi encontrado em outro nó.
+     */
+    boolean forwardPrivate(String sender, String target, String message) {
+        RemoteNode node = remoteUsers.get(target);
+        PeerLink link = node != null ? links.get(node.id) : null;
+        return link != null && link.offer(new Outbound(PRIVATE, sender, target, message));
+    }
+
+    /**
+     * Avisa os pares que uma sala passou a ter membros locais ou ficou vazia.
+     */
+    void roomChanged(String roomName) {
+        publish(new Outbound(ROOM, roomName, null, null));
+    }
+
+    /**
+     * Indica se o usuário está conectado a outro nó, segundo os últimos avisos dos pares.
+     */
+    boolean hasRemoteUser(String userName) {
+        return remoteUsers.containsKey(userName);
+    }
+
+    /**
+     * Avisa os pares que um usuário conectou ou desconectou deste nó.
+     */
+    void userChanged(String userName) {
+        publish(new Outbound(USER, userName, null, null));
+    }
+
+    private void publish(Outbound message) {
+        for (PeerLink link : links.values()) {
+            link.offer(message);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!isPeer(socket.getInetAddress())) {
+                    System.err.println("CLUSTER: Conexão recusada de " + socket.getRemoteSocketAddress()
+                            + ": endereço fora da lista de pares.");
+                    socket.close();
+                    continue;
+                }
+                Thread.ofPlatform().daemon().name("cluster-in-" + socket.getRemoteSocketAddress()).start(() -> serve(socket));
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("CLUSTER: Erro ao aceitar conexão de par: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Se o endereço é o de algum par configurado (resolvido a cada conexão, pois o DNS pode mudar).
+     */
+    private boolean isPeer(InetAddress address) {
+        for (PeerLink peer : peers) {
+            try {
+                for (InetAddress candidate : InetAddress.getAllByName(peer.address.getHostString())) {
+                    if (candidate.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // Par sem endereço no momento: não corresponde
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Conexão aberta por um par: responde à identificação e aplica os frames recebidos.
+     * Handshake: HELLO(id, nonce) do par; HELLO(id, nonce, mac) deste nó; AUTH(mac) do par.
+     */
+    private void serve(Socket socket) {
+        RemoteNode node = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readByte() != HELLO) {
+                return;
+            }
+            String id = readString(in);
+            byte[] peerNonce = readNonce(in);
+            byte[] nonce = newNonce();
+            out.writeByte(HELLO);
+            writeString(out, nodeId);
+            out.write(nonce);
+            out.write(mac(RESPONDER, peerNonce, nonce, nodeId));
+            out.flush();
+            if (id == null || id.equals(nodeId)) {
+                // Conexão do próprio nó: a resposta acima basta para ele reconhecer o endereço
+                return;
+            }
+            if (in.readByte() != AUTH || !verify(in, INITIATOR, peerNonce, nonce, id)) {
+                System.err.println("CLUSTER: Conexão recusada de " + socket.getRemoteSocketAddress()
+                        + ": falha na autenticação do nó " + id + ".");
+                return;
+            }
+            socket.setSoTimeout(0);
+
+            node = new RemoteNode(id);
+            RemoteNode previous = remoteNodes.put(id, node);
+            if (previous != null) {
+                forget(previous);
+            }
+            while (running) {
+                receive(node, in);
+            }
+        } catch (EOFException e) {
+            // O par encerrou a conexão
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("CLUSTER: Conexão com o nó " + (node != null ? node.id : socket.getRemoteSocketAddress())
+                        + " encerrada: " + e.getMessage());
+            }
+        } finally {
+            if (node != null && remoteNodes.remove(node.id, node)) {
+                forget(node);
+            }
+        }
+    }
+
+    private void receive(RemoteNode node, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == ROOM) {
+            String roomName = readString(in);
+            if (in.readBoolean()) {
+                node.rooms.add(roomName);
+            } else {
+                node.rooms.remove(roomName);
+            }
+        } else if (type == USER) {
+            String userName = readString(in);
+            if (in.readBoolean()) {
+                node.users.add(userName);
+                remoteUsers.put(userName, node);
+            } else {
+                node.users.remove(userName);
+                remoteUsers.remove(userName, node);
+            }
+        } else if (type == BROADCAST) {
+            String roomName = readString(in);
+            String user = readString(in);
+            String text = readString(in);
+            ServerMetrics.clusterReceived();
+            roomManager.deliverRemote(roomName, user != null ? MessageFrame.chat(roomName, user, text) : MessageFrame.of(text));
+        } else if (type == PRIVATE) {
+            String sender = readString(in);
+            String target = readString(in);
+            String text = readString(in);
+            ServerMetrics.clusterReceived();
+            roomManager.deliverRemotePrivate(sender, target, text);
+        } else {
+            throw new IOException("Frame de cluster desconhecido: " + type);
+        }
+    }
+
+    /**
+     * Descarta o estado publicado por um nó que saiu do cluster.
+     */
+    private void forget(RemoteNode node) {
+        for (String userName : node.users) {
+            remoteUsers.remove(userName, node);
+        }
+    }
+
+    private byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private static byte[] readNonce(DataInputStream in) throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        in.readFully(nonce);
+        return nonce;
+    }
+
+    /**
+     * HMAC-SHA256, com o segredo do cluster, do papel de quem assina, do nonce de quem abriu a
+     * conexão, do nonce de quem a aceitou e do id de quem assina. Papéis e nonces têm tamanho
+     * fixo, então a concatenação não é ambígua.
+     */
+    private byte[] mac(byte[] role, byte[] initiatorNonce, byte[] responderNonce, String id) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            mac.update(role);
+            mac.update(initiatorNonce);
+            mac.update(responderNonce);
+            return mac.doFinal(id.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HMAC indisponível: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Lê o HMAC enviado pelo outro lado e o compara, em tempo constante, com o esperado.
+     */
+    private boolean verify(DataInputStream in, byte[] role, byte[] initiatorNonce, byte[] responderNonce, String id)
+            throws IOException {
+        byte[] expected = mac(role, initiatorNonce, responderNonce, id);
+        byte[] received = new byte[expected.length];
+        in.readFully(received);
+        return MessageDigest.isEqual(expected, received);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > maxStringBytes) {
+            throw new IOException("Texto excede o limite do protocolo de cluster: " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Ignorado no encerramento
+        }
+        for (PeerLink peer : peers) {
+            peer.close();
+        }
+    }
+
+    /**
+     * Conexão de saída para um par, com fila própria e reconexão automática.
+     */
+    private final class PeerLink {
+        private final InetSocketAddress address;
+        private final BlockingQueue<Outbound> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile Socket socket;
+        private volatile Thread thread;
+
+        private PeerLink(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private boolean offer(Outbound message) {
+            if (queue.offer(message)) {
+                return true;
+            }
+            ServerMetrics.clusterDropped();
+            return false;
+        }
+
+        private void run() {
+            thread = Thread.currentThread();
+            boolean warned = false;
+            while (running) {
+                String peerId = null;
+                try (Socket s = new Socket()) {
+                    socket = s;
+                    s.connect(address, CONNECT_TIMEOUT_MILLIS);
+                    s.setTcpNoDelay(true);
+                    s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE));
+                    byte[] nonce = newNonce();
+                    out.writeByte(HELLO);
+                    writeString(out, nodeId);
+                    out.write(nonce);
+                    out.flush();
+                    if (in.readByte() != HELLO) {
+                        // Inclui o fechamento imediato por um nó que ignora este endereço ou id
+                        throw new IOException("identificação inválida");
+                    }
+                    String id = readString(in);
+                    if (id == null || nodeId.equals(id)) {
+                        // O endereço é o do próprio nó
+                        return;
+                    }
+                    byte[] peerNonce = readNonce(in);
+                    if (!verify(in, RESPONDER, nonce, peerNonce, id)) {
+                        throw new IOException("falha na autenticação do nó " + id);
+                    }
+                    out.writeByte(AUTH);
+                    out.write(mac(INITIATOR, nonce, peerNonce, nodeId));
+                    peerId = id;
+                    // Registrado antes do snapshot: alterações posteriores entram na fila e chegam depois dele
+                    links.put(peerId, this);
+                    System.out.println("CLUSTER: Conectado ao nó " + peerId + " em " + address);
+                    warned = false;
+                    sendSnapshot(out);
+                    sendLoop(out);
+                } catch (IOException e) {
+                    if (running && (peerId != null || !warned)) {
+                        System.err.println("CLUSTER: Par " + address + " indisponível (" + e.getMessage()
+                                + "), tentando novamente.");
+                        warned = true;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (peerId != null) {
+                        links.remove(peerId, this);
+                        queue.clear();
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Estado atual deste nó, enviado a cada nova conexão.
+         */
+        private void sendSnapshot(DataOutputStream out) throws IOException {
+            for (String roomName : roomManager.localRooms()) {
+                write(out, new Outbound(ROOM, roomName, null, null));
+            }
+            for (String userName : roomManager.localUsers()) {
+                write(out, new Outbound(USER, userName, null, null));
+            }
+            out.flush();
+        }
+
+        /**
+         * Escreve a fila em lotes: tudo que se acumulou desde o último envio sai com um único flush.
+         */
+        private void sendLoop(DataOutputStream out) throws IOException, InterruptedException {
+            socket.setSoTimeout(0);
+            List<Outbound> batch = new ArrayList<>(MAX_BATCH);
+            while (running) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Outbound message : batch) {
+                    write(out, message);
+                }
+                out.flush();
+                ServerMetrics.clusterSent(batch.size());
+                batch.clear();
+            }
+        }
+
+        private void write(DataOutputStream out, Outbound message) throws IOException {
+            out.writeByte(message.type());
+            writeString(out, message.first());
+            if (message.type() == ROOM) {
+                out.writeBoolean(roomManager.hasLocalMembers(message.first()));
+            } else if (message.type() == USER) {
+                out.writeBoolean(roomManager.getClient(message.first()) != null);
+            } else {
+                writeString(out, message.second());
+                writeString(out, message.third());
+            }
+        }
+
+        private void close() {
+            Thread current = thread;
+            if (current != null) {
+                current.interrupt();
+            }
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // Ignorado no encerramento
+                }
+            }
+        }
+    }
+}
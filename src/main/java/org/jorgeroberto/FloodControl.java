@@ -0,0 +1,116 @@
+package org.jorgeroberto;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controle de flood de uma conexão. As mensagens recebidas passam por um token bucket;
+ * as que excedem o limite são descartadas antes de chegar ao broadcast. Enquanto o cliente
+ * insiste acima do limite, a reação escala: aviso, pausa na leitura do socket e, depois de
+ * algumas pausas, desconexão. Usado apenas pela thread que lê a conexão.
+ */
+public final class FloodControl {
+
+    /**
+     * Limites de mensagens recebidas.
+     * @param userRate Mensagens por segundo de cada usuário (0 desativa o limite).
+     * @param userBurst Rajada permitida a cada usuário.
+     * @param roomRate Mensagens por segundo de cada sala (0 desativa o limite).
+     * @param roomBurst Rajada permitida a cada sala.
+     * @param maxLineBytes Tamanho máximo de uma linha do protocolo de texto.
+     */
+    public record Policy(double userRate, int userBurst, double roomRate, int roomBurst, int maxLineBytes) {
+        public static final Policy DEFAULT = new Policy(5, 20, 500, 1000, 4096);
+        public static final Policy UNLIMITED = new Policy(0, 0, 0, 0, BinaryProtocol.MAX_PAYLOAD);
+    }
+
+    /**
+     * Resultado da verificação de uma mensagem.
+     */
+    enum Verdict {
+        ALLOW, DROP, DISCONNECT
+    }
+
+    // Mensagens descartadas que levam a uma pausa na leitura
+    private static final int DROPS_PER_PAUSE = 20;
+    private static final long PAUSE_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // Pausas toleradas antes de desconectar
+    private static final int MAX_PAUSES = 3;
+    // Sem excessos por esse tempo, a escalada recomeça do aviso
+    private static final long RESET_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final TokenBucket bucket;
+    private final ChatConnection connection;
+    private boolean warned;
+    private int drops;
+    private int pauses;
+    private long lastDrop;
+    private boolean paused;
+    private long pausedUntil;
+
+    /**
+     * Construtor.
+     * @param policy Os limites configurados.
+     * @param connection A conexão, usada para avisar o cliente.
+     */
+    FloodControl(Policy policy, ChatConnection connection) {
+        this.bucket = policy.userRate() > 0 ? new TokenBucket(policy.userRate(), policy.userBurst()) : null;
+        this.connection = connection;
+    }
+
+    /**
+     * Verifica uma mensagem recebida.
+     * @return ALLOW se ela pode ser processada, DROP se deve ser descartada
+     * ou DISCONNECT se o cliente deve ser desconectado.
+     */
+    Verdict check() {
+        if (bucket == null || bucket.tryAcquire()) {
+            return Verdict.ALLOW;
+        }
+        ServerMetrics.floodDropped(false);
+        long now = System.nanoTime();
+        // Linhas que já estavam no buffer quando a pausa começou não contam para a escalada
+        if (pauseNanos() > 0) {
+            return Verdict.DROP;
+        }
+        if (now - lastDrop > RESET_NANOS) {
+            warned = false;
+            drops = 0;
+            pauses = 0;
+        }
+        lastDrop = now;
+        if (!warned) {
+            warned = true;
+            connection.sendMessage("SERVER: Você está enviando mensagens rápido demais. As mensagens acima do limite serão descartadas.");
+            return Verdict.DROP;
+        }
+        if (++drops < DROPS_PER_PAUSE) {
+            return Verdict.DROP;
+        }
+        drops = 0;
+        if (++pauses > MAX_PAUSES) {
+            ServerMetrics.floodDisconnected();
+            return Verdict.DISCONNECT;
+        }
+        ServerMetrics.floodPaused();
+        paused = true;
+        pausedUntil = now + PAUSE_NANOS;
+        connection.sendMessage("SERVER: Leitura pausada por " + TimeUnit.NANOSECONDS.toSeconds(PAUSE_NANOS)
+                + "s por excesso de mensagens. Insistir encerrará a conexão.");
+        return Verdict.DROP;
+    }
+
+    /**
+     * Tempo que a leitura do socket ainda deve ficar pausada, em nanossegundos (0 se não houver pausa).
+     */
+    long pauseNanos() {
+        if (!paused) {
+            return 0;
+        }
+        long remaining = pausedUntil - System.nanoTime();
+        if (remaining <= 0) {
+            paused = false;
+            return 0;
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,191 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressão opcional de frames do protocolo binário.
+ * <p>
+ * É negociada junto com o protocolo: o cliente envia {@value BinaryProtocol#HELLO} seguido de
+ * " {@value #NAME}" e, se o servidor aceitar, a confirmação também termina com " {@value #NAME}".
+ * A partir daí, frames (ou lotes de frames, como o histórico reenviado no /join) com pelo menos
+ * {@link #getMinBytes()} bytes podem chegar dentro de um frame COMPRESSED, cujo payload é
+ * [tamanho original: varint][deflate cru]. O conteúdo descomprimido é uma sequência de frames
+ * comuns.
+ * <p>
+ * Cada frame é comprimido de forma independente, sem estado entre frames, para que o mesmo
+ * resultado seja reaproveitado por todos os destinatários. Para que mensagens curtas também
+ * diminuam, os dois lados usam um dicionário fixo com os textos dos avisos mais comuns.
+ * <p>
+ * Medido com textos em português: os avisos de entrada e saída, de 25 bytes (nome de uma
+ * letra) a uns 45, caem para 12 a 29 bytes, daí o limite padrão de 24 bytes. Já as mensagens de chat levam dentro do
+ * bloco os nomes da sala e do usuário, que fora dele vão por identificador, e só compensam a
+ * partir de uns 100 bytes de texto; por isso o resultado é comparado com o tamanho que a
+ * conexão enviaria sem compressão, e não com o dos frames autocontidos.
+ */
+final class FrameCompression {
+
+    static final String NAME = "DEFLATE";
+    static final int DEFAULT_MIN_BYTES = 24;
+
+    // Os textos fixos dos avisos, do menos ao mais frequente: o deflate codifica com menos
+    // bits as referências próximas do fim do dicionário
+    static final byte[] DICTIONARY = String.join("",
+            ServerLifecycle.SHUTDOWN_NOTICE,
+            RoomManager.HISTORY_HINT,
+            RoomManager.REPLAY_HEADER,
+            RoomManager.REPLAY_ROOM,
+            RoomManager.YOU_LEFT,
+            RoomManager.YOU_ENTERED,
+            RoomManager.ENTERED_LOBBY,
+            RoomManager.RETURNED_TO_LOBBY,
+            RoomManager.LEFT_ROOM,
+            RoomManager.ENTERED_ROOM,
+            "SERVER: ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    // Compressores reaproveitados entre as threads escritoras; cada um reserva memória nativa
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final int MAX_POOLED = 64;
+
+    private static volatile int minBytes = DEFAULT_MIN_BYTES;
+
+    private FrameCompression() {
+    }
+
+    /**
+     * Tamanho mínimo, em bytes codificados, para um frame ser comprimido. 0 desativa a compressão.
+     */
+    static int getMinBytes() {
+        return minBytes;
+    }
+
+    /**
+     * Define o tamanho mínimo para comprimir um frame. 0 faz o servidor recusar a compressão
+     * na negociação.
+     */
+    static void setMinBytes(int value) {
+        minBytes = Math.max(0, value);
+    }
+
+    /**
+     * Indica se o servidor aceita negociar a compressão.
+     */
+    static boolean isEnabled() {
+        return minBytes > 0;
+    }
+
+    /**
+     * Tempo de CPU da thread atual, em nanossegundos (tempo de relógio se a JVM não o medir).
+     */
+    static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Comprime uma sequência de frames codificados.
+     * @param frames Os frames, já codificados no protocolo binário na forma autocontida.
+     * @param sendBytes Quantos bytes a conexão enviaria sem compressão.
+     * @return O frame COMPRESSED, ou null se ele não for menor que sendBytes.
+     */
+    static byte[] compress(byte[] frames, int sendBytes) {
+        long start = cpuTime();
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        byte[] output;
+        int length;
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(frames);
+            deflater.finish();
+            output = new byte[frames.length + 16];
+            length = 0;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            if (!deflater.finished()) {
+                length = Integer.MAX_VALUE;
+            }
+        } finally {
+            deflater.reset();
+            if (DEFLATERS.size() < MAX_POOLED) {
+                DEFLATERS.offer(deflater);
+            } else {
+                deflater.end();
+            }
+        }
+        byte[] frame = null;
+        // Só compensa se o frame COMPRESSED, com cabeçalho, ficar menor que o envio sem compressão
+        if (length != Integer.MAX_VALUE
+                && length + 2 + BinaryProtocol.varintSize(frames.length) + BinaryProtocol.varintSize(length) < sendBytes) {
+            frame = new BinaryProtocol.FrameBuilder(BinaryProtocol.COMPRESSED)
+                    .varint(frames.length).bytes(output, 0, length).build();
+        }
+        ServerMetrics.frameCompressed(sendBytes, frame != null ? frame.length : sendBytes, cpuTime() - start);
+        return frame;
+    }
+
+    /**
+     * Descomprime o payload de um frame COMPRESSED.
+     * @return Os frames originais, prontos para serem lidos em sequência.
+     */
+    static ByteBuffer decompress(ByteBuffer payload) throws IOException {
+        int length = BinaryProtocol.readVarint(payload);
+        if (length > BinaryProtocol.MAX_PAYLOAD) {
+            throw new IOException("Frame comprimido grande demais: " + length);
+        }
+        byte[] frames = new byte[length];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            inflater.setDictionary(DICTIONARY);
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(frames, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != length) {
+                throw new IOException("Frame comprimido truncado");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Frame comprimido inválido: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        payload.position(payload.limit());
+        return ByteBuffer.wrap(frames);
+    }
+
+    /**
+     * Junta as codificações binárias de vários frames, na ordem.
+     */
+    static byte[] concat(byte[][] parts) {
+        int total = 0;
+        for (byte[] part : parts) {
+            total += part.length;
+        }
+        byte[] joined = Arrays.copyOf(parts[0], total);
+        int pos = parts[0].length;
+        for (int i = 1; i < parts.length; i++) {
+            System.arraycopy(parts[i], 0, joined, pos, parts[i].length);
+            pos += parts[i].length;
+        }
+        return joined;
+    }
+}
@@ -0,0 +1,143 @@
+package org.jorgeroberto;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detecção de conexões inativas com heartbeat de aplicação (PING/PONG).
+ * Qualquer byte recebido conta como atividade. Depois de um período sem receber nada,
+ * o servidor envia PING; se nada chegar até o fim do prazo do PONG, a conexão é
+ * considerada morta (por exemplo, um cliente que sumiu sem FIN) e é encerrada, saindo
+ * das salas e do diretório de usuários.
+ * Todos os prazos ficam em uma única TimerWheel. A leitura do socket apenas grava o
+ * instante da última atividade; o prazo é conferido e reagendado só quando vence.
+ * No protocolo de texto, PING e PONG são linhas de controle, iniciadas pelo caractere
+ * reservado {@link #CONTROL} (como no CTCP do IRC), para não se confundirem com mensagens
+ * digitadas; no binário, são os frames PING e PONG. Nos dois casos contam no limite de
+ * mensagens do usuário.
+ */
+public final class Heartbeat implements AutoCloseable {
+
+    // Início reservado das linhas de controle do protocolo de texto
+    public static final char CONTROL = '\u0001';
+    public static final String PING_LINE = CONTROL + "PING";
+    public static final String PONG_LINE = CONTROL + "PONG";
+
+    public static final long DEFAULT_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    public static final long DEFAULT_PONG_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final long idleNanos;
+    private final long pongTimeoutNanos;
+    private final TimerWheel wheel = new TimerWheel("heartbeat-wheel", TICK_MILLIS, WHEEL_SIZE);
+
+    /**
+     * Construtor.
+     * @param idleMillis Tempo sem receber nada após o qual o servidor envia PING.
+     * @param pongTimeoutMillis Tempo de espera por qualquer resposta após o PING.
+     */
+    public Heartbeat(long idleMillis, long pongTimeoutMillis) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.pongTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(pongTimeoutMillis);
+    }
+
+    /**
+     * Passa a vigiar uma conexão recém-aberta.
+     * @param connection A conexão.
+     * @return O vigia da conexão, que deve ser avisado a cada leitura e parado ao desconectar.
+     */
+    Watch watch(ChatConnection connection) {
+        Watch watch = new Watch(connection);
+        watch.schedule(idleNanos);
+        return watch;
+    }
+
+    /**
+     * Quantidade de prazos de heartbeat agendados.
+     */
+    int scheduled() {
+        return wheel.size();
+    }
+
+    @Override
+    public void close() {
+        wheel.close();
+    }
+
+    /**
+     * Estado do heartbeat de uma conexão.
+     */
+    final class Watch {
+        private final ChatConnection connection;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean stopped;
+        private volatile TimerWheel.Timeout timeout;
+        // Instante do PING sem resposta (0 se não houver); acessado apenas pela thread da roda
+        private long pingedAt;
+
+        private Watch(ChatConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Registra atividade da conexão. Chamado a cada leitura; não mexe na roda.
+         */
+        void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        /**
+         * Para de vigiar a conexão, liberando seu prazo na roda.
+         */
+        void stop() {
+            stopped = true;
+            TimerWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private void schedule(long delayNanos) {
+            if (!stopped) {
+                timeout = wheel.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Confere o prazo. Executado na thread da roda.
+         */
+        private void check() {
+            if (stopped) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (pingedAt != 0) {
+                if (lastActivity - pingedAt < 0) {
+                    // Nada chegou desde o PING
+                    reap();
+                    return;
+                }
+                pingedAt = 0;
+            }
+            long idle = now - lastActivity;
+            if (idle < idleNanos) {
+                // Houve atividade: volta a esperar o restante do período
+                schedule(idleNanos - idle);
+                return;
+            }
+            pingedAt = now;
+            ServerMetrics.heartbeatPing();
+            connection.send(MessageFrame.PING);
+            schedule(pongTimeoutNanos);
+        }
+
+        private void reap() {
+            stopped = true;
+            ServerMetrics.connectionReaped();
+            System.err.println("SERVIDOR: Conexão sem resposta ao PING encerrada: "
+                    + (connection.getUserName() != null ? connection.getUserName() : "Cliente"));
+            connection.abort();
+        }
+    }
+}
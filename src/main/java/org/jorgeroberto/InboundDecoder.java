@@ -0,0 +1,149 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Separa os bytes recebidos de uma conexão em linhas de texto ou frames binários.
+ * Recebe os dados em pedaços arbitrários (como chegam do socket) e entrega cada
+ * unidade completa ao handler. Começa no modo texto e pode mudar para o modo binário
+ * após a negociação, inclusive no meio de um mesmo pedaço de dados.
+ * Linhas e payloads de frames têm o mesmo limite de tamanho.
+ */
+final class InboundDecoder {
+
+    /**
+     * Recebe as unidades decodificadas. O payload só é válido durante a chamada.
+     */
+    interface Handler {
+        void onLine(String line) throws IOException;
+
+        void onFrame(int opcode, ByteBuffer payload) throws IOException;
+    }
+
+    private final Handler handler;
+    // Limite de uma linha de texto; sem ele, um cliente sem '\n' faria o buffer crescer sem fim
+    private final int maxLineBytes;
+    // Limite do payload de um frame binário, o mesmo de uma linha
+    private final int maxFrameBytes;
+    private byte[] buffer = new byte[256];
+    private int start;
+    private int end;
+    // Bytes a partir de start já verificados sem encontrar '\n'
+    private int scanned;
+    private boolean binary;
+
+    InboundDecoder(Handler handler, int maxLineBytes) {
+        this.handler = handler;
+        this.maxLineBytes = maxLineBytes;
+        this.maxFrameBytes = Math.min(maxLineBytes, BinaryProtocol.MAX_PAYLOAD);
+    }
+
+    /**
+     * Passa a interpretar os próximos bytes como frames binários.
+     */
+    void switchToBinary() {
+        binary = true;
+    }
+
+    /**
+     * Acrescenta dados recebidos e entrega todas as unidades completas.
+     * @throws IOException se o cliente violar o protocolo (ex: frame grande demais).
+     */
+    void feed(byte[] data, int offset, int length) throws IOException {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+        process();
+    }
+
+    private void process() throws IOException {
+        while (start < end) {
+            if (!binary) {
+                int newline = -1;
+                for (int i = start + scanned; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline < 0) {
+                    scanned = end - start;
+                    if (scanned > maxLineBytes) {
+                        throw new IOException("Linha excede o tamanho máximo de " + maxLineBytes + " bytes");
+                    }
+                    break;
+                }
+                if (newline - start > maxLineBytes) {
+                    throw new IOException("Linha excede o tamanho máximo de " + maxLineBytes + " bytes");
+                }
+                int lineEnd = newline;
+                if (lineEnd > start && buffer[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                start = newline + 1;
+                scanned = 0;
+                handler.onLine(line);
+            } else if (!processFrame()) {
+                break;
+            }
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+    }
+
+    /**
+     * Tenta decodificar um frame binário completo a partir de start.
+     * @return false se ainda faltam bytes.
+     */
+    private boolean processFrame() throws IOException {
+        int pos = start + 1;
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            if (pos >= end) {
+                return false;
+            }
+            byte b = buffer[pos++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Cabeçalho de frame inválido");
+            }
+        }
+        if (length < 0 || length > maxFrameBytes) {
+            throw new IOException("Frame excede o tamanho máximo de " + maxFrameBytes + " bytes: " + length);
+        }
+        if (end - pos < length) {
+            return false;
+        }
+        int opcode = buffer[start] & 0xFF;
+        start = pos + length;
+        handler.onFrame(opcode, ByteBuffer.wrap(buffer, pos, length));
+        return true;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (end + extra <= buffer.length) {
+            return;
+        }
+        // Descarta os bytes já consumidos antes de crescer o buffer
+        int pending = end - start;
+        if (pending + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, pending + extra)];
+            System.arraycopy(buffer, start, grown, 0, pending);
+            buffer = grown;
+        } else {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+        }
+        start = 0;
+        end = pending;
+    }
+}
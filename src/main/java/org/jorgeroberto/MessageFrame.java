@@ -0,0 +1,343 @@
+package org.jorgeroberto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mensagem de saída do servidor, pronta para ser entregue a um ou mais clientes.
+ * Um broadcast cria um único frame imutável e o entrega a todos os destinatários;
+ * cada codificação (texto ou binária) é feita no máximo uma vez e reaproveitada
+ * por todas as conexões que usam aquele protocolo.
+ */
+public final class MessageFrame {
+
+    /**
+     * Tipo da mensagem, que define sua forma em cada protocolo.
+     */
+    enum Kind {
+        NOTICE, CHAT, PRIVATE_FROM, PRIVATE_TO, PING, PONG, SWITCH_TO_BINARY, SWITCH_TO_COMPRESSED, COMPOSITE
+    }
+
+    /**
+     * Marcador enfileirado após a resposta da negociação: a partir dele o
+     * escritor da conexão passa a codificar os frames no protocolo binário.
+     */
+    static final MessageFrame SWITCH_TO_BINARY = new MessageFrame(Kind.SWITCH_TO_BINARY, null, null, "", null);
+    // Como SWITCH_TO_BINARY, mas com a compressão negociada
+    static final MessageFrame SWITCH_TO_COMPRESSED = new MessageFrame(Kind.SWITCH_TO_COMPRESSED, null, null, "", null);
+
+    // Heartbeat: no protocolo de texto, as linhas de controle de Heartbeat
+    static final MessageFrame PING = new MessageFrame(Kind.PING, null, null, Heartbeat.PING_LINE, null);
+    static final MessageFrame PONG = new MessageFrame(Kind.PONG, null, null, Heartbeat.PONG_LINE, null);
+
+    // Contadores globais de codificação, usados para medir a alocação por broadcast
+    private static final LongAdder ENCODED_FRAMES = new LongAdder();
+    private static final LongAdder ENCODED_BYTES = new LongAdder();
+    // Marca um frame cuja compressão já foi tentada e não compensou
+    private static final byte[] UNCOMPRESSED = new byte[0];
+
+    private final Kind kind;
+    private final String room;
+    private final String user;
+    private final String text;
+    private final MessageFrame[] parts;
+
+    // Codificações calculadas sob demanda e compartilhadas entre os destinatários
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+    private volatile byte[] binaryText;
+    private volatile byte[] compressedBytes;
+
+    private MessageFrame(Kind kind, String room, String user, String text, MessageFrame[] parts) {
+        this.kind = kind;
+        this.room = room;
+        this.user = user;
+        this.text = text;
+        this.parts = parts;
+    }
+
+    /**
+     * Cria um frame com um aviso do servidor.
+     * @param message A mensagem, sem o terminador de linha.
+     */
+    public static MessageFrame of(String message) {
+        return new MessageFrame(Kind.NOTICE, null, null, message, null);
+    }
+
+    /**
+     * Cria um frame de mensagem de um usuário em uma sala.
+     * @param room O nome da sala.
+     * @param user O nome do remetente.
+     * @param text O conteúdo digitado pelo usuário.
+     */
+    public static MessageFrame chat(String room, String user, String text) {
+        return new MessageFrame(Kind.CHAT, room, user, text, null);
+    }
+
+    /**
+     * Cria o frame entregue ao destinatário de uma mensagem privada.
+     * @param sender O nome do remetente.
+     * @param text O conteúdo da mensagem.
+     */
+    public static MessageFrame privateFrom(String sender, String text) {
+        return new MessageFrame(Kind.PRIVATE_FROM, null, sender, text, null);
+    }
+
+    /**
+     * Cria o frame de confirmação entregue ao remetente de uma mensagem privada.
+     * @param target O nome do destinatário.
+     * @param text O conteúdo da mensagem.
+     */
+    public static MessageFrame privateTo(String target, String text) {
+        return new MessageFrame(Kind.PRIVATE_TO, null, target, text, null);
+    }
+
+    /**
+     * Junta dois frames em um só, preservando ambos.
+     * Usado pela política COALESCE da fila de saída.
+     */
+    static MessageFrame concat(MessageFrame first, MessageFrame second) {
+        MessageFrame[] firstParts = first.parts();
+        MessageFrame[] secondParts = second.parts();
+        MessageFrame[] joined = new MessageFrame[firstParts.length + secondParts.length];
+        System.arraycopy(firstParts, 0, joined, 0, firstParts.length);
+        System.arraycopy(secondParts, 0, joined, firstParts.length, secondParts.length);
+        return new MessageFrame(Kind.COMPOSITE, null, null, null, joined);
+    }
+
+    /**
+     * Agrupa várias mensagens em um único frame, entregue de uma só vez.
+     * @param frames As mensagens, na ordem de entrega.
+     */
+    public static MessageFrame batch(List<MessageFrame> frames) {
+        if (frames.size() == 1) {
+            return frames.get(0);
+        }
+        List<MessageFrame> joined = new ArrayList<>(frames.size());
+        for (MessageFrame frame : frames) {
+            Collections.addAll(joined, frame.parts());
+        }
+        return new MessageFrame(Kind.COMPOSITE, null, null, null, joined.toArray(new MessageFrame[0]));
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    String room() {
+        return room;
+    }
+
+    String user() {
+        return user;
+    }
+
+    /**
+     * Conteúdo do frame, sem a formatação do protocolo de texto.
+     */
+    String text() {
+        return text;
+    }
+
+    /**
+     * Frames simples que compõem este frame (ele próprio, se não for composto).
+     */
+    MessageFrame[] parts() {
+        return parts != null ? parts : new MessageFrame[]{this};
+    }
+
+    /**
+     * Tamanho aproximado do frame, em caracteres de texto.
+     */
+    public int size() {
+        if (parts == null) {
+            return text.length();
+        }
+        int size = 0;
+        for (MessageFrame part : parts) {
+            size += part.size();
+        }
+        return size;
+    }
+
+    /**
+     * Linha de texto do frame, como é exibida aos clientes do protocolo de texto e gravada no log.
+     */
+    public String render() {
+        switch (kind) {
+            case CHAT:
+                return "[" + user + " em #" + room + "]: " + text;
+            case PRIVATE_FROM:
+                return "(PRIVADO de " + user + "): " + text;
+            case PRIVATE_TO:
+                return "(PRIVADO para " + user + "): " + text;
+            default:
+                return text;
+        }
+    }
+
+    /**
+     * Codificação para o protocolo de texto: a linha UTF-8 terminada em '\n'.
+     * Não deve ser chamado em frames compostos.
+     */
+    byte[] textBytes() {
+        byte[] bytes = textBytes;
+        if (bytes == null) {
+            bytes = (render() + "\n").getBytes(StandardCharsets.UTF_8);
+            count(bytes);
+            textBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Codificação autocontida para o protocolo binário: salas e usuários vão pelo nome,
+     * sem depender dos identificadores de uma conexão. É a forma usada dentro dos blocos
+     * comprimidos e, nos avisos, também a forma enviada sem compressão.
+     * Não deve ser chamado em frames compostos.
+     */
+    byte[] binaryBytes() {
+        byte[] bytes = binaryBytes;
+        if (bytes == null) {
+            BinaryProtocol.FrameBuilder builder;
+            switch (kind) {
+                case CHAT:
+                    builder = new BinaryProtocol.FrameBuilder(BinaryProtocol.ROOM_MESSAGE)
+                            .varint(0).string(room).varint(0).string(user);
+                    break;
+                case PRIVATE_FROM:
+                    builder = new BinaryProtocol.FrameBuilder(BinaryProtocol.PRIVATE_FROM).varint(0).string(user);
+                    break;
+                case PRIVATE_TO:
+                    builder = new BinaryProtocol.FrameBuilder(BinaryProtocol.PRIVATE_TO).varint(0).string(user);
+                    break;
+                case PING:
+                case PONG:
+                    builder = null;
+                    break;
+                default:
+                    builder = new BinaryProtocol.FrameBuilder(BinaryProtocol.NOTICE);
+                    break;
+            }
+            if (builder == null) {
+                // Sem payload
+                bytes = new BinaryProtocol.FrameBuilder(kind == Kind.PING ? BinaryProtocol.PING : BinaryProtocol.PONG).build();
+            } else {
+                bytes = builder.text(text).build();
+            }
+            count(bytes);
+            binaryBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Texto do frame em UTF-8, compartilhado pelas conexões binárias, que enviam antes dele
+     * um cabeçalho com os seus próprios identificadores de sala e usuário.
+     */
+    byte[] binaryText() {
+        byte[] bytes = binaryText;
+        if (bytes == null) {
+            bytes = text.getBytes(StandardCharsets.UTF_8);
+            count(bytes);
+            binaryText = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Codificação binária comprimida (um frame COMPRESSED) deste frame ou, se for composto, de
+     * todas as suas partes em um único bloco. Calculada uma única vez e compartilhada pelos
+     * destinatários que negociaram a compressão.
+     * @return O frame comprimido, ou null se o frame for pequeno demais ou não diminuir.
+     */
+    byte[] compressedBytes() {
+        byte[] bytes = compressedBytes;
+        if (bytes == null) {
+            bytes = UNCOMPRESSED;
+            int minBytes = FrameCompression.getMinBytes();
+            int sendBytes = connectionSize();
+            if (minBytes > 0 && sendBytes >= minBytes) {
+                byte[] plain = parts != null ? partsBinaryBytes() : binaryBytes();
+                if (plain.length <= BinaryProtocol.MAX_PAYLOAD) {
+                    byte[] compressed = FrameCompression.compress(plain, sendBytes);
+                    if (compressed != null) {
+                        count(compressed);
+                        bytes = compressed;
+                    }
+                }
+            }
+            compressedBytes = bytes;
+        }
+        return bytes != UNCOMPRESSED ? bytes : null;
+    }
+
+    /**
+     * Indica se a compressão deste frame já foi calculada.
+     */
+    boolean isCompressionCached() {
+        return compressedBytes != null;
+    }
+
+    /**
+     * Tamanho deste frame (ou da soma das partes) no protocolo binário sem compressão, como a
+     * conexão o envia depois de apresentar a sala e o usuário: com identificadores de um byte
+     * em vez dos nomes.
+     */
+    int connectionSize() {
+        if (parts != null) {
+            int total = 0;
+            for (MessageFrame part : parts) {
+                total += part.connectionSize();
+            }
+            return total;
+        }
+        int ids;
+        switch (kind) {
+            case CHAT:
+                ids = 2;
+                break;
+            case PRIVATE_FROM:
+            case PRIVATE_TO:
+                ids = 1;
+                break;
+            default:
+                return binaryBytes().length;
+        }
+        int payload = ids + binaryText().length;
+        return 1 + BinaryProtocol.varintSize(payload) + payload;
+    }
+
+    /**
+     * Codificações binárias das partes, concatenadas.
+     */
+    private byte[] partsBinaryBytes() {
+        byte[][] encoded = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            encoded[i] = parts[i].binaryBytes();
+        }
+        return FrameCompression.concat(encoded);
+    }
+
+    private static void count(byte[] bytes) {
+        ENCODED_FRAMES.increment();
+        ENCODED_BYTES.add(bytes.length);
+    }
+
+    /**
+     * Número total de codificações feitas desde o início do processo.
+     */
+    public static long getEncodedFrames() {
+        return ENCODED_FRAMES.sum();
+    }
+
+    /**
+     * Número total de bytes codificados desde o início do processo.
+     */
+    public static long getEncodedBytes() {
+        return ENCODED_BYTES.sum();
+    }
+}
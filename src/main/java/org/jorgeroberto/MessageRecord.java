@@ -0,0 +1,19 @@
+package org.jorgeroberto;
+
+/**
+ * Mensagem persistida no MessageStore.
+ * @param seq Número de sequência, crescente dentro de cada log (sala ou privado).
+ * @param timestamp Instante da mensagem, em milissegundos desde a época (nunca decresce dentro de um log).
+ * @param sender O remetente, ou null para avisos do servidor.
+ * @param target A sala ou, no log privado, o destinatário.
+ * @param body O conteúdo da mensagem.
+ */
+public record MessageRecord(long seq, long timestamp, String sender, String target, String body) {
+
+    /**
+     * Reconstrói o frame entregue aos clientes quando a mensagem foi transmitida na sala.
+     */
+    public MessageFrame toFrame() {
+        return sender != null ? MessageFrame.chat(target, sender, body) : MessageFrame.of(body);
+    }
+}
@@ -0,0 +1,641 @@
+package org.jorgeroberto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Armazenamento persistente das mensagens, em substituição aos arquivos de texto por sala.
+ * Cada sala tem seu próprio log em logs/rooms/<sala>/, com o nome da sala codificado em
+ * percentual (ex: "#geral" em "%23geral"), e as mensagens privadas ficam separadas em
+ * logs/private/. Cada log é formado por segmentos com um índice esparso por sequência e por
+ * timestamp, e é limitado por tamanho e por idade (retenção).
+ *
+ * Os logs são abertos sob demanda e fechados após {@value #LOG_IDLE_MINUTES} minutos sem
+ * acesso ou quando o número de logs abertos passa do limite (o usado há mais tempo é fechado).
+ * Um limite global de bytes remove os segmentos selados mais antigos de todos os logs.
+ *
+ * As gravações são feitas apenas pela thread do RoomLogWriter; as leituras podem ser
+ * feitas por qualquer thread.
+ */
+public class MessageStore implements AutoCloseable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 4L * 1024 * 1024 * 1024;
+    public static final int DEFAULT_MAX_OPEN_LOGS = 256;
+
+    static final long LOG_IDLE_MINUTES = 10;
+
+    private static final String PRIVATE_LOG = "private";
+    private static final String LEGACY_DIR = "legacy";
+    private static final String LEGACY_SUFFIX = ".txt";
+    // Formatos dos logs em texto das versões anteriores: "[hora] mensagem"
+    private static final Pattern LEGACY_LINE = Pattern.compile("\\[(\\d{2}:\\d{2}(?::\\d{2}(?:\\.\\d+)?)?)] (.*)");
+    private static final Pattern LEGACY_CHAT = Pattern.compile("\\[(.+?) em #.*?]: (.*)", Pattern.DOTALL);
+    private static final Pattern LEGACY_PRIVATE = Pattern.compile("\\[PRIVADO de (.+?) para (\\S+)]: (.*)", Pattern.DOTALL);
+    private static final int DUMP_PAGE_SIZE = 1000;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final File root;
+    private final File roomsDir;
+    private final File privateDir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final long maxTotalBytes;
+    private final int maxOpenLogs;
+    // Logs abertos, do usado há mais tempo para o mais recente; abertura e fechamento sob o lock
+    private final Map<String, SegmentLog> logs = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock logsLock = new ReentrantLock();
+    private boolean closed;
+
+    /**
+     * Operação sobre um log, repetida com o log reaberto se ele for fechado durante o acesso.
+     */
+    private interface LogOperation<T> {
+        T apply(SegmentLog log) throws IOException;
+    }
+
+    /**
+     * Recebe as mensagens percorridas por {@link #scan(int, RecordVisitor)}.
+     */
+    public interface RecordVisitor {
+        /**
+         * @param record A mensagem. No log privado, target é o destinatário.
+         * @param privateMessage Se a mensagem veio do log privado.
+         * @return false para interromper a varredura.
+         */
+        boolean visit(MessageRecord record, boolean privateMessage);
+    }
+
+    /**
+     * Cria o armazenamento com os limites padrão.
+     * @param root O diretório raiz dos logs.
+     */
+    public MessageStore(File root) {
+        this(root, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param root O diretório raiz dos logs.
+     * @param segmentSize O tamanho máximo de cada segmento, em bytes.
+     * @param maxBytes O tamanho máximo de cada log (sala ou privado), em bytes.
+     * @param maxAgeMillis A idade máxima das mensagens mantidas.
+     */
+    public MessageStore(File root, int segmentSize, long maxBytes, long maxAgeMillis) {
+        this(root, segmentSize, maxBytes, maxAgeMillis, DEFAULT_MAX_TOTAL_BYTES, DEFAULT_MAX_OPEN_LOGS);
+    }
+
+    /**
+     * @param root O diretório raiz dos logs.
+     * @param segmentSize O tamanho máximo de cada segmento, em bytes.
+     * @param maxBytes O tamanho máximo de cada log (sala ou privado), em bytes.
+     * @param maxAgeMillis A idade máxima das mensagens mantidas.
+     * @param maxTotalBytes O tamanho máximo somando todos os logs, em bytes.
+     * @param maxOpenLogs O número máximo de logs abertos ao mesmo tempo.
+     */
+    public MessageStore(File root, int segmentSize, long maxBytes, long maxAgeMillis, long maxTotalBytes, int maxOpenLogs) {
+        if (maxOpenLogs <= 0) {
+            throw new IllegalArgumentException("O limite de logs abertos deve ser positivo");
+        }
+        this.root = root;
+        this.roomsDir = new File(root, "rooms");
+        this.privateDir = new File(root, PRIVATE_LOG);
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxOpenLogs = maxOpenLogs;
+    }
+
+    /**
+     * Cria as pastas dos logs, importa os logs em texto das versões anteriores e abre o log
+     * privado e os logs das salas informadas, para que a primeira mensagem de cada um não pague
+     * a criação e o mapeamento dos segmentos.
+     * Deve ser chamado na inicialização, antes de o servidor aceitar conexões.
+     * @param roomNames As salas cujos logs devem ser abertos.
+     * @return Quantidade de logs abertos.
+     */
+    public int prepare(Collection<String> roomNames) {
+        if (!roomsDir.isDirectory() && !roomsDir.mkdirs()) {
+            System.err.println("SERVIDOR: Não foi possível criar o diretório " + roomsDir.getPath());
+            return 0;
+        }
+        importLegacyLogs();
+        int opened = 0;
+        try {
+            log(privateDir, true);
+            opened++;
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao abrir o log privado: " + e.getMessage());
+        }
+        for (String roomName : roomNames) {
+            try {
+                log(roomDir(roomName), true);
+                opened++;
+            } catch (IOException e) {
+                System.err.println("SERVIDOR: Erro ao abrir o log da sala " + roomName + ": " + e.getMessage());
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Grava uma mensagem de sala.
+     * @param roomName O nome da sala.
+     * @param timestamp O instante da mensagem, em milissegundos desde a época.
+     * @param sender O remetente, ou null para avisos do servidor.
+     * @param body O conteúdo da mensagem.
+     * @return A sequência atribuída à mensagem dentro da sala.
+     */
+    public long appendRoom(String roomName, long timestamp, String sender, String body) throws IOException {
+        return withLog(roomDir(roomName), true, 0L, log -> log.append(timestamp, sender, roomName, body));
+    }
+
+    /**
+     * Grava uma mensagem privada no log privado.
+     * @param timestamp O instante da mensagem, em milissegundos desde a época.
+     * @param sender O remetente.
+     * @param target O destinatário.
+     * @param body O conteúdo da mensagem.
+     * @return A sequência atribuída à mensagem dentro do log privado.
+     */
+    public long appendPrivate(long timestamp, String sender, String target, String body) throws IOException {
+        return withLog(privateDir, true, 0L, log -> log.append(timestamp, sender, target, body));
+    }
+
+    /**
+     * Mensagens da sala a partir de um instante, em ordem cronológica.
+     * @param roomName O nome da sala.
+     * @param timestamp O instante inicial, em milissegundos desde a época.
+     * @param limit Quantidade máxima de mensagens.
+     */
+    public List<MessageRecord> since(String roomName, long timestamp, int limit) throws IOException {
+        return withLog(roomDir(roomName), false, Collections.emptyList(), log -> log.since(timestamp, limit));
+    }
+
+    /**
+     * Mensagens da sala com sequência no intervalo [fromSeq, toSeq).
+     * @param roomName O nome da sala.
+     * @param fromSeq A primeira sequência (inclusiva).
+     * @param toSeq A sequência final (exclusiva).
+     * @param limit Quantidade máxima de mensagens.
+     */
+    public List<MessageRecord> range(String roomName, long fromSeq, long toSeq, int limit) throws IOException {
+        return withLog(roomDir(roomName), false, Collections.emptyList(), log -> log.range(fromSeq, toSeq, limit));
+    }
+
+    /**
+     * Mensagens privadas a partir de um instante, em ordem cronológica.
+     * @param timestamp O instante inicial, em milissegundos desde a época.
+     * @param limit Quantidade máxima de mensagens.
+     */
+    public List<MessageRecord> privateSince(long timestamp, int limit) throws IOException {
+        return withLog(privateDir, false, Collections.emptyList(), log -> log.since(timestamp, limit));
+    }
+
+    /**
+     * Mensagens privadas com sequência no intervalo [fromSeq, toSeq).
+     * @param fromSeq A primeira sequência (inclusiva).
+     * @param toSeq A sequência final (exclusiva).
+     * @param limit Quantidade máxima de mensagens.
+     */
+    public List<MessageRecord> privateRange(long fromSeq, long toSeq, int limit) throws IOException {
+        return withLog(privateDir, false, Collections.emptyList(), log -> log.range(fromSeq, toSeq, limit));
+    }
+
+    /**
+     * Percorre todas as mensagens gravadas, log a log (as salas e depois o log privado),
+     * cada log em ordem de sequência. Usado para reconstruir o índice de busca.
+     * @param pageSize Quantidade de mensagens lidas de cada vez.
+     * @param visitor Recebe cada mensagem; a varredura para quando ele devolve false.
+     */
+    public void scan(int pageSize, RecordVisitor visitor) throws IOException {
+        List<File> dirs = new ArrayList<>();
+        File[] roomDirs = roomsDir.listFiles(File::isDirectory);
+        if (roomDirs != null) {
+            Arrays.sort(roomDirs);
+            dirs.addAll(Arrays.asList(roomDirs));
+        }
+        dirs.add(privateDir);
+        for (File dir : dirs) {
+            boolean privateLog = dir == privateDir;
+            long from = 0;
+            while (true) {
+                long start = from;
+                List<MessageRecord> records = withLog(dir, false, Collections.emptyList(),
+                        log -> log.range(start, Long.MAX_VALUE, pageSize));
+                if (records.isEmpty()) {
+                    break;
+                }
+                for (MessageRecord record : records) {
+                    if (!visitor.visit(record, privateLog)) {
+                        return;
+                    }
+                }
+                from = records.get(records.size() - 1).seq() + 1;
+            }
+        }
+    }
+
+    /**
+     * Sequência que será atribuída à próxima mensagem gravada na sala.
+     * @param roomName O nome da sala.
+     */
+    public long nextSeq(String roomName) throws IOException {
+        return withLog(roomDir(roomName), false, 1L, SegmentLog::nextSeq);
+    }
+
+    /**
+     * Sequência da mensagem mais antiga ainda mantida no log da sala; as anteriores foram
+     * removidas pela retenção.
+     * @return A sequência, ou 1 se o log não existe.
+     */
+    public long firstSeq(String roomName) throws IOException {
+        return withLog(roomDir(roomName), false, 1L, SegmentLog::firstSeq);
+    }
+
+    /**
+     * Sequência da mensagem privada mais antiga ainda mantida.
+     * @return A sequência, ou 1 se o log não existe.
+     */
+    public long privateFirstSeq() throws IOException {
+        return withLog(privateDir, false, 1L, SegmentLog::firstSeq);
+    }
+
+    /**
+     * Grava em disco os dados ainda não persistidos de todos os logs.
+     */
+    public void flush() {
+        for (SegmentLog log : openLogs()) {
+            try {
+                log.flush();
+            } catch (IOException e) {
+                System.err.println("SERVIDOR: Erro ao gravar log em disco: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Aplica a retenção por tamanho e por idade a todos os logs abertos, fecha os logs
+     * ociosos e aplica o limite global de bytes a todos os logs, abertos ou não.
+     * @return O número de segmentos removidos.
+     */
+    public int applyRetention() {
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        int removed = 0;
+        for (SegmentLog log : openLogs()) {
+            try {
+                removed += log.applyRetention(maxBytes, oldest);
+            } catch (IOException e) {
+                System.err.println("SERVIDOR: Erro ao aplicar a retenção dos logs: " + e.getMessage());
+            }
+        }
+        closeIdleLogs(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(LOG_IDLE_MINUTES));
+        try {
+            removed += applyTotalLimit();
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao aplicar o limite total dos logs: " + e.getMessage());
+        }
+        return removed;
+    }
+
+    /**
+     * Número de logs abertos no momento.
+     */
+    public int getOpenLogCount() {
+        logsLock.lock();
+        try {
+            return logs.size();
+        } finally {
+            logsLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        logsLock.lock();
+        try {
+            closed = true;
+            for (SegmentLog log : logs.values()) {
+                closeLog(log);
+            }
+            logs.clear();
+        } finally {
+            logsLock.unlock();
+        }
+    }
+
+    private List<SegmentLog> openLogs() {
+        logsLock.lock();
+        try {
+            return new ArrayList<>(logs.values());
+        } finally {
+            logsLock.unlock();
+        }
+    }
+
+    private static void closeLog(SegmentLog log) {
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao fechar arquivo de log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fecha os logs sem acesso desde o instante informado.
+     */
+    void closeIdleLogs(long idleSince) {
+        logsLock.lock();
+        try {
+            Iterator<SegmentLog> iterator = logs.values().iterator();
+            while (iterator.hasNext()) {
+                SegmentLog log = iterator.next();
+                if (log.lastAccess() < idleSince) {
+                    iterator.remove();
+                    closeLog(log);
+                }
+            }
+        } finally {
+            logsLock.unlock();
+        }
+    }
+
+    /**
+     * Remove os segmentos selados mais antigos, de qualquer log, enquanto a soma dos logs
+     * passar do limite global. Segmentos de logs fechados são removidos sob o lock dos logs,
+     * para que nenhum deles seja reaberto durante a remoção.
+     */
+    private int applyTotalLimit() throws IOException {
+        List<File> dirs = new ArrayList<>();
+        File[] roomDirs = roomsDir.listFiles(File::isDirectory);
+        if (roomDirs != null) {
+            dirs.addAll(Arrays.asList(roomDirs));
+        }
+        dirs.add(privateDir);
+        long total = 0;
+        List<File> sealed = new ArrayList<>();
+        for (File dir : dirs) {
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+            if (files == null || files.length == 0) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (int i = 0; i < files.length; i++) {
+                total += files[i].length();
+                if (i < files.length - 1) {
+                    sealed.add(files[i]);
+                }
+            }
+        }
+        if (total <= maxTotalBytes) {
+            return 0;
+        }
+        // Os segmentos de cada log seguem a ordem dos nomes; entre logs, vale a última gravação
+        sealed.sort(Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+        int removed = 0;
+        for (File file : sealed) {
+            if (total <= maxTotalBytes) {
+                break;
+            }
+            long freed;
+            logsLock.lock();
+            try {
+                SegmentLog log = logs.get(file.getParentFile().getPath());
+                freed = log != null ? log.removeOldest(file) : deleteSegmentFiles(file);
+            } finally {
+                logsLock.unlock();
+            }
+            if (freed > 0) {
+                total -= freed;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static long deleteSegmentFiles(File file) throws IOException {
+        long length = file.length();
+        String name = file.getName();
+        File index = new File(file.getParentFile(), name.substring(0, name.indexOf('.')) + ".idx");
+        if (!file.delete()) {
+            throw new IOException("Não foi possível remover o segmento " + name);
+        }
+        index.delete();
+        return length;
+    }
+
+    private File roomDir(String roomName) {
+        return new File(roomsDir, encodeRoom(roomName));
+    }
+
+    /**
+     * Nome do diretório de uma sala: os bytes UTF-8 do nome em codificação percentual, exceto
+     * letras minúsculas, dígitos, '-' e '_'. A codificação é reversível, então salas diferentes
+     * nunca dividem o diretório, nem em sistemas de arquivos que ignoram maiúsculas.
+     */
+    static String encodeRoom(String roomName) {
+        StringBuilder name = new StringBuilder(roomName.length() + 2);
+        for (byte b : roomName.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                name.append((char) c);
+            } else {
+                name.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Importa, uma única vez, os logs em texto das versões anteriores (logs/<sala>.txt, com
+     * logs/private.txt para as mensagens privadas). Cada linha era gravada como "[hora] mensagem",
+     * sem a data: a última linha recebe a data de modificação do arquivo e, voltando pelo
+     * arquivo, cada vez que a hora aumenta a linha passa para o dia anterior. Um arquivo só é
+     * importado se o log de destino estiver vazio, e depois vai para logs/legacy/.
+     */
+    private void importLegacyLogs() {
+        File[] files = root.listFiles((dir, name) -> name.endsWith(LEGACY_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                importLegacyLog(file);
+            } catch (IOException | DateTimeParseException e) {
+                System.err.println("SERVIDOR: Erro ao importar o log antigo " + file.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void importLegacyLog(File file) throws IOException {
+        List<LocalTime> times = new ArrayList<>();
+        List<String> messages = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            Matcher matcher = LEGACY_LINE.matcher(line);
+            if (matcher.matches()) {
+                times.add(LocalTime.parse(matcher.group(1)));
+                messages.add(matcher.group(2));
+            } else if (!messages.isEmpty()) {
+                // Mensagem com quebra de linha
+                messages.set(messages.size() - 1, messages.get(messages.size() - 1) + "\n" + line);
+            } else if (!line.isEmpty()) {
+                // Não é um log antigo (ex: o spill.txt do RoomLogWriter)
+                return;
+            }
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        String name = file.getName().substring(0, file.getName().length() - LEGACY_SUFFIX.length()).toLowerCase();
+        // O private.txt também recebia as mensagens da sala #private
+        boolean privateFile = name.equals(PRIVATE_LOG);
+        String roomName = name.equals(RoomRegistry.LOBBY) ? name : "#" + name;
+        if (nextSeq(roomName) > 1 || (privateFile && withLog(privateDir, false, 1L, SegmentLog::nextSeq) > 1)) {
+            System.err.println("SERVIDOR: Log antigo " + file.getName() + " não importado: o log de destino já tem mensagens.");
+            return;
+        }
+        long[] timestamps = legacyTimestamps(times, file.lastModified());
+        for (int i = 0; i < messages.size(); i++) {
+            String message = messages.get(i);
+            Matcher privateMessage = LEGACY_PRIVATE.matcher(message);
+            Matcher chat = LEGACY_CHAT.matcher(message);
+            if (privateFile && privateMessage.matches()) {
+                appendPrivate(timestamps[i], privateMessage.group(1), privateMessage.group(2), privateMessage.group(3));
+            } else if (chat.matches()) {
+                appendRoom(roomName, timestamps[i], chat.group(1), chat.group(2));
+            } else {
+                appendRoom(roomName, timestamps[i], null, message);
+            }
+        }
+        flush();
+        File legacyDir = new File(root, LEGACY_DIR);
+        if (!legacyDir.isDirectory() && !legacyDir.mkdirs()) {
+            throw new IOException("Não foi possível criar o diretório " + legacyDir.getPath());
+        }
+        Files.move(file.toPath(), new File(legacyDir, file.getName()).toPath());
+        System.out.println("SERVIDOR: Log antigo " + file.getName() + " importado (" + messages.size()
+                + " mensagens) e movido para " + legacyDir.getPath());
+    }
+
+    /**
+     * Instantes das linhas de um log antigo, que só guardava a hora.
+     * @param times As horas das linhas, na ordem do arquivo.
+     * @param lastModified A data de modificação do arquivo, a da última linha.
+     */
+    static long[] legacyTimestamps(List<LocalTime> times, long lastModified) {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate day = Instant.ofEpochMilli(lastModified).atZone(zone).toLocalDate();
+        long[] timestamps = new long[times.size()];
+        for (int i = times.size() - 1; i >= 0; i--) {
+            if (i < times.size() - 1 && times.get(i).isAfter(times.get(i + 1))) {
+                day = day.minusDays(1);
+            }
+            timestamps[i] = times.get(i).atDate(day).atZone(zone).toInstant().toEpochMilli();
+        }
+        return timestamps;
+    }
+
+    /**
+     * Executa a operação no log do diretório, reabrindo-o se ele for fechado no meio do caminho.
+     * @param create Se o log deve ser criado; leituras nunca criam diretórios.
+     * @param missing O resultado quando o log não existe.
+     */
+    private <T> T withLog(File dir, boolean create, T missing, LogOperation<T> operation) throws IOException {
+        while (true) {
+            SegmentLog log = log(dir, create);
+            if (log == null) {
+                return missing;
+            }
+            try {
+                return operation.apply(log);
+            } catch (SegmentLog.ClosedException e) {
+                // Fechado por inatividade ou pelo limite de logs abertos: tenta de novo
+            }
+        }
+    }
+
+    /**
+     * Log aberto do diretório, aberto sob demanda. Ao passar do limite de logs abertos,
+     * o usado há mais tempo é fechado.
+     */
+    private SegmentLog log(File dir, boolean create) throws IOException {
+        logsLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Armazenamento de mensagens fechado");
+            }
+            SegmentLog log = logs.get(dir.getPath());
+            if (log != null || (!create && !dir.isDirectory())) {
+                return log;
+            }
+            log = new SegmentLog(dir, segmentSize);
+            logs.put(dir.getPath(), log);
+            Iterator<SegmentLog> eldest = logs.values().iterator();
+            while (logs.size() > maxOpenLogs) {
+                SegmentLog victim = eldest.next();
+                eldest.remove();
+                closeLog(victim);
+            }
+            return log;
+        } finally {
+            logsLock.unlock();
+        }
+    }
+
+    /**
+     * Exibe as mensagens gravadas de uma sala (ou do log privado) em texto.
+     * Uso: MessageStore <pasta_logs> <#sala|private> [minutos]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Uso: MessageStore <pasta_logs> <#sala|private> [minutos]");
+            return;
+        }
+        long since = args.length > 2 ? System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(Long.parseLong(args[2])) : 0;
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+        boolean privateLog = args[1].equals(PRIVATE_LOG);
+        try (MessageStore store = new MessageStore(new File(args[0]))) {
+            SegmentLog log = store.log(privateLog ? store.privateDir : store.roomDir(args[1]), false);
+            if (log == null) {
+                System.out.println("Nenhuma mensagem gravada para " + args[1]);
+                return;
+            }
+            List<MessageRecord> records = log.since(since, DUMP_PAGE_SIZE);
+            while (!records.isEmpty()) {
+                for (MessageRecord record : records) {
+                    String line = privateLog
+                            ? "[PRIVADO de " + record.sender() + " para " + record.target() + "]: " + record.body()
+                            : record.toFrame().render();
+                    System.out.println("[" + format.format(Instant.ofEpochMilli(record.timestamp())) + "] " + line);
+                }
+                long next = records.get(records.size() - 1).seq() + 1;
+                records = records.size() < DUMP_PAGE_SIZE ? Collections.emptyList() : log.range(next, Long.MAX_VALUE, DUMP_PAGE_SIZE);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Listener HTTP mínimo, apenas em localhost, que expõe as métricas em texto em /metrics.
+ * Também informa se o servidor está pronto (GET /ready: 200 ou 503) e recebe o pedido de passagem
+ * de um novo processo no reinício a quente (POST /admin/handover).
+ * Como qualquer processo local alcança a porta, a passagem exige o token administrativo no
+ * cabeçalho Authorization; sem token configurado, o endpoint não é criado.
+ */
+public class MetricsHttpServer implements AutoCloseable {
+
+    // Cabeçalhos do pedido de passagem: o token e o PID de quem pede, registrado no log
+    static final String AUTHORIZATION = "Authorization";
+    static final String BEARER = "Bearer ";
+    static final String REQUESTER_PID = "X-Requester-Pid";
+
+    private final HttpServer server;
+    private final ServerLifecycle lifecycle;
+    private final byte[] adminToken;
+
+    /**
+     * Inicia o listener.
+     * @param port A porta local (127.0.0.1) do endpoint.
+     * @param lifecycle O ciclo de vida do servidor, para atender a passagem (null desativa /ready e /admin/handover).
+     * @param adminToken O token exigido em /admin/handover (null ou vazio desativa o endpoint).
+     */
+    public MetricsHttpServer(int port, ServerLifecycle lifecycle, String adminToken) throws IOException {
+        this.lifecycle = lifecycle;
+        this.adminToken = adminToken != null ? adminToken.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handleMetrics);
+        if (lifecycle != null) {
+            server.createContext("/ready", this::handleReady);
+            if (this.adminToken.length > 0) {
+                server.createContext("/admin/handover", this::handleHandover);
+            } else {
+                System.out.println("SERVIDOR: Nenhum token administrativo configurado; o reinício a quente está desativado.");
+            }
+        }
+        server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("SERVIDOR: Métricas disponíveis em http://127.0.0.1:" + port + "/metrics");
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = ServerMetrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Verificação de prontidão para supervisores e balanceadores.
+     */
+    private void handleReady(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            boolean ready = lifecycle.isReady();
+            byte[] body = (ready ? "ready\n" : "not ready\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(ready ? 200 : 503, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Encerra este servidor para que o processo que fez o pedido assuma a porta.
+     * A resposta só é enviada depois do encerramento; em seguida, o processo termina.
+     * Todo pedido, aceito ou não, é registrado com o endereço e o PID informado por quem pediu.
+     */
+    private void handleHandover(HttpExchange exchange) throws IOException {
+        boolean accepted;
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String pid = exchange.getRequestHeaders().getFirst(REQUESTER_PID);
+            String requester = exchange.getRemoteAddress() + " (PID " + (pid != null ? pid : "desconhecido") + ")";
+            if (!authorized(exchange.getRequestHeaders().getFirst(AUTHORIZATION))) {
+                System.err.println("SERVIDOR: Pedido de passagem recusado, token inválido: " + requester);
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            System.out.println("SERVIDOR: Pedido de passagem autorizado: " + requester);
+            accepted = lifecycle.handover();
+            exchange.sendResponseHeaders(accepted ? 200 : 409, -1);
+        }
+        if (accepted) {
+            Thread.ofPlatform().name("handover-exit").start(() -> System.exit(0));
+        }
+    }
+
+    /**
+     * Compara o token recebido com o configurado em tempo constante.
+     */
+    private boolean authorized(String header) {
+        if (header == null || !header.startsWith(BEARER)) {
+            return false;
+        }
+        byte[] received = header.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(adminToken, received);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,207 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Servidor de chat baseado em java.nio.
+ * Uma thread aceita as conexões e as distribui entre um conjunto fixo de reatores;
+ * cada reator atende muitas conexões não bloqueantes com um único Selector.
+ */
+public class NioChatServer {
+
+    private final int port;
+    private final RoomManager roomManager;
+    private final Supplier<OutboundQueue> outboundQueues;
+    private final Reactor[] reactors;
+
+    /**
+     * Construtor do servidor NIO.
+     * @param port A porta TCP em que o servidor irá escutar.
+     * @param reactorCount O número de threads de I/O (reatores).
+     * @param roomManager A instância compartilhada que gerencia salas e estado.
+     * @param outboundQueues Cria a fila de saída de cada nova conexão.
+     */
+    public NioChatServer(int port, int reactorCount, RoomManager roomManager, Supplier<OutboundQueue> outboundQueues) throws IOException {
+        this.port = port;
+        this.roomManager = roomManager;
+        this.outboundQueues = outboundQueues;
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i);
+        }
+    }
+
+    /**
+     * Inicia os reatores e executa o loop de aceitação na porta já aberta, até ela ser fechada.
+     * @param serverChannel A porta de escuta, em modo bloqueante.
+     */
+    public void start(ServerSocketChannel serverChannel) throws IOException {
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+
+        try (serverChannel) {
+            System.out.println("Servidor de chat (NIO, " + reactors.length + " reatores) iniciado na porta " + port);
+
+            int next = 0;
+            //Loop de aceitação: cada conexão é entregue a um reator em rodízio
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("Cliente conectado de " + channel.getRemoteAddress());
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            }
+        } catch (ClosedChannelException e) {
+            // Porta fechada pelo encerramento do servidor
+            System.out.println("SERVIDOR: Não aceitando novas conexões.");
+        }
+    }
+
+    private record PausedRead(NioConnection connection, long resumeAt) {
+    }
+
+    /**
+     * Thread de I/O que multiplexa várias conexões com um Selector.
+     * Todo acesso aos canais registrados acontece nesta thread.
+     */
+    final class Reactor extends Thread {
+        private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+        private final Selector selector;
+        // Buffer direto compartilhado pelas conexões deste reator para montar cada escrita
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Conexões com leitura pausada por flood, na ordem em que devem ser retomadas (acesso só pelo reator)
+        private final PriorityQueue<PausedRead> pausedReads = new PriorityQueue<>(Comparator.comparingLong(PausedRead::resumeAt));
+
+        Reactor(int index) throws IOException {
+            super("nio-reactor-" + index);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Agenda o registro de um novo canal neste reator.
+         */
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Agenda a escrita dos dados pendentes de uma conexão.
+         * Pode ser chamado de qualquer thread.
+         */
+        void requestWrite(NioConnection connection) {
+            pendingWrites.add(connection);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Agenda a retomada da leitura de uma conexão pausada. Só pode ser chamado na thread do reator.
+         */
+        void pauseReads(NioConnection connection, long pauseNanos) {
+            pausedReads.add(new PausedRead(connection, System.nanoTime() + pauseNanos));
+        }
+
+        /**
+         * Buffer de escrita do reator. Só pode ser usado na thread do reator.
+         */
+        ByteBuffer writeBuffer() {
+            return writeBuffer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select(nextResumeMillis());
+                    resumePausedReads();
+                    registerPending();
+                    processWrites();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                    // Escritas geradas durante o processamento das leituras
+                    processWrites();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("Erro no reator " + getName() + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Espera do select até a próxima leitura pausada a retomar (0 = sem limite).
+         */
+        private long nextResumeMillis() {
+            PausedRead next = pausedReads.peek();
+            if (next == null) {
+                return 0;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.resumeAt() - System.nanoTime()) + 1);
+        }
+
+        private void resumePausedReads() {
+            long now = System.nanoTime();
+            while (!pausedReads.isEmpty() && pausedReads.peek().resumeAt() - now <= 0) {
+                pausedReads.poll().connection().resumeReads();
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(channel, key, this, roomManager, outboundQueues.get());
+                    key.attach(connection);
+                    connection.open();
+                } catch (IOException e) {
+                    System.err.println("Erro ao registrar conexão: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Canal já inválido
+                    }
+                }
+            }
+        }
+
+        private void processWrites() {
+            NioConnection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                connection.onWritable();
+            }
+        }
+    }
+}
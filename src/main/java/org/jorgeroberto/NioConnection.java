@@ -0,0 +1,251 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Conexão não bloqueante atendida por um reator do NioChatServer.
+ * Entrega os bytes lidos ao ChatSession e mantém uma fila de saída limitada própria,
+ * drenada apenas pela thread do reator. Os bytes já codificados dos frames compartilhados
+ * são copiados para o buffer direto do reator, sem alocação por destinatário.
+ */
+public class NioConnection implements ChatConnection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioChatServer.Reactor reactor;
+    private final ChatSession session;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private final OutboundQueue outboundQueue;
+    private final WireEncoder encoder = new WireEncoder();
+    // Blocos codificados ainda não escritos por completo (acesso só pelo reator)
+    private final ArrayDeque<byte[]> inFlight = new ArrayDeque<>();
+    // Recebe os blocos recém-codificados: guarda em inFlight e copia o que couber no buffer do reator
+    private final WireEncoder.ChunkSink inFlightSink;
+    // Bytes do primeiro bloco em inFlight que já foram escritos
+    private int inFlightOffset;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private volatile boolean closeRequested;
+    private volatile boolean abortRequested;
+    private volatile boolean closed;
+
+    NioConnection(SocketChannel channel, SelectionKey key, NioChatServer.Reactor reactor, RoomManager roomManager, OutboundQueue outboundQueue) {
+        this.channel = channel;
+        this.key = key;
+        this.reactor = reactor;
+        this.outboundQueue = outboundQueue;
+        ByteBuffer writeBuffer = reactor.writeBuffer();
+        this.inFlightSink = chunk -> {
+            inFlight.addLast(chunk);
+            copy(chunk, 0, writeBuffer);
+        };
+        this.session = new ChatSession(this, roomManager);
+    }
+
+    /**
+     * Inicia a sessão de chat logo após o registro no reator.
+     */
+    void open() {
+        session.start();
+    }
+
+    /**
+     * Enfileira o frame e agenda a escrita no reator dono da conexão.
+     * Pode ser chamado de qualquer thread.
+     * @param frame O frame a ser enviado ao cliente.
+     */
+    @Override
+    public void send(MessageFrame frame) {
+        if (closed) {
+            return;
+        }
+        if (!outboundQueue.offer(frame)) {
+            System.err.println("Desconectando consumidor lento: " + (getUserName() != null ? getUserName() : "Cliente"));
+            abortRequested = true;
+        }
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            reactor.requestWrite(this);
+        }
+    }
+
+    /**
+     * Lê os bytes disponíveis e os entrega ao ChatSession.
+     * Executado na thread do reator.
+     */
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                closeNow();
+                return;
+            }
+            session.receive(readBuffer.array(), 0, readBuffer.position());
+            readBuffer.clear();
+            // Cliente pausado por flood: deixa de ler o socket até o reator retomar a leitura
+            long pause = session.readPauseNanos();
+            if (pause > 0 && !closed) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                reactor.pauseReads(this, pause);
+            }
+        } catch (IOException e) {
+            //Conexão perdida, encerrada de maneira abrupta ou violação do protocolo
+            System.err.println("Conexão com " + (getUserName() != null ? getUserName() : "Cliente") + " perdida: " + e.getMessage());
+            closeNow();
+        }
+    }
+
+    /**
+     * Volta a ler o socket após uma pausa por flood. Executado na thread do reator.
+     */
+    void resumeReads() {
+        if (!closed && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Escreve o máximo possível da fila de saída sem bloquear.
+     * Se o socket não aceitar tudo, aguarda o evento OP_WRITE do Selector.
+     * Executado na thread do reator.
+     */
+    void onWritable() {
+        writeScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        if (abortRequested) {
+            closeNow();
+            return;
+        }
+        try {
+            ByteBuffer buffer = reactor.writeBuffer();
+            while (true) {
+                // Monta a escrita com o restante dos blocos pendentes e os próximos frames da fila
+                buffer.clear();
+                int offset = inFlightOffset;
+                for (byte[] chunk : inFlight) {
+                    if (!buffer.hasRemaining()) {
+                        break;
+                    }
+                    copy(chunk, offset, buffer);
+                    offset = 0;
+                }
+                MessageFrame next;
+                int frames = 0;
+                while (buffer.hasRemaining() && (next = outboundQueue.poll()) != null) {
+                    encoder.encode(next, inFlightSink);
+                    frames++;
+                }
+                if (buffer.position() == 0) {
+                    break;
+                }
+
+                buffer.flip();
+                int written = channel.write(buffer);
+                ServerMetrics.socketWrites(1, frames, written);
+                consumeWritten(written);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeRequested) {
+                closeNow();
+            }
+        } catch (IOException e) {
+            System.err.println("Conexão com " + (getUserName() != null ? getUserName() : "Cliente") + " perdida: " + e.getMessage());
+            closeNow();
+        }
+    }
+
+    /**
+     * Copia o que couber do bloco; um bloco só é copiado pela metade quando o buffer enche,
+     * o que preserva a ordem dos bytes.
+     */
+    private static void copy(byte[] chunk, int offset, ByteBuffer buffer) {
+        buffer.put(chunk, offset, Math.min(buffer.remaining(), chunk.length - offset));
+    }
+
+    /**
+     * Descarta de inFlight os blocos totalmente escritos e avança o deslocamento do primeiro.
+     */
+    private void consumeWritten(int written) {
+        while (written > 0) {
+            byte[] head = inFlight.peekFirst();
+            int remaining = head.length - inFlightOffset;
+            if (written < remaining) {
+                inFlightOffset += written;
+                return;
+            }
+            written -= remaining;
+            inFlight.pollFirst();
+            inFlightOffset = 0;
+        }
+    }
+
+    /**
+     * Solicita o encerramento da conexão após o envio das mensagens pendentes.
+     */
+    @Override
+    public void close() {
+        closeRequested = true;
+        scheduleWrite();
+    }
+
+    @Override
+    public void abort() {
+        abortRequested = true;
+        scheduleWrite();
+    }
+
+    /**
+     * Fecha o canal imediatamente e finaliza a sessão. Executado na thread do reator.
+     */
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Erro ao fechar o canal, não preciso tratar
+        }
+        outboundQueue.abort();
+        inFlight.clear();
+        session.end();
+    }
+
+    /**
+     * Obtém o nome de usuário deste cliente.
+     * @return O nome de usuário do cliente.
+     */
+    @Override
+    public String getUserName() {
+        return session.getUserName();
+    }
+
+    @Override
+    public WireEncoder getEncoder() {
+        return encoder;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+}
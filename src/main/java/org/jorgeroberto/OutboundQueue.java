@@ -0,0 +1,261 @@
+package org.jorgeroberto;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fila de saída limitada de um cliente.
+ * O broadcast apenas enfileira a mensagem (O(1)); quem escreve no socket é o
+ * escritor da própria conexão. Quando a fila enche, aplica a política configurada.
+ */
+public class OutboundQueue {
+
+    /**
+     * Política aplicada quando a fila do cliente está cheia.
+     * DROP_OLDEST descarta a mensagem mais antiga, DISCONNECT desconecta o consumidor lento
+     * e COALESCE agrupa a nova mensagem com a última pendente.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT, COALESCE;
+
+        /**
+         * Converte o nome informado na linha de comando para a política correspondente.
+         * @param value O nome da política (ex: "drop_oldest").
+         * @return A política de overflow.
+         */
+        public static OverflowPolicy fromString(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    // Tamanho máximo, em caracteres, de uma entrada agrupada pela política COALESCE
+    private static final int MAX_COALESCED_LENGTH = 64 * 1024;
+
+    private final ArrayDeque<MessageFrame> messages;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+
+    // Métricas, alteradas sob o lock
+    private int maxDepth;
+    private long dropped;
+    private long coalesced;
+
+    /**
+     * Cria uma fila com a capacidade e política padrão.
+     */
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Cria uma fila de saída.
+     * @param capacity Número máximo de mensagens pendentes.
+     * @param policy Política aplicada quando a fila está cheia.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.messages = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    /**
+     * Enfileira uma mensagem sem bloquear.
+     * @param frame O frame a ser enviado, possivelmente compartilhado com outros clientes.
+     * @return false se o consumidor deve ser desconectado (política DISCONNECT), true caso contrário.
+     *         Com a fila já fechada, o frame é descartado e contado como tal.
+     */
+    public boolean offer(MessageFrame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                // A conexão já está encerrando: desconectar de novo descartaria o que ainda falta enviar
+                dropped++;
+                ServerMetrics.queueDropped();
+                return true;
+            }
+            if (messages.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        dropped++;
+                        ServerMetrics.slowConsumerDisconnected();
+                        return false;
+                    case COALESCE:
+                        MessageFrame last = messages.peekLast();
+                        if (last != null && last.size() + frame.size() < MAX_COALESCED_LENGTH) {
+                            messages.pollLast();
+                            messages.addLast(MessageFrame.concat(last, frame));
+                            coalesced++;
+                            ServerMetrics.queueCoalesced();
+                            return true;
+                        }
+                        // A entrada agrupada atingiu o limite: descarta a mais antiga
+                        messages.pollFirst();
+                        dropped++;
+                        ServerMetrics.queueDropped();
+                        break;
+                    case DROP_OLDEST:
+                    default:
+                        messages.pollFirst();
+                        dropped++;
+                        ServerMetrics.queueDropped();
+                        break;
+                }
+            }
+            messages.addLast(frame);
+            if (messages.size() > maxDepth) {
+                maxDepth = messages.size();
+            }
+            ServerMetrics.queueDepth(messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove o próximo frame sem bloquear.
+     * @return O frame, ou null se a fila estiver vazia.
+     */
+    public MessageFrame poll() {
+        lock.lock();
+        try {
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Aguarda, sem prazo, até que haja uma mensagem ou a fila seja fechada.
+     * Uma conexão ociosa não acorda a escritora: close() e abort() a liberam.
+     * @return O frame, ou null se a fila foi fechada e esvaziada.
+     */
+    public MessageFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Aguarda até que haja uma mensagem, a fila seja fechada ou o tempo se esgote.
+     * @param timeout Tempo máximo de espera.
+     * @param unit Unidade do tempo de espera.
+     * @return O frame, ou null se a fila foi fechada e esvaziada ou o tempo se esgotou.
+     */
+    public MessageFrame take(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fecha a fila para novas mensagens. As mensagens já enfileiradas ainda são
+     * entregues ao escritor, que recebe null de take() quando a fila esvazia.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fecha a fila descartando as mensagens pendentes (ex: consumidor lento desconectado).
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Indica se a fila foi fechada.
+     */
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Profundidade atual da fila.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Maior profundidade já atingida pela fila.
+     */
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Número de mensagens descartadas por overflow ou por chegarem com a fila fechada.
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Número de mensagens agrupadas pela política COALESCE.
+     */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.jorgeroberto;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contabiliza os eventos em que uma thread virtual ficou presa (pinned) à thread portadora,
+ * usando o evento jdk.VirtualThreadPinned do JDK Flight Recorder.
+ * Só é iniciado no modo de execução com threads virtuais. Cada evento também é registrado
+ * no ServerMetrics, de onde segue para o JMX e o /metrics.
+ */
+public class PinningMonitor implements AutoCloseable {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private final RecordingStream stream;
+    private final AtomicLong pinnedEvents = new AtomicLong();
+    private final AtomicLong pinnedNanos = new AtomicLong();
+    private final AtomicLong maxPinnedNanos = new AtomicLong();
+
+    /**
+     * Cria o monitor.
+     * @param threshold Duração mínima de um pinning para que ele seja contabilizado.
+     */
+    public PinningMonitor(Duration threshold) {
+        this.stream = new RecordingStream();
+        stream.enable(PINNED_EVENT).withThreshold(threshold).withoutStackTrace();
+        stream.onEvent(PINNED_EVENT, this::onPinned);
+    }
+
+    private void onPinned(RecordedEvent event) {
+        long nanos = event.getDuration().toNanos();
+        pinnedEvents.incrementAndGet();
+        pinnedNanos.addAndGet(nanos);
+        maxPinnedNanos.accumulateAndGet(nanos, Math::max);
+        ServerMetrics.virtualThreadPinned(nanos);
+    }
+
+    /**
+     * Inicia a coleta de eventos em segundo plano.
+     */
+    public void start() {
+        stream.startAsync();
+    }
+
+    /**
+     * Número de eventos de pinning observados.
+     */
+    public long getPinnedEvents() {
+        return pinnedEvents.get();
+    }
+
+    /**
+     * Tempo total, em nanossegundos, que threads virtuais passaram presas à portadora.
+     */
+    public long getPinnedNanos() {
+        return pinnedNanos.get();
+    }
+
+    /**
+     * Maior duração, em nanossegundos, de um único evento de pinning.
+     */
+    public long getMaxPinnedNanos() {
+        return maxPinnedNanos.get();
+    }
+
+    /**
+     * Resumo legível dos contadores, usado no log do servidor.
+     */
+    public String summary() {
+        return "eventos=" + getPinnedEvents()
+                + ", total=" + Duration.ofNanos(getPinnedNanos()).toMillis() + "ms"
+                + ", máximo=" + Duration.ofNanos(getMaxPinnedNanos()).toMillis() + "ms";
+    }
+
+    @Override
+    public void close() {
+        stream.close();
+    }
+}
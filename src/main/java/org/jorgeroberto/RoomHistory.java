@@ -0,0 +1,519 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Histórico recente das salas, mantido em memória para ser reenviado a quem entra.
+ * Cada sala guarda as últimas N mensagens em um buffer circular. A memória total é
+ * limitada por um orçamento de caracteres: ao excedê-lo, a sala acessada há mais tempo
+ * sai da memória, assim como as salas ociosas. As salas ficam em um mapa ordenado por
+ * acesso, de modo que a vítima é sempre a primeira da ordem, sem percorrer as demais.
+ * Páginas mais antigas que o buffer são lidas do log da sala no MessageStore.
+ *
+ * As posições (cursores) são as sequências das mensagens no log da sala, informadas pelo
+ * RoomLogWriter depois de cada gravação. Até lá a mensagem fica pendente; mensagens
+ * descartadas ou desviadas para o transbordo saem do buffer, que espelha apenas o log.
+ */
+public class RoomHistory implements AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 100;
+    public static final long DEFAULT_MAX_CHARS = 4L * 1024 * 1024;
+    public static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // Cursor inicial: a página começa pela mensagem mais recente
+    public static final long LATEST = Long.MAX_VALUE;
+
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+    // Posição de uma mensagem ainda não gravada no log: posterior a qualquer sequência real
+    private static final long PENDING = Long.MAX_VALUE - 1;
+
+    /**
+     * Página de histórico, da mensagem mais antiga para a mais recente.
+     * @param frames As mensagens da página.
+     * @param cursor Posição a informar para buscar a página anterior.
+     */
+    public record Page(List<MessageFrame> frames, long cursor) {
+        public boolean isEmpty() {
+            return frames.isEmpty();
+        }
+    }
+
+    private final int capacity;
+    private final long maxChars;
+    private final long idleMillis;
+    // Log persistente das salas (null desativa a leitura do disco)
+    private final MessageStore store;
+    // Salas em memória, da acessada há mais tempo para a mais recente
+    private final Map<String, Room> rooms = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock roomsLock = new ReentrantLock();
+    private final AtomicLong totalChars = new AtomicLong();
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * @param store O armazenamento em que as mensagens das salas são gravadas.
+     */
+    public RoomHistory(MessageStore store) {
+        this(store, DEFAULT_CAPACITY, DEFAULT_MAX_CHARS, DEFAULT_IDLE_MILLIS);
+    }
+
+    /**
+     * @param store O armazenamento em que as mensagens das salas são gravadas.
+     * @param capacity Número máximo de mensagens mantidas em memória por sala.
+     * @param maxChars Orçamento de caracteres somando todas as salas.
+     * @param idleMillis Tempo sem acesso após o qual uma sala sai da memória.
+     */
+    public RoomHistory(MessageStore store, int capacity, long maxChars, long idleMillis) {
+        if (capacity <= 0 || maxChars <= 0) {
+            throw new IllegalArgumentException("Capacidade e orçamento do histórico devem ser positivos");
+        }
+        this.store = store;
+        this.capacity = capacity;
+        this.maxChars = maxChars;
+        this.idleMillis = idleMillis;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "room-history-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdle, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registra uma mensagem transmitida na sala. A posição fica pendente até que o
+     * RoomLogWriter informe a sequência atribuída pelo log ({@link #recorded}).
+     * @param roomName O nome da sala.
+     * @param frame A mensagem entregue aos membros.
+     */
+    public void append(String roomName, MessageFrame frame) {
+        while (true) {
+            Room room = room(roomName, true);
+            long added = room.append(frame, PENDING);
+            if (added < 0) {
+                continue; // Sala retirada da memória durante a busca: recria
+            }
+            if (totalChars.addAndGet(added) > maxChars) {
+                evictLeastRecentlyUsed(room);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Associa à mensagem pendente a sequência com que ela foi gravada no log da sala.
+     * @param roomName O nome da sala.
+     * @param frame A mensagem registrada por {@link #append}.
+     * @param seq A sequência devolvida pelo MessageStore.
+     */
+    void recorded(String roomName, MessageFrame frame, long seq) {
+        Room room = room(roomName, false);
+        if (room != null) {
+            room.recorded(frame, seq);
+        }
+    }
+
+    /**
+     * Retira do buffer uma mensagem que não chegou ao log da sala (descartada ou desviada
+     * para o transbordo), para que as posições em memória sigam as do log.
+     * @param roomName O nome da sala.
+     * @param frame A mensagem registrada por {@link #append}.
+     */
+    void discarded(String roomName, MessageFrame frame) {
+        Room room = room(roomName, false);
+        if (room != null) {
+            totalChars.addAndGet(-room.discard(frame));
+        }
+    }
+
+    /**
+     * Últimas mensagens da sala que ainda estão em memória. Nunca acessa o disco.
+     * @param roomName O nome da sala.
+     * @param count Quantidade máxima de mensagens.
+     */
+    public Page recent(String roomName, int count) {
+        Room room = room(roomName, false);
+        if (room == null) {
+            return new Page(Collections.emptyList(), LATEST);
+        }
+        return room.fromMemory(LATEST, count);
+    }
+
+    /**
+     * Mensagens anteriores ao cursor, buscando no arquivo de log o que não está em memória.
+     * @param roomName O nome da sala.
+     * @param cursor Cursor devolvido pela página anterior, ou {@link #LATEST}.
+     * @param count Quantidade máxima de mensagens.
+     */
+    public Page before(String roomName, long cursor, int count) {
+        Page page = room(roomName, true).fromMemory(cursor, count);
+        int missing = count - page.frames().size();
+        if (missing <= 0 || store == null) {
+            return page;
+        }
+        try {
+            return fromStore(roomName, page, missing);
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao ler o histórico da sala " + roomName + ": " + e.getMessage());
+            return page;
+        }
+    }
+
+    /**
+     * Carrega do log as últimas mensagens de uma sala que ainda não está em memória,
+     * para que sejam reenviadas a quem entrar nela. Usado ao restaurar o servidor.
+     * @param roomName O nome da sala.
+     * @param count Quantidade máxima de mensagens.
+     */
+    public void preload(String roomName, int count) {
+        if (store == null || count <= 0 || room(roomName, false) != null) {
+            return;
+        }
+        try {
+            long next = store.nextSeq(roomName);
+            List<MessageRecord> records = store.range(roomName, Math.max(1, next - count), next, count);
+            Room room = new Room(next);
+            long added = room.load(records);
+            roomsLock.lock();
+            try {
+                if (rooms.putIfAbsent(roomName, room) != null) {
+                    return;
+                }
+            } finally {
+                roomsLock.unlock();
+            }
+            if (totalChars.addAndGet(added) > maxChars) {
+                evictLeastRecentlyUsed(room);
+            }
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao carregar o histórico da sala " + roomName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Total de caracteres mantidos em memória por todas as salas.
+     */
+    public long getCachedChars() {
+        return totalChars.get();
+    }
+
+    /**
+     * Número de salas mantidas em memória.
+     */
+    public int getRoomCount() {
+        roomsLock.lock();
+        try {
+            return rooms.size();
+        } finally {
+            roomsLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Completa a página com as mensagens do log anteriores à mais antiga já obtida.
+     */
+    private Page fromStore(String roomName, Page memory, int count) throws IOException {
+        long to = memory.cursor();
+        long from = Math.max(1, to - count);
+        if (from >= to) {
+            return memory;
+        }
+        List<MessageRecord> records = store.range(roomName, from, to, count);
+        if (records.isEmpty()) {
+            return memory;
+        }
+        List<MessageFrame> result = new ArrayList<>(records.size() + memory.frames().size());
+        for (MessageRecord record : records) {
+            result.add(record.toFrame());
+        }
+        result.addAll(memory.frames());
+        return new Page(result, records.get(0).seq());
+    }
+
+    /**
+     * Busca a sala, marcando o acesso na ordem de despejo.
+     * A próxima sequência do log é lida fora do lock, só quando a sala é criada.
+     */
+    private Room room(String roomName, boolean create) {
+        roomsLock.lock();
+        try {
+            Room room = rooms.get(roomName);
+            if (room != null || !create) {
+                return room;
+            }
+        } finally {
+            roomsLock.unlock();
+        }
+        Room created = newRoom(roomName);
+        roomsLock.lock();
+        try {
+            Room existing = rooms.putIfAbsent(roomName, created);
+            return existing != null ? existing : created;
+        } finally {
+            roomsLock.unlock();
+        }
+    }
+
+    private Room newRoom(String roomName) {
+        long nextSeq = 1;
+        if (store != null) {
+            try {
+                // Mensagens ainda na fila do log avançam a sequência quando forem gravadas
+                nextSeq = store.nextSeq(roomName);
+            } catch (IOException e) {
+                System.err.println("SERVIDOR: Erro ao abrir o log da sala " + roomName + ": " + e.getMessage());
+            }
+        }
+        return new Room(nextSeq);
+    }
+
+    private void evictLeastRecentlyUsed(Room current) {
+        while (totalChars.get() > maxChars) {
+            Room victim = null;
+            roomsLock.lock();
+            try {
+                // A primeira sala da ordem de acesso, exceto a atual
+                Iterator<Room> iterator = rooms.values().iterator();
+                while (iterator.hasNext()) {
+                    Room room = iterator.next();
+                    if (room != current) {
+                        iterator.remove();
+                        victim = room;
+                        break;
+                    }
+                }
+            } finally {
+                roomsLock.unlock();
+            }
+            if (victim == null) {
+                // Só resta a sala atual: descarta as mensagens mais antigas dela
+                totalChars.addAndGet(-current.trim(maxChars));
+                return;
+            }
+            totalChars.addAndGet(-victim.retire());
+        }
+    }
+
+    private void evictIdle() {
+        long limit = System.currentTimeMillis() - idleMillis;
+        List<Room> idle = new ArrayList<>();
+        roomsLock.lock();
+        try {
+            // Em ordem de acesso: a varredura para na primeira sala ativa
+            Iterator<Room> iterator = rooms.values().iterator();
+            while (iterator.hasNext()) {
+                Room room = iterator.next();
+                if (room.lastAccess >= limit) {
+                    break;
+                }
+                iterator.remove();
+                idle.add(room);
+            }
+        } finally {
+            roomsLock.unlock();
+        }
+        for (Room room : idle) {
+            totalChars.addAndGet(-room.retire());
+        }
+    }
+
+    /**
+     * Buffer circular de uma sala. Uma sala retirada da memória recusa novas mensagens.
+     */
+    private final class Room {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private MessageFrame[] frames;
+        private long[] positions;
+        private int head;
+        private int size;
+        // Sequência seguinte à última gravada no log: cursor quando não há posição conhecida
+        private long nextPosition;
+        private boolean retired;
+        private volatile long chars;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Room(long nextSeq) {
+            this.nextPosition = nextSeq;
+        }
+
+        /**
+         * @return Caracteres adicionados, ou -1 se a sala já saiu da memória.
+         */
+        long append(MessageFrame frame, long position) {
+            lock.lock();
+            try {
+                if (retired) {
+                    return -1;
+                }
+                if (frames == null) {
+                    frames = new MessageFrame[capacity];
+                    positions = new long[capacity];
+                }
+                long delta = frame.size();
+                int slot = (head + size) % capacity;
+                if (size == capacity) {
+                    delta -= frames[head].size();
+                    head = (head + 1) % capacity;
+                } else {
+                    size++;
+                }
+                frames[slot] = frame;
+                positions[slot] = position;
+                chars += delta;
+                lastAccess = System.currentTimeMillis();
+                return delta;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Preenche o buffer com mensagens lidas do log, mantendo suas sequências.
+         * @return Caracteres adicionados.
+         */
+        long load(List<MessageRecord> records) {
+            long added = 0;
+            for (MessageRecord record : records) {
+                added += append(record.toFrame(), record.seq());
+            }
+            return added;
+        }
+
+        void recorded(MessageFrame frame, long seq) {
+            lock.lock();
+            try {
+                nextPosition = Math.max(nextPosition, seq + 1);
+                // As pendentes ficam no fim do buffer, na ordem em que foram enfileiradas
+                for (int i = size - 1; i >= 0; i--) {
+                    int slot = (head + i) % capacity;
+                    if (positions[slot] != PENDING) {
+                        return;
+                    }
+                    if (frames[slot] == frame) {
+                        positions[slot] = seq;
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return Caracteres liberados.
+         */
+        long discard(MessageFrame frame) {
+            lock.lock();
+            try {
+                for (int i = size - 1; i >= 0; i--) {
+                    int slot = (head + i) % capacity;
+                    if (positions[slot] != PENDING) {
+                        return 0;
+                    }
+                    if (frames[slot] == frame) {
+                        // Desloca as mensagens posteriores uma posição para trás
+                        for (int j = i; j < size - 1; j++) {
+                            int to = (head + j) % capacity;
+                            int from = (head + j + 1) % capacity;
+                            frames[to] = frames[from];
+                            positions[to] = positions[from];
+                        }
+                        size--;
+                        frames[(head + size) % capacity] = null;
+                        chars -= frame.size();
+                        return frame.size();
+                    }
+                }
+                return 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Page fromMemory(long cursor, int count) {
+            lock.lock();
+            try {
+                lastAccess = System.currentTimeMillis();
+                // Mensagens do buffer anteriores ao cursor
+                int end = size;
+                while (end > 0 && positions[(head + end - 1) % capacity] >= cursor) {
+                    end--;
+                }
+                int start = Math.max(0, end - count);
+                List<MessageFrame> result = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    result.add(frames[(head + i) % capacity]);
+                }
+                // A próxima página começa na mensagem mais antiga devolvida
+                long next = end < size ? position(end) : nextPosition;
+                if (start < end) {
+                    next = position(start);
+                }
+                next = Math.min(cursor, next);
+                return new Page(result, next);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Posição usada como cursor: uma mensagem pendente será gravada depois de nextPosition.
+         */
+        private long position(int index) {
+            long position = positions[(head + index) % capacity];
+            return position == PENDING ? nextPosition : position;
+        }
+
+        /**
+         * Descarta o buffer e recusa novas mensagens, que passam a ir para uma nova sala.
+         * @return Caracteres liberados.
+         */
+        long retire() {
+            lock.lock();
+            try {
+                long released = chars;
+                retired = true;
+                frames = null;
+                positions = null;
+                head = 0;
+                size = 0;
+                chars = 0;
+                return released;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long trim(long limit) {
+            lock.lock();
+            try {
+                long released = 0;
+                while (size > 1 && chars > limit) {
+                    long freed = frames[head].size();
+                    frames[head] = null;
+                    head = (head + 1) % capacity;
+                    size--;
+                    chars -= freed;
+                    released += freed;
+                }
+                return released;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package org.jorgeroberto;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Pipeline assíncrono de escrita dos logs das salas.
+ * As threads dos clientes apenas enfileiram as entradas em uma fila limitada;
+ * uma thread dedicada grava as entradas em lotes no MessageStore, que mantém um
+ * log por sala e um log separado para as mensagens privadas.
+ */
+public class RoomLogWriter implements AutoCloseable {
+
+    /**
+     * Política aplicada quando a fila de log está cheia.
+     * BLOCK espera por espaço, DROP descarta a entrada e SPILL grava a entrada
+     * diretamente no arquivo de transbordo (logs/spill.txt).
+     */
+    public enum BackpressurePolicy {
+        BLOCK, DROP, SPILL;
+
+        /**
+         * Converte o texto da configuração (ex: "spill") na política correspondente.
+         */
+        public static BackpressurePolicy fromString(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+
+    // Intervalo entre as verificações de retenção do MessageStore
+    private static final long RETENTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Entrada pendente. roomName é null para mensagens privadas, cujo destinatário fica em target.
+     * enqueuedNanos marca o enfileiramento, para medir o atraso até a gravação.
+     * frame é a mensagem mantida no histórico da sala, que recebe a sequência gravada.
+     */
+    private record LogEntry(String roomName, long timestamp, String sender, String target, String message,
+                            long enqueuedNanos, MessageFrame frame) {
+    }
+
+    // Entrada sentinela que sinaliza o fim da fila para a thread escritora
+    private static final LogEntry END = new LogEntry("", 0, null, null, "", 0, null);
+
+    private final File logDir;
+    private final MessageStore store;
+    private final BlockingQueue<LogEntry> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final BackpressurePolicy policy;
+    private final Thread writerThread;
+
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    // Quem enfileira segura a leitura; close() pega a escrita para que nada entre depois da sentinela
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+    private volatile SearchIndex searchIndex;
+    private volatile RoomHistory history;
+
+    /**
+     * Cria o escritor com os parâmetros padrão.
+     * @param logDir Diretório onde os arquivos de log serão gravados.
+     */
+    public RoomLogWriter(File logDir) {
+        this(logDir, null);
+    }
+
+    /**
+     * Cria o escritor com os parâmetros padrão de fila.
+     * @param logDir Diretório onde os arquivos de log serão gravados.
+     * @param store O armazenamento das mensagens (null cria um com os limites padrão em logDir).
+     */
+    public RoomLogWriter(File logDir, MessageStore store) {
+        this(logDir, store, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, BackpressurePolicy.BLOCK);
+    }
+
+    /**
+     * Cria o escritor e inicia a thread de gravação.
+     * @param logDir Diretório onde os arquivos de log serão gravados.
+     * @param store O armazenamento das mensagens (null cria um com os limites padrão em logDir).
+     * @param capacity Número máximo de entradas pendentes na fila.
+     * @param batchSize Número de entradas que força um flush imediato.
+     * @param flushIntervalMillis Intervalo máximo entre flushes, em milissegundos.
+     * @param policy Política aplicada quando a fila está cheia.
+     */
+    public RoomLogWriter(File logDir, MessageStore store, int capacity, int batchSize, long flushIntervalMillis, BackpressurePolicy policy) {
+        this.logDir = prepareLogDir(logDir);
+        this.store = store != null ? store : new MessageStore(this.logDir);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.policy = policy;
+        this.writerThread = new Thread(this::writeLoop, "room-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Garante a existência do diretório de logs uma única vez, na criação do escritor.
+     */
+    private static File prepareLogDir(File logDir) {
+        if (logDir.isDirectory()) {
+            return logDir;
+        }
+        if (logDir.mkdirs()) {
+            System.out.println("SERVIDOR: Pasta '" + logDir.getPath() + "/' criada com sucesso.");
+            return logDir;
+        }
+        System.err.println("SERVIDOR: Erro ao criar a pasta '" + logDir.getPath() + "/'. Salvando na raiz.");
+        // Se não conseguir criar a pasta, salva na raiz
+        return new File(".");
+    }
+
+    /**
+     * Enfileira um aviso do servidor para o log da sala.
+     * @param roomName Nome da sala.
+     * @param message Conteúdo da mensagem.
+     */
+    public void append(String roomName, String message) {
+        append(roomName, null, message);
+    }
+
+    /**
+     * Enfileira uma mensagem para o log da sala. Não realiza I/O na thread chamadora,
+     * exceto quando a política SPILL é acionada.
+     * @param roomName Nome da sala.
+     * @param sender O remetente, ou null para avisos do servidor.
+     * @param message Conteúdo da mensagem.
+     */
+    public void append(String roomName, String sender, String message) {
+        enqueue(new LogEntry(roomName, System.currentTimeMillis(), sender, roomName, message, System.nanoTime(), null));
+    }
+
+    /**
+     * Enfileira uma mensagem transmitida na sala. Depois da gravação, a sequência do log
+     * é informada ao histórico da sala; se a entrada não chegar ao log, ela sai do histórico.
+     * @param roomName Nome da sala.
+     * @param frame A mensagem registrada no histórico da sala.
+     */
+    public void append(String roomName, MessageFrame frame) {
+        String sender = frame.kind() == MessageFrame.Kind.CHAT ? frame.user() : null;
+        enqueue(new LogEntry(roomName, System.currentTimeMillis(), sender, roomName, frame.text(), System.nanoTime(), frame));
+    }
+
+    /**
+     * Enfileira uma mensagem privada para o log privado, separado dos logs das salas.
+     * @param sender O remetente.
+     * @param target O destinatário.
+     * @param message Conteúdo da mensagem.
+     */
+    public void appendPrivate(String sender, String target, String message) {
+        enqueue(new LogEntry(null, System.currentTimeMillis(), sender, target, message, System.nanoTime(), null));
+    }
+
+    private void enqueue(LogEntry entry) {
+        closeLock.readLock().lock();
+        try {
+            // Depois do close() a thread escritora já não lê a fila
+            if (closed) {
+                drop(entry);
+                return;
+            }
+            if (queue.offer(entry)) {
+                return;
+            }
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        queue.put(entry);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        drop(entry);
+                    }
+                    break;
+                case SPILL:
+                    spill(entry);
+                    break;
+                case DROP:
+                default:
+                    drop(entry);
+                    break;
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Contabiliza uma entrada que não será gravada e a retira do histórico da sala.
+     */
+    private void drop(LogEntry entry) {
+        dropped.incrementAndGet();
+        ServerMetrics.logDropped();
+        discard(entry);
+    }
+
+    /**
+     * Retira do histórico da sala uma mensagem que não será gravada no log.
+     */
+    private void discard(LogEntry entry) {
+        RoomHistory roomHistory = history;
+        if (roomHistory != null && entry.frame() != null) {
+            roomHistory.discarded(entry.roomName(), entry.frame());
+        }
+    }
+
+    /**
+     * Grava a entrada de forma síncrona no arquivo de transbordo.
+     */
+    private void spill(LogEntry entry) {
+        // O transbordo fica fora do log da sala, sem sequência
+        discard(entry);
+        spillLock.lock();
+        try (Writer writer = new FileWriter(new File(logDir, "spill.txt"), true)) {
+            String stream = entry.roomName() != null ? entry.roomName() : "PRIVADO para " + entry.target();
+            String sender = entry.sender() != null ? entry.sender() + ": " : "";
+            writer.write("[" + stream + "] [" + Instant.ofEpochMilli(entry.timestamp()) + "] " + sender + entry.message() + System.lineSeparator());
+            spilled.incrementAndGet();
+            ServerMetrics.logSpilled();
+        } catch (IOException e) {
+            dropped.incrementAndGet();
+            ServerMetrics.logDropped();
+            System.err.println("SERVIDOR: Erro ao escrever no log de transbordo: " + e.getMessage());
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Loop da thread escritora: drena a fila em lotes e faz o flush agrupado
+     * ao atingir o tamanho do lote ou o intervalo configurado.
+     */
+    private void writeLoop() {
+        List<LogEntry> batch = new ArrayList<>(batchSize);
+        long lastFlush = System.nanoTime();
+        long lastRetention = System.currentTimeMillis();
+        int pending = 0;
+        boolean running = true;
+
+        while (running) {
+            long waitMillis = flushIntervalMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFlush);
+            try {
+                LogEntry first = queue.poll(Math.max(waitMillis, 1), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                }
+            } catch (InterruptedException e) {
+                // Interrupção só é usada para acordar a thread; o encerramento é sinalizado pela sentinela
+            }
+
+            for (LogEntry entry : batch) {
+                if (entry == END) {
+                    running = false;
+                } else {
+                    write(entry);
+                    pending++;
+                }
+            }
+            batch.clear();
+
+            if (pending > 0 && (!running || pending >= batchSize
+                    || System.nanoTime() - lastFlush >= TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis))) {
+                store.flush();
+                pending = 0;
+            }
+            if (pending == 0) {
+                lastFlush = System.nanoTime();
+            }
+            if (System.currentTimeMillis() - lastRetention >= RETENTION_INTERVAL_MILLIS) {
+                store.applyRetention();
+                lastRetention = System.currentTimeMillis();
+            }
+        }
+        store.close();
+    }
+
+    private void write(LogEntry entry) {
+        try {
+            long start = System.nanoTime();
+            long seq;
+            if (entry.roomName() != null) {
+                seq = store.appendRoom(entry.roomName(), entry.timestamp(), entry.sender(), entry.message());
+            } else {
+                seq = store.appendPrivate(entry.timestamp(), entry.sender(), entry.target(), entry.message());
+            }
+            long end = System.nanoTime();
+            ServerMetrics.logWrite(end - start, end - entry.enqueuedNanos());
+            RoomHistory roomHistory = history;
+            if (roomHistory != null && entry.frame() != null) {
+                roomHistory.recorded(entry.roomName(), entry.frame(), seq);
+            }
+            SearchIndex index = searchIndex;
+            if (index != null) {
+                index.add(new MessageRecord(seq, entry.timestamp(), entry.sender(), entry.target(), entry.message()),
+                        entry.roomName() == null);
+            }
+        } catch (IOException e) {
+            drop(entry);
+            String stream = entry.roomName() != null ? "da sala " + entry.roomName() : "privado";
+            System.err.println("SERVIDOR: Erro ao escrever no log " + stream + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * O armazenamento em que as mensagens são gravadas.
+     */
+    public MessageStore getStore() {
+        return store;
+    }
+
+    /**
+     * Define o índice de busca que recebe cada mensagem depois de gravada.
+     * @param searchIndex O índice, ou null para não indexar.
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Define o histórico em memória que recebe a sequência de cada mensagem de sala gravada.
+     * @param history O histórico, ou null para não informar.
+     */
+    public void setHistory(RoomHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * O diretório de logs efetivamente usado (a raiz, se não foi possível criar o configurado).
+     */
+    public File getLogDir() {
+        return logDir;
+    }
+
+    /**
+     * Número de entradas descartadas pela política DROP, por falha de escrita ou por chegarem
+     * depois do close().
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Número de entradas gravadas no arquivo de transbordo.
+     */
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    /**
+     * Encerra o escritor: grava todas as entradas pendentes, faz o flush final
+     * e fecha os arquivos abertos.
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,102 +1,238 @@
 package org.jorgeroberto;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 
 /**
  * Gerencia o estado centralizado do sistema de chat.
  * Lida com a criação dinâmica de salas e concorrência de acesso.
+ * As salas são distribuídas por hash entre RoomShards; cada shard é o único que altera
+ * os membros das suas salas e executa, em ordem, os broadcasts delas em uma thread própria.
+ * Os membros de cada sala ficam no RoomRegistry do shard, cujos snapshots são percorridos
+ * pelo broadcast sem lock e sem alocação.
+ * Uma troca de sala é feita em duas etapas: o shard da sala antiga retira o membro e
+ * repassa a entrada ao shard da sala nova, que o adiciona (se ele ainda estiver conectado).
+ * As mensagens recentes de cada sala ficam no RoomHistory e são reenviadas a quem entra.
+ * Em um cluster, broadcasts e mensagens privadas também são encaminhados pelo ClusterNode.
  */
 public class RoomManager {
-    private final Map<String, Set<ClientHandler>> rooms;
-    private final Map<String, ClientHandler> clients;
+    public static final int DEFAULT_REPLAY_COUNT = 20;
+
+    // Textos fixos dos avisos de entrada e saída, os mais frequentes do servidor;
+    // também formam o dicionário de compressão (FrameCompression)
+    static final String ENTERED_ROOM = " entrou na sala.";
+    static final String LEFT_ROOM = " saiu da sala.";
+    static final String RETURNED_TO_LOBBY = " retornou ao lobby.";
+    static final String ENTERED_LOBBY = " entrou no lobby.";
+    static final String YOU_ENTERED = "SERVER: Você entrou na sala ";
+    static final String YOU_LEFT = "SERVER: Você saiu de ";
+    static final String REPLAY_HEADER = "SERVER: Últimas ";
+    static final String REPLAY_ROOM = " mensagens de ";
+    static final String HISTORY_HINT = "SERVER: Use /history <n> para ver mensagens anteriores.";
+
+    private final RoomShard[] shards;
+    private final Map<String, ChatConnection> clients;
+    // Todas as conexões abertas, identificadas ou não, para o encerramento ordenado
+    private final Set<ChatConnection> connections = ConcurrentHashMap.newKeySet();
+    // Salas dos usuários no processo anterior, aguardando a reconexão deles
+    private final Map<String, String> restoredRooms = new ConcurrentHashMap<>();
+    private volatile long restoredUntil;
+    private final RoomLogWriter logWriter;
+    private final RoomHistory history;
+    // Quantidade de mensagens reenviadas ao entrar em uma sala
+    private final int replayCount;
+    private volatile ClusterNode cluster;
+    private volatile FloodControl.Policy floodPolicy = FloodControl.Policy.DEFAULT;
+    private volatile Heartbeat heartbeat;
+    private volatile SearchIndex searchIndex;
 
     /**
-     * Construtor, inicializa as coleções e garante que a sala 'lobby' exista.
+     * Construtor padrão, grava os logs na pasta 'logs/' do diretório de execução.
      */
     public RoomManager() {
-        this.rooms = new ConcurrentHashMap<>();
+        this(new RoomLogWriter(new File("logs")));
+    }
+
+    /**
+     * Construtor com o histórico padrão, lido do mesmo armazenamento dos logs.
+     * @param logWriter O escritor assíncrono responsável pelos logs das salas.
+     */
+    public RoomManager(RoomLogWriter logWriter) {
+        this(logWriter, new RoomHistory(logWriter.getStore()), DEFAULT_REPLAY_COUNT);
+    }
+
+    /**
+     * Construtor sem threads de shard: as operações rodam na thread chamadora.
+     * @param logWriter O escritor assíncrono responsável pelos logs das salas.
+     * @param history O histórico em memória das salas.
+     * @param replayCount Quantidade de mensagens reenviadas a quem entra em uma sala.
+     */
+    public RoomManager(RoomLogWriter logWriter, RoomHistory history, int replayCount) {
+        this(logWriter, history, replayCount, 0);
+    }
+
+    /**
+     * Construtor, inicializa as coleções e os shards.
+     * @param logWriter O escritor assíncrono responsável pelos logs das salas.
+     * @param history O histórico em memória das salas.
+     * @param replayCount Quantidade de mensagens reenviadas a quem entra em uma sala.
+     * @param shardCount Quantidade de shards com thread própria; 0 executa tudo na thread chamadora.
+     */
+    public RoomManager(RoomLogWriter logWriter, RoomHistory history, int replayCount, int shardCount) {
+        this.shards = new RoomShard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new RoomShard(shardCount > 0 ? "room-shard-" + i : null);
+        }
         this.clients = new ConcurrentHashMap<>();
-        // Garante que a sala 'lobby' exista por padrão
-        rooms.put("lobby", Collections.synchronizedSet(new HashSet<>()));
+        this.logWriter = logWriter;
+        this.history = history;
+        this.replayCount = replayCount;
+        // As posições do histórico vêm das sequências gravadas no log
+        logWriter.setHistory(history);
+    }
+
+    private RoomShard shardOf(String roomName) {
+        return shards[Math.floorMod(roomName.hashCode(), shards.length)];
+    }
+
+    /**
+     * Registra uma conexão recém-aberta, antes da identificação do cliente.
+     * @param handler O ChatConnection do cliente.
+     */
+    public void addConnection(ChatConnection handler) {
+        connections.add(handler);
     }
 
     /**
      * Adiciona um novo cliente ao sistema e à sala inicial.
-     * @param handler O ClientHandler do novo cliente.
+     * O nome é a identidade do usuário (mensagens privadas, busca), então não pode estar em uso
+     * neste nó nem, pelo que os pares informaram, em outro nó do cluster.
+     * @param handler O ChatConnection do novo cliente.
      * @param userName O nome de usuário escolhido.
      * @param roomName O nome da sala inicial ('lobby').
+     * @return false se o nome já está em uso; nesse caso o cliente não é adicionado.
      */
-    public void addClient(ClientHandler handler, String userName, String roomName) {
-        clients.put(userName, handler);
-        rooms.computeIfAbsent(roomName, k -> Collections.synchronizedSet(new HashSet<>())).add(handler);
+    public boolean addClient(ChatConnection handler, String userName, String roomName) {
+        ClusterNode node = cluster;
+        if ((node != null && node.hasRemoteUser(userName)) || clients.putIfAbsent(userName, handler) != null) {
+            return false;
+        }
+        RoomShard shard = shardOf(roomName);
+        shard.execute(() -> shard.rooms().add(roomName, handler));
+        if (node != null) {
+            node.userChanged(userName);
+        }
+        return true;
     }
 
     /**
      * Remove o cliente do sistema e da sala atual. Chamado ao desconectar.
-     * @param handler O ClientHandler a ser removido.
+     * O cliente sai do diretório antes de sair da sala, para que uma troca de sala
+     * ainda em andamento não o adicione de volta.
+     * @param handler O ChatConnection a ser removido.
      * @param roomName A sala da qual o cliente está saindo.
      */
-    public void removeClient(ClientHandler handler, String roomName) {
-        if (handler.getUserName() != null) {
-            clients.remove(handler.getUserName());
+    public void removeClient(ChatConnection handler, String roomName) {
+        connections.remove(handler);
+        if (handler.getUserName() != null && clients.remove(handler.getUserName(), handler)) {
+            ClusterNode node = cluster;
+            if (node != null) {
+                node.userChanged(handler.getUserName());
+            }
         }
-        Set<ClientHandler> roomClients = rooms.get(roomName);
-        if (roomClients != null) {
-            roomClients.remove(handler);
+        RoomShard shard = shardOf(roomName);
+        shard.execute(() -> shard.rooms().remove(roomName, handler));
+    }
+
+    /**
+     * Liga este gerenciador a um cluster: passa a publicar as salas ocupadas e os
+     * usuários locais e a encaminhar broadcasts e mensagens privadas aos outros nós.
+     * @param cluster O nó local do cluster.
+     */
+    void attachCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+        for (RoomShard shard : shards) {
+            shard.rooms().setOccupancyListener(cluster::roomChanged);
         }
     }
 
     /**
      * Move um cliente de uma sala para outra, criando a nova sala dinamicamente, se necessário.
-     * Notifica ambas as salas sobre a transição.
-     * @param handler O ClientHandler do cliente que está mudando de sala.
+     * Notifica ambas as salas sobre a transição e reenvia ao cliente as últimas mensagens da nova sala.
+     * A troca é assíncrona: o cursor do histórico é entregue depois que o cliente entra na nova sala
+     * e a entrada é anunciada, momento a partir do qual as mensagens dele devem ir para a nova sala.
+     * @param handler O ChatConnection do cliente que está mudando de sala.
      * @param userName O nome do usuário.
      * @param oldRoom O nome da sala atual.
      * @param newRoom O nome da sala de destino.
+     * @param onJoined Recebe o cursor para continuar o histórico a partir das mensagens reenviadas.
      */
-    public void joinRoom(ClientHandler handler, String userName, String oldRoom, String newRoom) {
-        // Notifica e remove da sala antiga
-        broadcast(oldRoom, "SERVER: " + userName + " saiu da sala para entrar em " + newRoom, handler);
-        Set<ClientHandler> oldRoomClients = rooms.get(oldRoom);
-        if (oldRoomClients != null) {
-            oldRoomClients.remove(handler);
-        }
+    public void joinRoom(ChatConnection handler, String userName, String oldRoom, String newRoom, LongConsumer onJoined) {
+        RoomShard from = shardOf(oldRoom);
+        from.execute(() -> {
+            // Notifica a sala antiga e retira o membro
+            publish(oldRoom, MessageFrame.of("SERVER: " + userName + " saiu da sala para entrar em " + newRoom), handler);
+            from.rooms().remove(oldRoom, handler);
 
-        // Adiciona à nova sala (cria se não existir)
-        rooms.computeIfAbsent(newRoom, k -> Collections.synchronizedSet(new HashSet<>())).add(handler);
-        handler.sendMessage("SERVER: Você entrou na sala " + newRoom);
+            RoomShard to = shardOf(newRoom);
+            to.execute(() -> {
+                if (clients.get(userName) != handler) {
+                    return; // Desconectou durante a troca
+                }
+                // Histórico lido e membro adicionado na mesma tarefa: nada se perde nem se repete
+                RoomHistory.Page page = history.recent(newRoom, replayCount);
+                to.rooms().add(newRoom, handler);
+                List<MessageFrame> batch = new ArrayList<>(page.frames().size() + 3);
+                batch.add(MessageFrame.of(YOU_ENTERED + newRoom));
+                if (!page.isEmpty()) {
+                    batch.add(MessageFrame.of(REPLAY_HEADER + page.frames().size() + REPLAY_ROOM + newRoom + ":"));
+                    batch.addAll(page.frames());
+                    batch.add(MessageFrame.of(HISTORY_HINT));
+                }
+                // Entregue como um único frame, escrito de uma vez no socket
+                handler.send(MessageFrame.batch(batch));
 
-        // Notifica a nova sala
-        broadcast(newRoom, "SERVER: " + userName + " entrou na sala.", handler);
+                // Notifica a nova sala antes de liberar as mensagens do cliente para ela
+                publish(newRoom, MessageFrame.of("SERVER: " + userName + ENTERED_ROOM), handler);
+                onJoined.accept(page.cursor());
+            });
+        });
     }
 
     /**
-     * Remove um cliente de uma sala e o realoca no lobby.
-     * @param handler O ClientHandler do cliente que está saindo.
+     * Remove um cliente de uma sala e o realoca no lobby, com a mesma troca em duas etapas do joinRoom.
+     * @param handler O ChatConnection do cliente que está saindo.
      * @param userName O nome do usuário.
      * @param oldRoom A sala da qual o cliente está saindo.
      * @param lobbyRoom O nome do lobby ("lobby").
+     * @param onLeft Chamado quando o cliente já está no lobby.
      */
-    public void leaveRoom(ClientHandler handler, String userName, String oldRoom, String lobbyRoom) {
-        // Remove da sala atual
-        Set<ClientHandler> oldRoomClients = rooms.get(oldRoom);
-        if (oldRoomClients != null) {
-            oldRoomClients.remove(handler);
-        }
-        broadcast(oldRoom, "SERVER: " + userName + " saiu da sala.", handler);
+    public void leaveRoom(ChatConnection handler, String userName, String oldRoom, String lobbyRoom, Runnable onLeft) {
+        RoomShard from = shardOf(oldRoom);
+        from.execute(() -> {
+            from.rooms().remove(oldRoom, handler);
+            publish(oldRoom, MessageFrame.of("SERVER: " + userName + LEFT_ROOM), handler);
+            handler.sendMessage(YOU_LEFT + oldRoom + " e entrou no " + lobbyRoom);
 
-        // Adiciona ao lobby
-        rooms.computeIfAbsent(lobbyRoom, k -> Collections.synchronizedSet(new HashSet<>())).add(handler);
-        handler.sendMessage("SERVER: Você saiu de " + oldRoom + " e entrou no " + lobbyRoom);
-        broadcast(lobbyRoom, "SERVER: " + userName + " retornou ao lobby.", handler);
+            RoomShard to = shardOf(lobbyRoom);
+            to.execute(() -> {
+                if (clients.get(userName) != handler) {
+                    return; // Desconectou durante a troca
+                }
+                to.rooms().add(lobbyRoom, handler);
+                publish(lobbyRoom, MessageFrame.of("SERVER: " + userName + RETURNED_TO_LOBBY), handler);
+                onLeft.run();
+            });
+        });
     }
 
 
@@ -104,66 +240,93 @@ public class RoomManager {
      * Envia uma mensagem de broadcast para todos os clientes em uma sala específica.
      * @param roomName O nome da sala para onde a mensagem será enviada.
      * @param message A mensagem a ser transmitida.
-     * @param sender O ClientHandler do remetente (null se for mensagem do servidor), usado para não retransmitir a mensagem para ele mesmo.
+     * @param sender O ChatConnection do remetente (null se for mensagem do servidor), usado para não retransmitir a mensagem para ele mesmo.
      */
-    public void broadcast(String roomName, String message, ClientHandler sender) {
-        logMessage(roomName, message);
+    public void broadcast(String roomName, String message, ChatConnection sender) {
+        broadcast(roomName, MessageFrame.of(message), sender);
+    }
 
-        Set<ClientHandler> roomClients = rooms.get(roomName);
-        if (roomClients != null) {
-            for (ClientHandler client : roomClients) {
-                if (client != sender) {
-                    client.sendMessage(message);
+    /**
+     * Transmite a mensagem digitada por um usuário para a sua sala atual.
+     * @param roomName O nome da sala.
+     * @param userName O nome do remetente.
+     * @param text O conteúdo digitado.
+     * @param sender O ChatConnection do remetente, que não recebe a própria mensagem.
+     */
+    public void broadcastChat(String roomName, String userName, String text, ChatConnection sender) {
+        MessageFrame frame = MessageFrame.chat(roomName, userName, text);
+        RoomShard shard = shardOf(roomName);
+        // O limite da sala é verificado pela tarefa do shard, dona dos baldes das suas salas
+        shard.execute(() -> {
+            if (!shard.tryAcquireRoom(roomName, floodPolicy)) {
+                ServerMetrics.floodDropped(true);
+                if (sender != null) {
+                    sender.sendMessage("SERVER: A sala " + roomName + " atingiu o limite de mensagens. Sua mensagem foi descartada.");
                 }
+                return;
             }
-        }
+            publish(roomName, frame, sender);
+        });
+    }
+
+    private void broadcast(String roomName, MessageFrame frame, ChatConnection sender) {
+        shardOf(roomName).execute(() -> publish(roomName, frame, sender));
     }
 
     /**
-     * Sobrecarga de broadcast para mensagens originadas do servidor.
+     * Entrega aos membros locais um broadcast recebido de outro nó do cluster.
      * @param roomName O nome da sala.
-     * @param message A mensagem do servidor.
+     * @param frame A mensagem.
      */
-    public void broadcast(String roomName, String message) {
-        broadcast(roomName, message, null);
+    void deliverRemote(String roomName, MessageFrame frame) {
+        shardOf(roomName).execute(() -> deliver(roomName, frame, null));
     }
 
     /**
-     * Salva a mensagem no arquivo de log da sala correspondente.
-     * O arquivo será criado no formato: sala_nome.txt
-     * @param roomName Nome da sala.
-     * @param message Conteúdo da mensagem.
+     * Entrega local e encaminhamento ao cluster. Executado pelo shard da sala.
      */
-    private void logMessage(String roomName, String message) {
+    private void publish(String roomName, MessageFrame frame, ChatConnection sender) {
+        deliver(roomName, frame, sender);
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.forwardBroadcast(roomName, frame);
+        }
+    }
 
-        // Cria o diretório de logs
-        File logDir = new File("logs");
+    private void deliver(String roomName, MessageFrame frame, ChatConnection sender) {
+        history.append(roomName, frame);
+        logMessage(roomName, frame);
 
-        // Cria o diretório senão existir
-        if (!logDir.exists()) {
-            if (logDir.mkdir()) {
-                System.out.println("SERVIDOR: Pasta 'logs/' criada com sucesso.");
-            } else {
-                System.err.println("SERVIDOR: Erro ao criar a pasta 'logs/'. Salvando na raiz.");
-                // Se não conseguir criar a pasta, salva na raiz
-                logDir = new File(".");
+        // O mesmo frame é entregue a todos; cada codificação é feita uma única vez
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (ChatConnection client : shardOf(roomName).rooms().members(roomName)) {
+            if (client != sender) {
+                client.send(frame);
+                recipients++;
             }
         }
+        ServerMetrics.broadcast(roomName, recipients, System.nanoTime() - start);
+    }
 
-        //  Define o nome do arquivo dentro da pasta 'logs/'
-        String baseFileName = roomName.replace("#", "") + ".txt";
-        File logFile = new File(logDir, baseFileName);
-
-        try (
-                FileWriter fw = new FileWriter(logFile, true);
-                PrintWriter pw = new PrintWriter(fw)
-        ) {
-            String logEntry = String.format("[%s] %s", java.time.LocalTime.now(), message);
-            pw.println(logEntry);
+    /**
+     * Sobrecarga de broadcast para mensagens originadas do servidor.
+     * @param roomName O nome da sala.
+     * @param message A mensagem do servidor.
+     */
+    public void broadcast(String roomName, String message) {
+        broadcast(roomName, message, null);
+    }
 
-        } catch (IOException e) {
-            System.err.println("SERVIDOR: Erro ao escrever no log da sala " + roomName + ": " + e.getMessage());
-        }
+    /**
+     * Enfileira a mensagem para o log da sala correspondente.
+     * A gravação é feita em lote pelo RoomLogWriter, fora da thread do remetente,
+     * no diretório logs/rooms/sala_nome/.
+     * @param roomName Nome da sala.
+     * @param frame A mensagem transmitida.
+     */
+    private void logMessage(String roomName, MessageFrame frame) {
+        logWriter.append(roomName, frame);
     }
 
     /**
@@ -174,27 +337,234 @@ public class RoomManager {
      * @return true se o destinatário foi encontrado e a mensagem foi enviada, false caso contrário.
      */
     public boolean sendPrivateMessage(String senderName, String targetName, String message) {
-        ClientHandler targetHandler = clients.get(targetName);
-        String logRoom = "private";
+        ChatConnection targetHandler = clients.get(targetName);
+        boolean delivered;
+        if (targetHandler != null) {
+            targetHandler.send(MessageFrame.privateFrom(senderName, message));
+            delivered = true;
+        } else {
+            // Destinatário em outro nó do cluster
+            ClusterNode node = cluster;
+            delivered = node != null && node.forwardPrivate(senderName, targetName, message);
+        }
+        ServerMetrics.privateMessage(delivered);
+        if (!delivered) {
+            return false;
+        }
+        // Mensagens privadas ficam no log privado do nó do remetente, separado das salas
+        logWriter.appendPrivate(senderName, targetName, message);
+
+        ChatConnection senderHandler = clients.get(senderName);
+        if (senderHandler != null) {
+            senderHandler.send(MessageFrame.privateTo(targetName, message));
+        }
+        return true;
+    }
 
+    /**
+     * Entrega uma mensagem privada roteada por outro nó do cluster.
+     * @param senderName O nome do remetente, conectado ao outro nó.
+     * @param targetName O nome do destinatário local.
+     * @param message A mensagem.
+     */
+    void deliverRemotePrivate(String senderName, String targetName, String message) {
+        ChatConnection targetHandler = clients.get(targetName);
         if (targetHandler != null) {
-            logMessage(logRoom, "[PRIVADO de " + senderName + " para " + targetName + "]: " + message);
+            targetHandler.send(MessageFrame.privateFrom(senderName, message));
+        }
+    }
+
+    /**
+     * Busca mensagens anteriores de uma sala, para o comando /history.
+     * @param roomName O nome da sala.
+     * @param cursor O cursor da última página vista, ou RoomHistory.LATEST.
+     * @param count Quantidade máxima de mensagens.
+     * @return A página encontrada, da mensagem mais antiga para a mais recente.
+     */
+    public RoomHistory.Page history(String roomName, long cursor, int count) {
+        return history.before(roomName, cursor, count);
+    }
 
-            targetHandler.sendMessage("(PRIVADO de " + senderName + "): " + message);
+    /**
+     * Define os limites de mensagens por usuário e por sala. Deve ser chamado antes de aceitar conexões.
+     * @param floodPolicy Os limites.
+     */
+    public void setFloodPolicy(FloodControl.Policy floodPolicy) {
+        this.floodPolicy = floodPolicy;
+    }
 
-            ClientHandler senderHandler = clients.get(senderName);
-            if (senderHandler != null) {
-                senderHandler.sendMessage("(PRIVADO para " + targetName + "): " + message);
-            }
-            return true;
+    public FloodControl.Policy getFloodPolicy() {
+        return floodPolicy;
+    }
+
+    /**
+     * Ativa a detecção de conexões inativas para as próximas conexões. Deve ser chamado antes de aceitar conexões.
+     * @param heartbeat O monitor de heartbeat, ou null para desativar.
+     */
+    public void setHeartbeat(Heartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    public Heartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * Ativa o comando /search e passa a indexar as mensagens gravadas.
+     * @param searchIndex O índice de busca, ou null para desativar.
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+        logWriter.setSearchIndex(searchIndex);
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Quantidade de mensagens reenviadas ao entrar em uma sala.
+     */
+    public int getReplayCount() {
+        return replayCount;
+    }
+
+    /**
+     * Indica se a sala tem membros conectados a este servidor.
+     */
+    boolean hasLocalMembers(String roomName) {
+        return shardOf(roomName).rooms().members(roomName).length > 0;
+    }
+
+    /**
+     * Salas com membros conectados a este servidor.
+     */
+    List<String> localRooms() {
+        List<String> occupied = new ArrayList<>();
+        for (RoomShard shard : shards) {
+            occupied.addAll(shard.rooms().occupiedRooms());
         }
-        return false;
+        return occupied;
     }
 
     /**
-     * Obtém o ClientHandler de um usuário específico.
+     * Usuários conectados a este servidor.
      */
-    public ClientHandler getClient(String userName) {
+    Set<String> localUsers() {
+        return clients.keySet();
+    }
+
+    /**
+     * Conexões identificadas neste servidor (visão viva, sem cópia).
+     */
+    Collection<ChatConnection> localConnections() {
+        return clients.values();
+    }
+
+    /**
+     * Obtém o ChatConnection de um usuário específico.
+     */
+    public ChatConnection getClient(String userName) {
         return clients.get(userName);
     }
+
+    /**
+     * Sala de cada usuário conectado a este servidor, exceto os que estão no lobby.
+     */
+    Map<String, String> membership() {
+        Map<String, String> membership = new HashMap<>();
+        for (RoomShard shard : shards) {
+            for (String roomName : shard.rooms().occupiedRooms()) {
+                if (roomName.equals("lobby")) {
+                    continue;
+                }
+                for (ChatConnection client : shard.rooms().members(roomName)) {
+                    if (client.getUserName() != null) {
+                        membership.put(client.getUserName(), roomName);
+                    }
+                }
+            }
+        }
+        return membership;
+    }
+
+    /**
+     * Avisa todos os clientes e encerra as conexões depois de enviar as mensagens pendentes.
+     * @param notice O aviso enviado a cada cliente.
+     * @param timeoutMillis Prazo para as filas de saída esvaziarem.
+     * @return Quantidade de conexões ainda abertas ao fim do prazo.
+     */
+    int drain(String notice, long timeoutMillis) {
+        MessageFrame frame = MessageFrame.of(notice);
+        for (ChatConnection client : connections) {
+            client.send(frame);
+            client.close();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (!connections.isEmpty() && deadline - System.nanoTime() > 0) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return connections.size();
+    }
+
+    /**
+     * Restaura as salas dos usuários do processo anterior: o histórico recente dessas salas
+     * é carregado do disco e cada usuário volta à sua sala ao se identificar de novo.
+     * @param membership A sala de cada usuário.
+     * @param expiresAt Instante, em milissegundos desde a época, após o qual as salas deixam de ser restauradas.
+     */
+    void restoreMembership(Map<String, String> membership, long expiresAt) {
+        for (String roomName : new HashSet<>(membership.values())) {
+            history.preload(roomName, replayCount);
+        }
+        restoredRooms.putAll(membership);
+        restoredUntil = expiresAt;
+    }
+
+    /**
+     * Retira a sala em que o usuário estava antes do reinício do servidor.
+     * @param userName O nome do usuário.
+     * @return A sala, ou null se não houver uma a restaurar.
+     */
+    String takeRestoredRoom(String userName) {
+        if (restoredRooms.isEmpty()) {
+            return null;
+        }
+        String roomName = restoredRooms.remove(userName);
+        if (System.currentTimeMillis() >= restoredUntil) {
+            restoredRooms.clear();
+            return null;
+        }
+        return roomName;
+    }
+
+    /**
+     * Salas para onde os usuários restaurados voltarão.
+     */
+    Set<String> restoredRoomNames() {
+        return new HashSet<>(restoredRooms.values());
+    }
+
+    /**
+     * Encerra o gerenciador, gravando em disco todos os logs pendentes.
+     */
+    public void shutdown() {
+        Heartbeat monitor = heartbeat;
+        if (monitor != null) {
+            monitor.close();
+        }
+        for (RoomShard shard : shards) {
+            shard.close();
+        }
+        history.close();
+        logWriter.close();
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.close();
+        }
+    }
 }
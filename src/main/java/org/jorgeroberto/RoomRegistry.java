@@ -0,0 +1,158 @@
+package org.jorgeroberto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Registro de membros das salas, otimizado para uma carga dominada por leituras
+ * (broadcasts muito mais frequentes que entradas e saídas).
+ * Cada sala guarda um array imutável de membros que é trocado atomicamente a cada
+ * alteração (copy-on-write): o broadcast percorre o snapshot sem lock e sem alocação.
+ * As alterações são serializadas por um único lock de escrita, o que permite mover um
+ * membro entre salas de forma atômica e remover salas vazias sem corrida com novas entradas.
+ */
+public class RoomRegistry {
+
+    public static final String LOBBY = "lobby";
+
+    private static final ChatConnection[] EMPTY = new ChatConnection[0];
+
+    /**
+     * Sala com seu snapshot atual de membros.
+     */
+    private static final class Room {
+        private volatile ChatConnection[] members = EMPTY;
+    }
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Avisado quando uma sala ganha o primeiro membro ou perde o último
+    private volatile Consumer<String> occupancyListener = roomName -> { };
+
+    /**
+     * Construtor, garante que a sala 'lobby' exista por padrão.
+     */
+    public RoomRegistry() {
+        rooms.put(LOBBY, new Room());
+    }
+
+    /**
+     * Obtém o snapshot atual dos membros de uma sala. Nunca bloqueia.
+     * O array retornado é compartilhado e não deve ser modificado.
+     * @param roomName O nome da sala.
+     * @return Os membros da sala, ou um array vazio se a sala não existir.
+     */
+    public ChatConnection[] members(String roomName) {
+        Room room = rooms.get(roomName);
+        return room != null ? room.members : EMPTY;
+    }
+
+    /**
+     * Adiciona um membro a uma sala, criando-a se necessário.
+     * @param roomName O nome da sala.
+     * @param member A conexão do membro.
+     */
+    public void add(String roomName, ChatConnection member) {
+        writeLock.lock();
+        try {
+            addLocked(roomName, member);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Remove um membro de uma sala. Salas vazias (exceto o lobby) são descartadas.
+     * @param roomName O nome da sala.
+     * @param member A conexão do membro.
+     */
+    public void remove(String roomName, ChatConnection member) {
+        writeLock.lock();
+        try {
+            removeLocked(roomName, member);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Define quem é avisado quando uma sala passa a ter membros ou fica vazia.
+     * O aviso é feito sob o lock de escrita e não deve bloquear.
+     * @param listener Recebe o nome da sala.
+     */
+    public void setOccupancyListener(Consumer<String> listener) {
+        this.occupancyListener = listener;
+    }
+
+    /**
+     * Nomes das salas que têm pelo menos um membro.
+     */
+    public List<String> occupiedRooms() {
+        List<String> occupied = new ArrayList<>();
+        rooms.forEach((name, room) -> {
+            if (room.members.length > 0) {
+                occupied.add(name);
+            }
+        });
+        return occupied;
+    }
+
+    /**
+     * Número de salas existentes, incluindo o lobby.
+     */
+    public int roomCount() {
+        return rooms.size();
+    }
+
+    private void addLocked(String roomName, ChatConnection member) {
+        Room room = rooms.computeIfAbsent(roomName, k -> new Room());
+        ChatConnection[] current = room.members;
+        for (ChatConnection existing : current) {
+            if (existing == member) {
+                return;
+            }
+        }
+        ChatConnection[] updated = new ChatConnection[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = member;
+        room.members = updated;
+        if (current.length == 0) {
+            occupancyListener.accept(roomName);
+        }
+    }
+
+    private void removeLocked(String roomName, ChatConnection member) {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return;
+        }
+        ChatConnection[] current = room.members;
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == member) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        if (current.length == 1) {
+            room.members = EMPTY;
+            // Salas vazias são recuperadas para que o mapa não cresça sem limite
+            if (!LOBBY.equals(roomName)) {
+                rooms.remove(roomName);
+            }
+            occupancyListener.accept(roomName);
+            return;
+        }
+        ChatConnection[] updated = new ChatConnection[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        room.members = updated;
+    }
+}
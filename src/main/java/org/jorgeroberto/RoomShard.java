@@ -0,0 +1,179 @@
+package org.jorgeroberto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Partição das salas do RoomManager, dona exclusiva dos membros das suas salas.
+ * Todas as operações sobre essas salas (entradas, saídas e broadcasts) são enfileiradas
+ * em uma fila MPSC e executadas, na ordem de chegada, por uma única thread: os eventos
+ * de uma sala têm ordem bem definida sem locks entre os remetentes.
+ * Sem thread própria (modo inline), as tarefas rodam na thread chamadora.
+ * Depois do encerramento, tarefas ainda enviadas (por exemplo, a segunda etapa de uma troca
+ * de sala ou a saída de um cliente durante o desligamento) também rodam na thread chamadora,
+ * uma de cada vez e na ordem de chegada, em vez de ficarem perdidas na fila.
+ *
+ * O shard também é dono dos limites de mensagens das suas salas: os baldes só são acessados
+ * pelas tarefas do shard, então o mapa não precisa de lock na thread do shard.
+ */
+final class RoomShard implements AutoCloseable {
+
+    private final RoomRegistry rooms = new RoomRegistry();
+    // Fila lock-free: vários produtores, um único consumidor
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean parked;
+    private volatile boolean running = true;
+    // A thread do shard terminou: quem envia uma tarefa passa a executá-la
+    private volatile boolean terminated;
+    private final ReentrantLock drainLock = new ReentrantLock();
+    // Limite de mensagens de cada sala, em ordem de acesso; acima de MAX_ROOM_BUCKETS, o balde
+    // usado há mais tempo (em geral já cheio, equivalente a um novo) é descartado
+    private final Map<String, TokenBucket> roomBuckets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_ROOM_BUCKETS;
+        }
+    };
+    private FloodControl.Policy bucketPolicy;
+    // Só no modo inline, em que as tarefas rodam em várias threads ao mesmo tempo
+    private final ReentrantLock inlineBucketsLock = new ReentrantLock();
+    static final int MAX_ROOM_BUCKETS = 10_000;
+
+    /**
+     * Construtor.
+     * @param name Nome da thread do shard, ou null para executar as tarefas na thread chamadora.
+     */
+    RoomShard(String name) {
+        thread = name != null ? Thread.ofPlatform().daemon().name(name).start(this::runLoop) : null;
+    }
+
+    /**
+     * Membros das salas deste shard. Alterações só devem ser feitas por tarefas do shard;
+     * leituras podem ser feitas de qualquer thread.
+     */
+    RoomRegistry rooms() {
+        return rooms;
+    }
+
+    /**
+     * Consome uma mensagem do limite da sala. Só deve ser chamado por tarefas do shard.
+     * @param roomName O nome da sala.
+     * @param policy Os limites atuais; baldes criados com outros limites são descartados.
+     * @return false se a sala atingiu o limite.
+     */
+    boolean tryAcquireRoom(String roomName, FloodControl.Policy policy) {
+        if (policy.roomRate() <= 0) {
+            return true;
+        }
+        if (thread != null) {
+            return roomBucket(roomName, policy).tryAcquire();
+        }
+        inlineBucketsLock.lock();
+        try {
+            return roomBucket(roomName, policy).tryAcquire();
+        } finally {
+            inlineBucketsLock.unlock();
+        }
+    }
+
+    private TokenBucket roomBucket(String roomName, FloodControl.Policy policy) {
+        if (policy != bucketPolicy) {
+            roomBuckets.clear();
+            bucketPolicy = policy;
+        }
+        TokenBucket bucket = roomBuckets.get(roomName);
+        if (bucket == null) {
+            bucket = new TokenBucket(policy.roomRate(), policy.roomBurst());
+            roomBuckets.put(roomName, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Enfileira uma tarefa para a thread do shard. Nunca bloqueia.
+     */
+    void execute(Runnable task) {
+        if (thread == null) {
+            task.run();
+            return;
+        }
+        tasks.offer(task);
+        if (terminated) {
+            drain();
+        } else if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Executa as tarefas que chegaram depois do fim da thread do shard.
+     */
+    private void drain() {
+        if (drainLock.isHeldByCurrentThread()) {
+            return; // Enviada por uma tarefa em execução: roda depois dela, como na thread do shard
+        }
+        drainLock.lock();
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                run(task);
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("SERVIDOR: Erro em " + Thread.currentThread().getName() + ": " + e);
+        }
+    }
+
+    private void runLoop() {
+        while (true) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                if (!running) {
+                    // Uma tarefa enviada antes de o encerramento ficar visível é executada aqui;
+                    // as seguintes encontram terminated e são executadas por quem as enviou
+                    terminated = true;
+                    drain();
+                    return;
+                }
+                // Publica a intenção de dormir antes de checar a fila de novo, para não perder um aviso
+                parked = true;
+                if (tasks.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+            run(task);
+        }
+    }
+
+    /**
+     * Executa as tarefas pendentes e encerra a thread do shard. Tarefas enviadas depois disso
+     * rodam na thread chamadora.
+     */
+    @Override
+    public void close() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
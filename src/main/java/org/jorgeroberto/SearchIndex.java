@@ -0,0 +1,757 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Índice invertido, em memória, das mensagens de salas e privadas, usado pelo comando /search.
+ * <p>
+ * O RoomLogWriter entrega cada mensagem gravada a uma fila; uma thread própria a separa em
+ * termos e a acumula em um segmento em construção, que é selado (tornando-se imutável e visível
+ * às buscas) a cada {@value #FLUSH_DOCS} mensagens ou {@value #FLUSH_INTERVAL_MILLIS} ms. Uma segunda
+ * thread junta em segundo plano {@value #MERGE_FACTOR} segmentos vizinhos do mesmo nível em um
+ * só, mantendo pequeno o número de segmentos consultados, e remove periodicamente as mensagens
+ * que a retenção já apagou do MessageStore. As buscas leem a lista de segmentos sem bloqueio,
+ * então indexar nunca atrasa o broadcast nem as buscas.
+ * <p>
+ * O índice não é gravado em disco: na inicialização, é reconstruído a partir do MessageStore,
+ * em segundo plano. Cada segmento guarda, por mensagem, o log de origem, a sequência, o instante,
+ * o remetente e (nas privadas) o destinatário; o texto é lido do MessageStore apenas para os
+ * resultados exibidos.
+ */
+public final class SearchIndex implements AutoCloseable {
+
+    public static final int DEFAULT_LIMIT = 10;
+
+    private static final int QUEUE_CAPACITY = 65_536;
+    private static final int FLUSH_DOCS = 4096;
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+    private static final int MERGE_FACTOR = 8;
+    private static final long MERGE_INTERVAL_MILLIS = 500;
+    private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int REBUILD_PAGE = 1000;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+    // Nome do log privado entre os logs indexados; salas sempre começam com '#' ou são o lobby
+    private static final String PRIVATE_LOG = "@private";
+
+    /**
+     * Busca interpretada: termos (todos obrigatórios) e filtros opcionais.
+     * @param terms Os termos normalizados.
+     * @param room A sala (#nome), ou null para todas.
+     * @param sender O remetente (from:nome), ou null para todos.
+     * @param since Instante mínimo, em milissegundos desde a época (since:2h, since:7d), ou 0.
+     */
+    public record Query(Set<String> terms, String room, String sender, long since) {
+
+        /**
+         * Interpreta o argumento do comando /search.
+         */
+        public static Query parse(String text) {
+            Set<String> terms = new LinkedHashSet<>();
+            String room = null;
+            String sender = null;
+            long since = 0;
+            for (String word : text.trim().split("\\s+")) {
+                if (word.startsWith("#") && word.length() > 1) {
+                    // Como no /join, salas são sempre minúsculas; o lobby é a única sem '#' no nome
+                    String name = word.toLowerCase();
+                    room = name.equals("#" + RoomRegistry.LOBBY) ? RoomRegistry.LOBBY : name;
+                } else if (word.startsWith("from:") && word.length() > 5) {
+                    sender = word.substring(5);
+                } else if (word.startsWith("since:") && word.length() > 7) {
+                    since = parseSince(word.substring(6));
+                } else {
+                    terms.addAll(tokenize(word));
+                }
+            }
+            return new Query(terms, room, sender, since);
+        }
+
+        private static long parseSince(String value) {
+            long amount;
+            try {
+                amount = Long.parseLong(value.substring(0, value.length() - 1));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+            switch (value.charAt(value.length() - 1)) {
+                case 'm':
+                    return System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(amount);
+                case 'h':
+                    return System.currentTimeMillis() - TimeUnit.HOURS.toMillis(amount);
+                case 'd':
+                    return System.currentTimeMillis() - TimeUnit.DAYS.toMillis(amount);
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    /**
+     * Mensagem encontrada.
+     * @param record A mensagem, lida do MessageStore. Em mensagens privadas, target é o destinatário.
+     * @param privateMessage Se é uma mensagem privada.
+     */
+    public record Hit(MessageRecord record, boolean privateMessage) {
+    }
+
+    private record Entry(MessageRecord record, boolean privateMessage) {
+    }
+
+    /**
+     * Mensagem candidata; position (segmento e documento) desempata mensagens do mesmo milissegundo.
+     */
+    private record Candidate(long timestamp, long position, IndexSegment segment, int doc) {
+    }
+
+    /**
+     * Nomes (de logs ou de usuários) convertidos em inteiros, a partir de 1. Só o indexador cria
+     * identificadores; as buscas e a limpeza os leem sem lock. Um identificador sempre chega a
+     * elas dentro de um segmento publicado depois que o nome foi registrado.
+     */
+    private static final class Symbols {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        // Nome de cada identificador; trocado por uma cópia maior quando enche
+        private volatile String[] names = new String[64];
+        private int size;
+
+        int intern(String name) {
+            Integer id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            int newId = ++size;
+            String[] current = names;
+            if (newId == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[newId] = name;
+            names = current;
+            ids.put(name, newId);
+            return newId;
+        }
+
+        /**
+         * Identificador já atribuído ao nome, sem criar um novo.
+         * @return O identificador, ou 0 se o nome ainda não foi visto.
+         */
+        int find(String name) {
+            Integer id = ids.get(name);
+            return id != null ? id : 0;
+        }
+
+        String name(int id) {
+            String[] current = names;
+            return id < current.length ? current[id] : null;
+        }
+    }
+
+    private static final Comparator<Candidate> OLDEST_FIRST =
+            Comparator.comparingLong(Candidate::timestamp).thenComparingLong(Candidate::position);
+
+    private final MessageStore store;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // Nomes dos logs (salas e o log privado) e dos usuários, convertidos em inteiros
+    private final Symbols logs = new Symbols();
+    private final Symbols users = new Symbols();
+    // Última sequência indexada de cada log: evita indexar duas vezes durante a reconstrução
+    // (acesso só pela thread do indexador)
+    private final Map<Integer, Long> lastSeqs = new HashMap<>();
+    // Segmentos selados, do mais antigo para o mais novo; trocados inteiros sob segmentsLock
+    private volatile List<IndexSegment> segments = List.of();
+    private final ReentrantLock segmentsLock = new ReentrantLock();
+    // Junção e limpeza substituem segmentos já publicados: uma de cada vez
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+    private final Thread indexer;
+    private final Thread merger;
+    private volatile boolean rebuilding = true;
+    private volatile boolean running = true;
+
+    /**
+     * Cria o índice e inicia a reconstrução a partir do armazenamento.
+     * @param store O armazenamento das mensagens, usado na reconstrução e para ler os resultados.
+     */
+    public SearchIndex(MessageStore store) {
+        this.store = store;
+        this.indexer = Thread.ofPlatform().daemon().name("search-indexer").start(this::indexLoop);
+        this.merger = Thread.ofPlatform().daemon().name("search-merger").start(this::mergeLoop);
+    }
+
+    /**
+     * Enfileira uma mensagem recém-gravada. Não bloqueia: com a fila cheia, a mensagem só
+     * voltará a ser encontrada após a próxima reconstrução.
+     * @param record A mensagem, com a sequência atribuída pelo MessageStore.
+     * @param privateMessage Se é uma mensagem privada (target é o destinatário).
+     */
+    public void add(MessageRecord record, boolean privateMessage) {
+        if (!queue.offer(new Entry(record, privateMessage))) {
+            ServerMetrics.searchDropped();
+        }
+    }
+
+    /**
+     * Indica se a reconstrução inicial ainda está em andamento (resultados podem estar incompletos).
+     */
+    public boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    /**
+     * Busca as mensagens mais recentes que contêm todos os termos.
+     * Como o nome de usuário não tem senha, quem se conecta com o nome de alguém que já saiu
+     * não prova ser essa pessoa: as mensagens privadas só aparecem se foram trocadas a partir
+     * de privateSince, o início da sessão de quem busca.
+     * @param query A busca.
+     * @param userName Quem busca: mensagens privadas só aparecem para o remetente e o destinatário.
+     * @param privateSince Instante mínimo das mensagens privadas, em milissegundos desde a época.
+     * @param limit Quantidade máxima de resultados.
+     * @return Os resultados, do mais recente para o mais antigo.
+     */
+    public List<Hit> search(Query query, String userName, long privateSince, int limit) {
+        long start = System.nanoTime();
+        List<Hit> hits = new ArrayList<>();
+        if (query.terms().isEmpty()) {
+            return hits;
+        }
+        int room = query.room() != null ? logs.find(query.room()) : 0;
+        int sender = query.sender() != null ? users.find(query.sender()) : 0;
+        if ((query.room() != null && room == 0) || (query.sender() != null && sender == 0)) {
+            return hits;
+        }
+        int privateLog = logs.find(PRIVATE_LOG);
+        int requester = userName != null ? users.find(userName) : 0;
+
+        // Os limit candidatos mais recentes; o topo da fila é o mais antigo entre eles
+        PriorityQueue<Candidate> best = new PriorityQueue<>(limit + 1, OLDEST_FIRST);
+        List<IndexSegment> current = segments;
+        for (int s = current.size() - 1; s >= 0; s--) {
+            IndexSegment segment = current.get(s);
+            if (segment.maxTimestamp < query.since()
+                    || (best.size() == limit && segment.maxTimestamp <= best.peek().timestamp())) {
+                continue;
+            }
+            int[][] lists = segment.postings(query.terms());
+            if (lists == null) {
+                continue;
+            }
+            // Percorre a menor lista e confere as demais por busca binária
+            int[] shortest = lists[0];
+            for (int i = shortest.length - 1; i >= 0; i--) {
+                int doc = shortest[i];
+                if (!containsAll(lists, doc) || segment.timestamps[doc] < query.since()) {
+                    continue;
+                }
+                int log = segment.logs[doc];
+                if ((room != 0 && log != room) || (sender != 0 && segment.senders[doc] != sender)) {
+                    continue;
+                }
+                if (log == privateLog && (requester == 0 || segment.timestamps[doc] < privateSince
+                        || (segment.senders[doc] != requester && segment.targets[doc] != requester))) {
+                    continue;
+                }
+                best.offer(new Candidate(segment.timestamps[doc], ((long) s << 32) | doc, segment, doc));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+
+        List<Candidate> ordered = new ArrayList<>(best);
+        ordered.sort(OLDEST_FIRST.reversed());
+        for (Candidate candidate : ordered) {
+            Hit hit = load(candidate.segment(), candidate.doc(), privateLog);
+            // Mensagens já removidas pela retenção ficam de fora
+            if (hit != null) {
+                hits.add(hit);
+            }
+        }
+        ServerMetrics.search(System.nanoTime() - start);
+        return hits;
+    }
+
+    private static boolean containsAll(int[][] lists, int doc) {
+        for (int i = 1; i < lists.length; i++) {
+            if (Arrays.binarySearch(lists[i], doc) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Hit load(IndexSegment segment, int doc, int privateLog) {
+        long seq = segment.seqs[doc];
+        boolean privateMessage = segment.logs[doc] == privateLog;
+        try {
+            List<MessageRecord> records = privateMessage
+                    ? store.privateRange(seq, seq + 1, 1)
+                    : store.range(logs.name(segment.logs[doc]), seq, seq + 1, 1);
+            return records.isEmpty() || records.get(0).seq() != seq ? null : new Hit(records.get(0), privateMessage);
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao ler resultado da busca: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Separa um texto em termos: letras e dígitos, em minúsculas e sem acentos.
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.append(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                if (term.length() >= MIN_TERM_LENGTH) {
+                    terms.add(term.toString());
+                }
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Loop do indexador: reconstrói o índice e depois consome a fila de mensagens novas.
+     */
+    private void indexLoop() {
+        SegmentBuilder builder = new SegmentBuilder();
+        long start = System.nanoTime();
+        try {
+            builder = rebuild(builder);
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao reconstruir o índice de busca: " + e.getMessage());
+        }
+        rebuilding = false;
+        System.out.println("SERVIDOR: Índice de busca reconstruído em "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+
+        long lastFlush = System.nanoTime();
+        List<Entry> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Entry first = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, FLUSH_DOCS);
+                }
+            } catch (InterruptedException e) {
+                // Interrupção só é usada para acordar a thread no encerramento
+            }
+            for (Entry entry : batch) {
+                index(builder, entry.record(), entry.privateMessage());
+                if (builder.size >= FLUSH_DOCS) {
+                    builder = seal(builder);
+                }
+            }
+            batch.clear();
+            if (builder.size > 0 && System.nanoTime() - lastFlush >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS)) {
+                builder = seal(builder);
+            }
+            if (builder.size == 0) {
+                lastFlush = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Indexa tudo o que já está no MessageStore, log a log.
+     */
+    private SegmentBuilder rebuild(SegmentBuilder initial) throws IOException {
+        SegmentBuilder[] builder = {initial};
+        store.scan(REBUILD_PAGE, (record, privateMessage) -> {
+            index(builder[0], record, privateMessage);
+            if (builder[0].size >= FLUSH_DOCS) {
+                builder[0] = seal(builder[0]);
+            }
+            return running;
+        });
+        return builder[0].size > 0 ? seal(builder[0]) : builder[0];
+    }
+
+    private void index(SegmentBuilder builder, MessageRecord record, boolean privateMessage) {
+        // Avisos do servidor (entradas e saídas de sala) não são indexados
+        if (record.sender() == null) {
+            return;
+        }
+        int log = logs.intern(privateMessage ? PRIVATE_LOG : record.target());
+        Long last = lastSeqs.get(log);
+        if (last != null && record.seq() <= last) {
+            return;
+        }
+        lastSeqs.put(log, record.seq());
+        builder.add(record.seq(), record.timestamp(), log, users.intern(record.sender()),
+                privateMessage ? users.intern(record.target()) : 0, tokenize(record.body()));
+        ServerMetrics.searchIndexed();
+    }
+
+    /**
+     * Publica o segmento em construção e devolve um novo, vazio.
+     */
+    private SegmentBuilder seal(SegmentBuilder builder) {
+        IndexSegment segment = builder.build();
+        segmentsLock.lock();
+        try {
+            List<IndexSegment> next = new ArrayList<>(segments);
+            next.add(segment);
+            segments = Collections.unmodifiableList(next);
+            ServerMetrics.searchSegments(next.size());
+        } finally {
+            segmentsLock.unlock();
+        }
+        return new SegmentBuilder();
+    }
+
+    private void mergeLoop() {
+        long lastPrune = System.nanoTime();
+        while (running) {
+            try {
+                while (running && mergeOnce()) {
+                    // Junta enquanto houver segmentos a juntar
+                }
+                if (System.nanoTime() - lastPrune >= TimeUnit.MILLISECONDS.toNanos(PRUNE_INTERVAL_MILLIS)) {
+                    prune();
+                    lastPrune = System.nanoTime();
+                }
+                TimeUnit.MILLISECONDS.sleep(MERGE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                // Encerramento
+            }
+        }
+    }
+
+    /**
+     * Junta a primeira sequência de MERGE_FACTOR segmentos vizinhos do mesmo nível.
+     * O indexador só acrescenta segmentos no fim, então a sequência continua contígua
+     * quando a lista é trocada.
+     * @return false se não havia o que juntar.
+     */
+    private boolean mergeOnce() {
+        maintenanceLock.lock();
+        try {
+            return mergeRun();
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    private boolean mergeRun() {
+        List<IndexSegment> current = segments;
+        int runStart = -1;
+        for (int i = 0; i + MERGE_FACTOR <= current.size() && runStart < 0; i++) {
+            runStart = i;
+            for (int j = 1; j < MERGE_FACTOR; j++) {
+                if (current.get(i + j).level != current.get(i).level) {
+                    runStart = -1;
+                    break;
+                }
+            }
+        }
+        if (runStart < 0) {
+            return false;
+        }
+        List<IndexSegment> run = current.subList(runStart, runStart + MERGE_FACTOR);
+        IndexSegment merged = IndexSegment.merge(run);
+
+        segmentsLock.lock();
+        try {
+            List<IndexSegment> latest = segments;
+            int start = latest.indexOf(run.get(0));
+            List<IndexSegment> next = new ArrayList<>(latest.size() - MERGE_FACTOR + 1);
+            next.addAll(latest.subList(0, start));
+            next.add(merged);
+            next.addAll(latest.subList(start + MERGE_FACTOR, latest.size()));
+            segments = Collections.unmodifiableList(next);
+            ServerMetrics.searchMerged(next.size());
+        } finally {
+            segmentsLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Remove os documentos cujas mensagens a retenção já apagou do MessageStore, isto é, com
+     * sequência anterior à mais antiga mantida no log. Segmentos sem nenhuma mensagem mantida
+     * são descartados; os que perderam mais da metade são reescritos só com as mantidas.
+     * @return A quantidade de documentos removidos.
+     */
+    int prune() {
+        maintenanceLock.lock();
+        try {
+            // Primeira sequência mantida de cada log, lida uma vez por limpeza
+            Map<Integer, Long> firstSeqs = new HashMap<>();
+            Map<IndexSegment, IndexSegment> replacements = new IdentityHashMap<>();
+            int removed = 0;
+            for (IndexSegment segment : segments) {
+                boolean[] live = new boolean[segment.seqs.length];
+                int kept = 0;
+                for (int doc = 0; doc < live.length; doc++) {
+                    live[doc] = segment.seqs[doc] >= firstSeq(firstSeqs, segment.logs[doc]);
+                    if (live[doc]) {
+                        kept++;
+                    }
+                }
+                if (kept * 2 < live.length) {
+                    replacements.put(segment, kept > 0 ? segment.retain(live, kept) : null);
+                    removed += live.length - kept;
+                }
+            }
+            if (replacements.isEmpty()) {
+                return 0;
+            }
+            segmentsLock.lock();
+            try {
+                // O indexador pode ter publicado segmentos novos enquanto isso
+                List<IndexSegment> next = new ArrayList<>(segments.size());
+                for (IndexSegment segment : segments) {
+                    IndexSegment replacement = replacements.containsKey(segment) ? replacements.get(segment) : segment;
+                    if (replacement != null) {
+                        next.add(replacement);
+                    }
+                }
+                segments = Collections.unmodifiableList(next);
+                ServerMetrics.searchSegments(next.size());
+            } finally {
+                segmentsLock.unlock();
+            }
+            return removed;
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    private long firstSeq(Map<Integer, Long> firstSeqs, int log) {
+        Long first = firstSeqs.get(log);
+        if (first == null) {
+            String name = logs.name(log);
+            try {
+                first = name.equals(PRIVATE_LOG) ? store.privateFirstSeq() : store.firstSeq(name);
+            } catch (IOException e) {
+                // Sem a resposta do MessageStore, os documentos do log são mantidos
+                System.err.println("SERVIDOR: Erro ao limpar o índice de busca: " + e.getMessage());
+                first = 0L;
+            }
+            firstSeqs.put(log, first);
+        }
+        return first;
+    }
+
+    /**
+     * Quantidade de segmentos publicados.
+     */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        indexer.interrupt();
+        merger.interrupt();
+    }
+
+    /**
+     * Segmento selado: imutável e compartilhado pelas buscas. Os documentos são numerados
+     * a partir de 0 na ordem de indexação; cada lista de postings é crescente.
+     */
+    private static final class IndexSegment {
+        final int level;
+        final long[] seqs;
+        final long[] timestamps;
+        final int[] logs;
+        final int[] senders;
+        final int[] targets;
+        final Map<String, int[]> postings;
+        final long maxTimestamp;
+
+        IndexSegment(int level, long[] seqs, long[] timestamps, int[] logs, int[] senders, int[] targets,
+                     Map<String, int[]> postings) {
+            this.level = level;
+            this.seqs = seqs;
+            this.timestamps = timestamps;
+            this.logs = logs;
+            this.senders = senders;
+            this.targets = targets;
+            this.postings = postings;
+            long max = 0;
+            for (long timestamp : timestamps) {
+                max = Math.max(max, timestamp);
+            }
+            this.maxTimestamp = max;
+        }
+
+        /**
+         * Listas dos termos, da menor para a maior, ou null se algum termo não aparece no segmento.
+         */
+        int[][] postings(Set<String> terms) {
+            int[][] lists = new int[terms.size()][];
+            int i = 0;
+            for (String term : terms) {
+                int[] docs = postings.get(term);
+                if (docs == null) {
+                    return null;
+                }
+                lists[i++] = docs;
+            }
+            Arrays.sort(lists, Comparator.comparingInt((int[] docs) -> docs.length));
+            return lists;
+        }
+
+        /**
+         * Cópia do segmento, no mesmo nível, só com os documentos mantidos, renumerados na mesma ordem.
+         * @param live Quais documentos são mantidos.
+         * @param kept Quantos são mantidos.
+         */
+        IndexSegment retain(boolean[] live, int kept) {
+            int[] renumbered = new int[live.length];
+            long[] keptSeqs = new long[kept];
+            long[] keptTimestamps = new long[kept];
+            int[] keptLogs = new int[kept];
+            int[] keptSenders = new int[kept];
+            int[] keptTargets = new int[kept];
+            int next = 0;
+            for (int doc = 0; doc < live.length; doc++) {
+                if (live[doc]) {
+                    renumbered[doc] = next;
+                    keptSeqs[next] = seqs[doc];
+                    keptTimestamps[next] = timestamps[doc];
+                    keptLogs[next] = logs[doc];
+                    keptSenders[next] = senders[doc];
+                    keptTargets[next] = targets[doc];
+                    next++;
+                }
+            }
+            Map<String, int[]> keptPostings = new HashMap<>();
+            for (Map.Entry<String, int[]> entry : postings.entrySet()) {
+                int[] docs = entry.getValue();
+                int[] result = new int[docs.length];
+                int count = 0;
+                for (int doc : docs) {
+                    if (live[doc]) {
+                        result[count++] = renumbered[doc];
+                    }
+                }
+                if (count > 0) {
+                    keptPostings.put(entry.getKey(), count == docs.length ? result : Arrays.copyOf(result, count));
+                }
+            }
+            return new IndexSegment(level, keptSeqs, keptTimestamps, keptLogs, keptSenders, keptTargets, keptPostings);
+        }
+
+        /**
+         * Junta segmentos vizinhos, preservando a ordem dos documentos.
+         */
+        static IndexSegment merge(List<IndexSegment> run) {
+            int total = 0;
+            int level = 0;
+            for (IndexSegment segment : run) {
+                total += segment.seqs.length;
+                level = Math.max(level, segment.level);
+            }
+            long[] seqs = new long[total];
+            long[] timestamps = new long[total];
+            int[] logs = new int[total];
+            int[] senders = new int[total];
+            int[] targets = new int[total];
+            Map<String, int[]> postings = new HashMap<>();
+            int base = 0;
+            for (IndexSegment segment : run) {
+                int size = segment.seqs.length;
+                System.arraycopy(segment.seqs, 0, seqs, base, size);
+                System.arraycopy(segment.timestamps, 0, timestamps, base, size);
+                System.arraycopy(segment.logs, 0, logs, base, size);
+                System.arraycopy(segment.senders, 0, senders, base, size);
+                System.arraycopy(segment.targets, 0, targets, base, size);
+                for (Map.Entry<String, int[]> entry : segment.postings.entrySet()) {
+                    int[] docs = entry.getValue();
+                    int[] merged = postings.get(entry.getKey());
+                    int offset = merged != null ? merged.length : 0;
+                    merged = merged != null ? Arrays.copyOf(merged, offset + docs.length) : new int[docs.length];
+                    for (int i = 0; i < docs.length; i++) {
+                        merged[offset + i] = docs[i] + base;
+                    }
+                    postings.put(entry.getKey(), merged);
+                }
+                base += size;
+            }
+            return new IndexSegment(level + 1, seqs, timestamps, logs, senders, targets, postings);
+        }
+    }
+
+    /**
+     * Segmento em construção, usado apenas pela thread do indexador.
+     */
+    private static final class SegmentBuilder {
+        private long[] seqs = new long[64];
+        private long[] timestamps = new long[64];
+        private int[] logs = new int[64];
+        private int[] senders = new int[64];
+        private int[] targets = new int[64];
+        private final Map<String, int[]> postings = new HashMap<>();
+        // Quantidade de documentos em cada lista de postings (as listas crescem em dobro)
+        private final Map<String, Integer> postingSizes = new HashMap<>();
+        int size;
+
+        void add(long seq, long timestamp, int log, int sender, int target, Set<String> terms) {
+            if (size == seqs.length) {
+                int capacity = size * 2;
+                seqs = Arrays.copyOf(seqs, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                logs = Arrays.copyOf(logs, capacity);
+                senders = Arrays.copyOf(senders, capacity);
+                targets = Arrays.copyOf(targets, capacity);
+            }
+            int doc = size++;
+            seqs[doc] = seq;
+            timestamps[doc] = timestamp;
+            logs[doc] = log;
+            senders[doc] = sender;
+            targets[doc] = target;
+            for (String term : terms) {
+                int count = postingSizes.getOrDefault(term, 0);
+                int[] docs = postings.get(term);
+                if (docs == null) {
+                    docs = new int[4];
+                } else if (count == docs.length) {
+                    docs = Arrays.copyOf(docs, count * 2);
+                }
+                docs[count] = doc;
+                postings.put(term, docs);
+                postingSizes.put(term, count + 1);
+            }
+        }
+
+        IndexSegment build() {
+            Map<String, int[]> sealed = new HashMap<>(postings.size() * 2);
+            for (Map.Entry<String, int[]> entry : postings.entrySet()) {
+                sealed.put(entry.getKey(), Arrays.copyOf(entry.getValue(), postingSizes.get(entry.getKey())));
+            }
+            return new IndexSegment(0, Arrays.copyOf(seqs, size), Arrays.copyOf(timestamps, size),
+                    Arrays.copyOf(logs, size), Arrays.copyOf(senders, size), Arrays.copyOf(targets, size), sealed);
+        }
+    }
+}
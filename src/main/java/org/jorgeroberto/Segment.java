@@ -0,0 +1,456 @@
+package org.jorgeroberto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Segmento do MessageStore: um arquivo com registros gravados em sequência e um arquivo
+ * de índice esparso ao lado. Apenas o segmento ativo fica mapeado em memória: ele começa
+ * pequeno e cresce até o tamanho máximo do segmento. Ao ser selado, o arquivo é cortado no
+ * fim dos dados, o mapeamento é descartado e as leituras passam a usar o FileChannel, de modo
+ * que segmentos antigos (e os removidos pela retenção) não mantêm regiões mapeadas.
+ *
+ * Formato de cada registro:
+ * [tamanho int][crc32 int][seq long][timestamp long][remetente][destino][corpo],
+ * com os textos em UTF-8 prefixados pelo tamanho (remetente -1 = aviso do servidor).
+ * Um tamanho 0 marca o fim dos dados; um CRC inválido indica uma gravação interrompida.
+ *
+ * O índice guarda (seq, timestamp, posição) do primeiro registro e, depois, de um
+ * registro a cada {@value #INDEX_INTERVAL_BYTES} bytes. Acesso sincronizado pelo SegmentLog.
+ */
+final class Segment {
+
+    static final int HEADER_SIZE = 8;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY_SIZE = 20;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final long baseSeq;
+    private final FileChannel channel;
+    // Mapeamento do segmento ativo; null depois de selado
+    private MappedByteBuffer data;
+    // Aberto apenas enquanto o segmento recebe gravações
+    private FileChannel indexChannel;
+    private int capacity;
+
+    // Índice esparso em memória, espelho do arquivo .idx
+    private long[] indexSeqs = new long[16];
+    private long[] indexTimes = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexCount;
+    private int lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+
+    private int size;
+    private long lastSeq;
+    private long lastTimestamp;
+
+    private Segment(File dataFile, long baseSeq, FileChannel channel, FileChannel indexChannel) throws IOException {
+        this.dataFile = dataFile;
+        this.indexFile = indexFileOf(dataFile);
+        this.baseSeq = baseSeq;
+        this.channel = channel;
+        this.indexChannel = indexChannel;
+        this.capacity = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+        this.lastSeq = baseSeq - 1;
+    }
+
+    /**
+     * Cria um segmento ativo vazio, pré-alocado com o tamanho inicial informado.
+     * @param dir Diretório do log.
+     * @param baseSeq Sequência do primeiro registro do segmento.
+     * @param capacity Tamanho inicial do arquivo, em bytes.
+     */
+    static Segment create(File dir, long baseSeq, int capacity) throws IOException {
+        File file = new File(dir, String.format("%020d.seg", baseSeq));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Zera um eventual arquivo antigo com o mesmo nome antes de pré-alocar
+            raf.setLength(0);
+            raf.setLength(capacity);
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel index = FileChannel.open(indexFileOf(file).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        Segment segment = new Segment(file, baseSeq, channel, index);
+        segment.map(capacity);
+        return segment;
+    }
+
+    /**
+     * Abre um segmento existente. O índice salvo é reaproveitado e apenas o trecho
+     * após a última entrada é percorrido para encontrar o fim dos dados.
+     * @param active Se o segmento volta a receber gravações (o último do log); os demais
+     *               são abertos já selados, sem mapeamento.
+     */
+    static Segment open(File file, boolean active) throws IOException {
+        long baseSeq = Long.parseLong(file.getName().substring(0, file.getName().indexOf('.')));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel index = FileChannel.open(indexFileOf(file).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(file, baseSeq, channel, index);
+        try {
+            if (active) {
+                segment.map(segment.capacity);
+            }
+            segment.recover();
+            if (!active) {
+                segment.indexChannel.close();
+                segment.indexChannel = null;
+            }
+            return segment;
+        } catch (IOException e) {
+            channel.close();
+            index.close();
+            throw e;
+        }
+    }
+
+    private void map(int newCapacity) throws IOException {
+        // Mapear além do fim estende o arquivo
+        data = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        capacity = newCapacity;
+    }
+
+    private static File indexFileOf(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.indexOf('.')) + ".idx");
+    }
+
+    private void recover() throws IOException {
+        long entries = indexChannel.size() / INDEX_ENTRY_SIZE;
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        for (long i = 0; i < entries; i++) {
+            entry.clear();
+            indexChannel.read(entry, i * INDEX_ENTRY_SIZE);
+            entry.flip();
+            long seq = entry.getLong();
+            long time = entry.getLong();
+            int position = entry.getInt();
+            // Entradas que apontam além dos dados válidos são descartadas (e regravadas abaixo)
+            if (position >= capacity || readSeq(position) != seq) {
+                break;
+            }
+            addIndexEntry(seq, time, position);
+        }
+        indexChannel.truncate((long) indexCount * INDEX_ENTRY_SIZE);
+
+        int position = indexCount > 0 ? indexPositions[indexCount - 1] : 0;
+        while (true) {
+            MessageRecord record = read(position);
+            if (record == null) {
+                break;
+            }
+            if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                writeIndexEntry(record.seq(), record.timestamp(), position);
+            }
+            lastSeq = record.seq();
+            lastTimestamp = record.timestamp();
+            position += HEADER_SIZE + intAt(position);
+        }
+        size = position;
+    }
+
+    /**
+     * Aumenta o segmento ativo, que é mapeado de novo com o novo tamanho.
+     * O mapeamento anterior cobre o mesmo arquivo e deixa de ser usado.
+     * @param newCapacity O novo tamanho do arquivo, em bytes.
+     */
+    void grow(int newCapacity) throws IOException {
+        if (newCapacity > capacity) {
+            data.force();
+            map(newCapacity);
+        }
+    }
+
+    /**
+     * Encerra as gravações do segmento: grava os dados em disco, corta o arquivo no fim
+     * dos dados e descarta o mapeamento. As leituras seguintes usam o FileChannel.
+     */
+    void seal() throws IOException {
+        if (data == null) {
+            return;
+        }
+        force();
+        data = null;
+        indexChannel.close();
+        indexChannel = null;
+        channel.truncate(size);
+        capacity = size;
+    }
+
+    /**
+     * Grava um registro já codificado.
+     * @return false se o registro não cabe no espaço restante do segmento.
+     */
+    boolean append(long seq, long timestamp, byte[] encoded) throws IOException {
+        if (data == null || size + encoded.length > capacity) {
+            return false;
+        }
+        data.put(size, encoded);
+        if (size - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+            writeIndexEntry(seq, timestamp, size);
+        }
+        size += encoded.length;
+        lastSeq = seq;
+        lastTimestamp = timestamp;
+        return true;
+    }
+
+    /**
+     * Codifica um registro no formato do segmento.
+     */
+    static byte[] encode(long seq, long timestamp, String sender, String target, String body) {
+        byte[] senderBytes = sender != null ? sender.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        int length = 16 + 4 + (senderBytes != null ? senderBytes.length : 0) + 4 + targetBytes.length + 4 + bodyBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(length).putInt(0).putLong(seq).putLong(timestamp);
+        putBytes(buffer, senderBytes);
+        putBytes(buffer, targetBytes);
+        putBytes(buffer, bodyBytes);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, length);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    /**
+     * Lê o registro em uma posição.
+     * @return O registro, ou null no fim dos dados ou em um registro corrompido.
+     */
+    MessageRecord read(int position) throws IOException {
+        if (position + HEADER_SIZE > capacity) {
+            return null;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        bytesAt(position, header);
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        int length = fields.getInt();
+        int expectedCrc = fields.getInt();
+        if (length <= 16 || position + HEADER_SIZE + length > capacity) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        bytesAt(position + HEADER_SIZE, bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != expectedCrc) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long seq = buffer.getLong();
+        long timestamp = buffer.getLong();
+        String sender = getString(buffer);
+        String target = getString(buffer);
+        String body = getString(buffer);
+        return new MessageRecord(seq, timestamp, sender, target, body);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private long readSeq(int position) throws IOException {
+        if (position + HEADER_SIZE + 8 > capacity) {
+            return -1;
+        }
+        byte[] bytes = new byte[8];
+        bytesAt(position + HEADER_SIZE, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    private int intAt(int position) throws IOException {
+        if (data != null) {
+            return data.getInt(position);
+        }
+        byte[] bytes = new byte[4];
+        bytesAt(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    /**
+     * Lê bytes do mapeamento, no segmento ativo, ou do arquivo, no segmento selado.
+     */
+    private void bytesAt(int position, byte[] target) throws IOException {
+        if (data != null) {
+            data.get(position, target);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(target);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Fim inesperado do segmento " + dataFile.getName());
+            }
+        }
+    }
+
+    /**
+     * Lê, a partir do registro com a sequência informada (ou o seguinte), até limit registros.
+     */
+    void readFromSeq(long seq, long untilSeq, int limit, List<MessageRecord> out) throws IOException {
+        int slot = Math.max(0, floor(indexSeqs, seq));
+        scan(indexCount > 0 ? indexPositions[slot] : size, limit, out, record -> record.seq() >= seq, untilSeq);
+    }
+
+    /**
+     * Lê, a partir do primeiro registro com timestamp maior ou igual ao informado, até limit registros.
+     */
+    void readSince(long timestamp, int limit, List<MessageRecord> out) throws IOException {
+        // Entrada anterior à procurada: timestamps iguais podem atravessar várias entradas do índice
+        int slot = Math.max(0, floor(indexTimes, timestamp - 1));
+        scan(indexCount > 0 ? indexPositions[slot] : size, limit, out, record -> record.timestamp() >= timestamp, Long.MAX_VALUE);
+    }
+
+    private interface Start {
+        boolean reached(MessageRecord record);
+    }
+
+    private void scan(int position, int limit, List<MessageRecord> out, Start start, long untilSeq) throws IOException {
+        boolean started = false;
+        while (position < size && out.size() < limit) {
+            MessageRecord record = read(position);
+            if (record == null || record.seq() >= untilSeq) {
+                return;
+            }
+            started = started || start.reached(record);
+            if (started) {
+                out.add(record);
+            }
+            position += HEADER_SIZE + intAt(position);
+        }
+    }
+
+    /**
+     * Índice da última entrada com valor menor ou igual ao procurado (-1 se nenhuma).
+     */
+    private int floor(long[] values, long key) {
+        int low = 0;
+        int high = indexCount - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    private void writeIndexEntry(long seq, long timestamp, int position) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(seq).putLong(timestamp).putInt(position).flip();
+        indexChannel.write(entry, (long) indexCount * INDEX_ENTRY_SIZE);
+        addIndexEntry(seq, timestamp, position);
+    }
+
+    private void addIndexEntry(long seq, long timestamp, int position) {
+        if (indexCount == indexSeqs.length) {
+            indexSeqs = Arrays.copyOf(indexSeqs, indexCount * 2);
+            indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+        }
+        indexSeqs[indexCount] = seq;
+        indexTimes[indexCount] = timestamp;
+        indexPositions[indexCount] = position;
+        indexCount++;
+        lastIndexedPosition = position;
+    }
+
+    /**
+     * Força a gravação em disco dos dados e do índice.
+     */
+    void force() throws IOException {
+        if (data != null) {
+            data.force();
+            indexChannel.force(false);
+        }
+    }
+
+    void close() throws IOException {
+        force();
+        data = null;
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+        channel.close();
+    }
+
+    /**
+     * Remove os arquivos de um segmento selado (usado pela retenção).
+     */
+    void delete() throws IOException {
+        close();
+        if (!dataFile.delete() || !indexFile.delete()) {
+            throw new IOException("Não foi possível remover o segmento " + dataFile.getName());
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long baseSeq() {
+        return baseSeq;
+    }
+
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Timestamp do primeiro registro (ou Long.MAX_VALUE se o segmento está vazio).
+     */
+    long firstTimestamp() {
+        return indexCount > 0 ? indexTimes[0] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Tamanho do arquivo em disco, em bytes.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Bytes ocupados pelos registros.
+     */
+    int size() {
+        return size;
+    }
+
+    File file() {
+        return dataFile;
+    }
+}
@@ -0,0 +1,336 @@
+package org.jorgeroberto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log append-only de um fluxo de mensagens (uma sala ou o log privado), formado por
+ * segmentos em um diretório próprio. O segmento ativo começa com
+ * {@value #INITIAL_SEGMENT_SIZE} bytes e dobra até o tamanho máximo antes de ser selado.
+ * Gravado apenas pela thread do RoomLogWriter; lido pelas threads dos clientes.
+ * Depois de fechado pelo MessageStore, qualquer operação lança {@link ClosedException}
+ * e o chamador reabre o log.
+ */
+final class SegmentLog {
+
+    static final int INITIAL_SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * O log foi fechado (por inatividade ou pelo limite de logs abertos) durante o acesso.
+     */
+    static final class ClosedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ClosedException(File dir) {
+            super("Log fechado: " + dir.getPath());
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Segmentos em ordem de sequência; o último é o segmento ativo
+    private final List<Segment> segments = new ArrayList<>();
+    private long lastTimestamp;
+    private boolean dirty;
+    private boolean closed;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    /**
+     * Abre (ou cria) o log no diretório informado, recuperando os segmentos existentes.
+     * Apenas o último segmento é mapeado em memória.
+     * @param dir O diretório do log.
+     * @param segmentSize O tamanho máximo de cada segmento, em bytes.
+     */
+    SegmentLog(File dir, int segmentSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Não foi possível criar o diretório " + dir.getPath());
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        try {
+            if (files != null) {
+                // Os nomes têm largura fixa, então a ordem alfabética é a ordem de sequência
+                Arrays.sort(files);
+                for (int i = 0; i < files.length; i++) {
+                    segments.add(Segment.open(files[i], i == files.length - 1));
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.add(Segment.create(dir, 1, Math.min(segmentSize, INITIAL_SEGMENT_SIZE)));
+            }
+        } catch (IOException e) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            throw e;
+        }
+        lastTimestamp = active().lastTimestamp();
+    }
+
+    private void ensureOpen() throws ClosedException {
+        if (closed) {
+            throw new ClosedException(dir);
+        }
+        lastAccess = System.currentTimeMillis();
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Grava uma mensagem no fim do log.
+     * @return A sequência atribuída à mensagem.
+     */
+    long append(long timestamp, String sender, String target, String body) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            // Os timestamps nunca decrescem, o que permite a busca binária por tempo
+            timestamp = Math.max(timestamp, lastTimestamp);
+            long seq = active().lastSeq() + 1;
+            byte[] encoded = Segment.encode(seq, timestamp, sender, target, body);
+            if (!active().append(seq, timestamp, encoded)) {
+                Segment current = active();
+                long needed = (long) current.size() + encoded.length;
+                int grown = current.capacity();
+                while (grown < needed && grown < segmentSize) {
+                    grown = (int) Math.min(segmentSize, grown * 2L);
+                }
+                if (grown >= needed) {
+                    current.grow(grown);
+                } else if (current.isEmpty()) {
+                    // Um registro maior que o segmento ocupa sozinho um segmento do tamanho necessário
+                    current.grow(encoded.length);
+                } else {
+                    current.seal();
+                    segments.add(Segment.create(dir, seq, Math.max(Math.min(segmentSize, INITIAL_SEGMENT_SIZE), encoded.length)));
+                }
+                active().append(seq, timestamp, encoded);
+            }
+            lastTimestamp = timestamp;
+            dirty = true;
+            return seq;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sequência que será atribuída à próxima mensagem.
+     */
+    long nextSeq() throws ClosedException {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            return active().lastSeq() + 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sequência da mensagem mais antiga ainda mantida; as anteriores foram removidas pela retenção.
+     */
+    long firstSeq() throws ClosedException {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            return segments.get(0).baseSeq();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Mensagens com sequência no intervalo [fromSeq, toSeq), no máximo limit.
+     */
+    List<MessageRecord> range(long fromSeq, long toSeq, int limit) throws IOException {
+        List<MessageRecord> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (int i = segmentFor(fromSeq); i < segments.size() && result.size() < limit; i++) {
+                Segment segment = segments.get(i);
+                if (segment.baseSeq() >= toSeq) {
+                    break;
+                }
+                segment.readFromSeq(fromSeq, toSeq, limit, result);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Mensagens com timestamp maior ou igual ao informado, no máximo limit.
+     * Localiza o ponto de partida por busca binária nos segmentos e no índice esparso,
+     * de modo que o custo depende do tamanho do resultado e não do tamanho do log.
+     */
+    List<MessageRecord> since(long timestamp, int limit) throws IOException {
+        List<MessageRecord> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            // Último segmento que começa antes do instante procurado
+            int low = 0;
+            int high = segments.size() - 1;
+            int first = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (segments.get(mid).firstTimestamp() < timestamp) {
+                    first = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            for (int i = first; i < segments.size() && result.size() < limit; i++) {
+                segments.get(i).readSince(timestamp, limit, result);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Índice do segmento que contém a sequência (ou do primeiro, se ela já foi removida).
+     */
+    private int segmentFor(long seq) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int result = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).baseSeq() <= seq) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Grava em disco o que foi escrito desde o último flush.
+     */
+    void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (dirty && !closed) {
+                active().force();
+                dirty = false;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove os segmentos fechados mais antigos enquanto o log exceder o tamanho
+     * máximo ou enquanto todas as suas mensagens forem mais velhas que o limite.
+     * O segmento ativo nunca é removido.
+     * @param maxBytes Tamanho máximo do log, em bytes.
+     * @param oldestTimestamp Mensagens anteriores a este instante podem ser descartadas.
+     * @return O número de segmentos removidos.
+     */
+    int applyRetention(long maxBytes, long oldestTimestamp) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+            long total = bytes();
+            int removed = 0;
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                // Todas as mensagens de um segmento fechado são anteriores ao início do seguinte
+                boolean expired = segments.get(1).firstTimestamp() <= oldestTimestamp;
+                if (total <= maxBytes && !expired) {
+                    break;
+                }
+                segments.remove(0);
+                total -= oldest.capacity();
+                oldest.delete();
+                removed++;
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove o segmento selado mais antigo, se for o informado (usado pelo limite global de bytes).
+     * @param file O arquivo de dados do segmento.
+     * @return Os bytes liberados, ou 0 se o segmento não é o mais antigo ou é o ativo.
+     */
+    long removeOldest(File file) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed || segments.size() < 2 || !segments.get(0).file().equals(file)) {
+                return 0;
+            }
+            Segment oldest = segments.remove(0);
+            long freed = oldest.capacity();
+            oldest.delete();
+            return freed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes ocupados em disco pelos segmentos do log.
+     */
+    private long bytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.capacity();
+        }
+        return total;
+    }
+
+    /**
+     * Instante, em milissegundos desde a época, do último acesso ao log.
+     */
+    long lastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Grava os dados pendentes e libera os arquivos e o mapeamento do segmento ativo.
+     */
+    void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            IOException failure = null;
+            for (Segment segment : segments) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            segments.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
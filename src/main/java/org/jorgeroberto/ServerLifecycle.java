@@ -0,0 +1,274 @@
+package org.jorgeroberto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ciclo de vida do servidor: encerramento ordenado e reinício a quente.
+ * Ao encerrar, o servidor para de aceitar conexões, avisa os clientes, espera suas filas de
+ * saída esvaziarem (até um prazo), fecha os sockets e grava os logs pendentes. Por fim, grava
+ * um snapshot com a sala de cada usuário conectado.
+ * No reinício a quente, o novo processo abre a mesma porta (SO_REUSEPORT) e pede a passagem
+ * ao processo antigo pelo endpoint administrativo; o antigo encerra como acima e o novo lê o
+ * snapshot, devolvendo cada usuário à sua sala quando ele se reconectar.
+ * O servidor é considerado pronto depois de abrir a porta e restaurar o estado, e deixa de
+ * estar pronto quando o encerramento começa (GET /ready no endpoint de métricas).
+ */
+public final class ServerLifecycle {
+
+    public static final String SHUTDOWN_NOTICE = "SERVER: O servidor está sendo encerrado.";
+    // Reconhecido pelo ChatClient, que se reconecta sozinho
+    public static final String RESTART_NOTICE = "SERVER: O servidor está reiniciando. Reconectando em instantes...";
+    public static final long DEFAULT_DRAIN_MILLIS = 5000;
+
+    private static final int SNAPSHOT_MAGIC = 0x43484154;
+    private static final int SNAPSHOT_VERSION = 1;
+    // Snapshots mais antigos que isso são ignorados, e as salas restauradas deixam de valer
+    private static final long RESTORE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final RoomManager roomManager;
+    private final File snapshotFile;
+    private final long drainMillis;
+    // Recursos fechados depois das conexões, como o nó do cluster
+    private final List<AutoCloseable> resources = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ServerSocketChannel listener;
+    private volatile boolean ready;
+
+    /**
+     * Construtor.
+     * @param roomManager A instância compartilhada que gerencia salas e estado.
+     * @param listener A porta de escuta do chat, aberta por {@link #bind}, fechada no encerramento.
+     * @param snapshotFile O arquivo do snapshot de salas.
+     * @param drainMillis Prazo para esvaziar as filas de saída dos clientes no encerramento.
+     */
+    public ServerLifecycle(RoomManager roomManager, ServerSocketChannel listener, File snapshotFile, long drainMillis) {
+        this.roomManager = roomManager;
+        this.listener = listener;
+        this.snapshotFile = snapshotFile;
+        this.drainMillis = drainMillis;
+    }
+
+    /**
+     * Abre a porta de escuta do chat.
+     * @param address O endereço e a porta TCP.
+     * @param reusePort Se a porta deve ser aberta com SO_REUSEPORT, que só é usado no reinício a
+     *                  quente: ele permite abrir a porta enquanto o processo antigo ainda está no
+     *                  ar, mas também deixaria um segundo servidor dividir a porta com este.
+     */
+    public static ServerSocketChannel bind(InetSocketAddress address, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Registra um recurso a ser fechado no encerramento, depois das conexões dos clientes.
+     */
+    public void closeOnStop(AutoCloseable resource) {
+        resources.add(resource);
+    }
+
+    /**
+     * Marca o servidor como pronto para atender, registrando o tempo de inicialização.
+     * Chamado depois de abrir a porta e restaurar o estado, imediatamente antes do loop de aceitação.
+     */
+    public void ready() {
+        long bootMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        ServerMetrics.ready(bootMillis);
+        ready = true;
+        System.out.println("SERVIDOR: Pronto em " + bootMillis + " ms.");
+    }
+
+    /**
+     * Indica se o servidor está aceitando conexões: já ficou pronto e não está encerrando.
+     */
+    public boolean isReady() {
+        return ready && !stopping.get();
+    }
+
+    /**
+     * Indica se o encerramento já começou. Usado pelos loops de aceitação para
+     * distinguir o fechamento da porta de um erro.
+     */
+    public boolean isStopping() {
+        return stopping.get();
+    }
+
+    /**
+     * Encerramento ordenado, chamado ao receber o sinal de término do processo.
+     */
+    public void shutdown() {
+        stop(SHUTDOWN_NOTICE);
+    }
+
+    /**
+     * Encerra este processo para que outro assuma a porta. Chamado pelo endpoint administrativo.
+     * @return false se o servidor já estava encerrando.
+     */
+    boolean handover() {
+        System.out.println("SERVIDOR: Passagem solicitada por um novo processo.");
+        return stop(RESTART_NOTICE);
+    }
+
+    private boolean stop(String notice) {
+        if (!stopping.compareAndSet(false, true)) {
+            // Outro encerramento em andamento: espera terminar antes de o processo sair
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+        try {
+            long start = System.nanoTime();
+            closeListener();
+            // Lido antes de desconectar os clientes, quando ainda estão nas suas salas
+            Map<String, String> membership = roomManager.membership();
+            int pending = roomManager.drain(notice, drainMillis);
+            if (pending > 0) {
+                System.err.println("SERVIDOR: " + pending + " conexões não esvaziaram a fila de saída no prazo.");
+            }
+            for (AutoCloseable resource : resources) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    System.err.println("SERVIDOR: Erro ao encerrar " + resource + ": " + e.getMessage());
+                }
+            }
+            // Grava os logs pendentes antes do snapshot: o próximo processo lê o histórico do disco
+            roomManager.shutdown();
+            writeSnapshot(membership);
+            System.out.println("SERVIDOR: Encerrado em " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+            return true;
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    private void closeListener() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Ignorado no encerramento
+        }
+    }
+
+    /**
+     * Pede a passagem ao servidor cujo endpoint administrativo está na porta informada e
+     * espera ele encerrar. Deve ser chamado depois de bind e antes de abrir os logs e aceitar
+     * conexões: os clientes que chegam nesse meio-tempo aguardam na fila da porta, e o
+     * armazenamento só é aberto quando o processo antigo já gravou tudo e o fechou.
+     * @param adminPort A porta local do endpoint administrativo do processo antigo.
+     * @param adminToken O token administrativo, o mesmo configurado no processo antigo.
+     * @param drainMillis O prazo de encerramento do processo antigo.
+     */
+    public static void takeover(int adminPort, String adminToken, long drainMillis) throws IOException {
+        if (adminToken == null || adminToken.isEmpty()) {
+            throw new IOException("Nenhum token administrativo configurado");
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + adminPort + "/admin/handover"))
+                .timeout(Duration.ofMillis(drainMillis + 30_000))
+                .header(MetricsHttpServer.AUTHORIZATION, MetricsHttpServer.BEARER + adminToken)
+                .header(MetricsHttpServer.REQUESTER_PID, Long.toString(ProcessHandle.current().pid()))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<Void> response;
+        try {
+            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.discarding());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Passagem interrompida");
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("O servidor antigo recusou a passagem (HTTP " + response.statusCode() + ")");
+        }
+        System.out.println("SERVIDOR: Servidor antigo encerrado; assumindo a porta.");
+    }
+
+    /**
+     * Restaura o snapshot deixado pelo último encerramento, se for recente: o histórico
+     * recente das salas é carregado e cada usuário volta à sua sala ao se reconectar.
+     */
+    public void restore() {
+        if (!snapshotFile.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                System.err.println("SERVIDOR: Snapshot em formato desconhecido ignorado: " + snapshotFile);
+                return;
+            }
+            long writtenAt = in.readLong();
+            int count = in.readInt();
+            Map<String, String> membership = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                membership.put(in.readUTF(), in.readUTF());
+            }
+            long expiresAt = writtenAt + RESTORE_TTL_MILLIS;
+            if (System.currentTimeMillis() < expiresAt && !membership.isEmpty()) {
+                roomManager.restoreMembership(membership, expiresAt);
+                System.out.println("SERVIDOR: Snapshot restaurado: " + membership.size() + " usuários.");
+            }
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao ler o snapshot " + snapshotFile + ": " + e.getMessage());
+        } finally {
+            // Cada snapshot é usado uma única vez
+            snapshotFile.delete();
+        }
+    }
+
+    private void writeSnapshot(Map<String, String> membership) {
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(membership.size());
+                for (Map.Entry<String, String> entry : membership.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+            }
+            // Troca atômica: o novo processo nunca lê um snapshot pela metade
+            Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("SERVIDOR: Erro ao gravar o snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,748 @@
+package org.jorgeroberto;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Métricas globais do servidor, gravadas nos caminhos críticos com contadores
+ * LongAdder e histogramas sem lock, como os contadores de codificação do MessageFrame.
+ * São expostas via JMX e em texto (formato Prometheus) pelo MetricsHttpServer.
+ */
+public final class ServerMetrics implements ServerMetricsMBean {
+
+    // Limite de salas com contador próprio; as demais são somadas em OTHER_ROOMS
+    private static final int MAX_TRACKED_ROOMS = 1000;
+    private static final String OTHER_ROOMS = "_outras";
+    private static final Set<String> COMMANDS = Set.of("join", "private", "leave", "history", "search", "exit");
+    private static final String UNKNOWN_COMMAND = "desconhecido";
+    // Filas de saída listadas individualmente: as mais cheias no momento da leitura
+    private static final int TOP_QUEUES = 10;
+    // Conexões com compressão listadas individualmente: as que mais receberam bytes
+    private static final int TOP_COMPRESSED = 10;
+
+    private static final LongAdder OPENED = new LongAdder();
+    private static final LongAdder CLOSED = new LongAdder();
+    private static final LongAdder DELIVERIES = new LongAdder();
+    private static final Histogram BROADCAST_NANOS = new Histogram();
+    private static final Histogram LOG_WRITE_NANOS = new Histogram();
+    private static final Histogram LOG_DELAY_NANOS = new Histogram();
+    private static final LongAdder LOG_DROPPED = new LongAdder();
+    private static final LongAdder LOG_SPILLED = new LongAdder();
+    private static final Histogram QUEUE_DEPTH = new Histogram();
+    private static final LongAdder QUEUE_DROPPED = new LongAdder();
+    private static final LongAdder QUEUE_COALESCED = new LongAdder();
+    private static final LongAdder SLOW_CONSUMERS = new LongAdder();
+    private static final LongAdder PRIVATE_HITS = new LongAdder();
+    private static final LongAdder PRIVATE_MISSES = new LongAdder();
+    private static final LongAdder FLOOD_USER_DROPPED = new LongAdder();
+    private static final LongAdder FLOOD_ROOM_DROPPED = new LongAdder();
+    private static final LongAdder FLOOD_PAUSES = new LongAdder();
+    private static final LongAdder FLOOD_DISCONNECTS = new LongAdder();
+    private static final LongAdder SOCKET_WRITES = new LongAdder();
+    private static final LongAdder FRAMES_WRITTEN = new LongAdder();
+    private static final Histogram WRITE_BATCH_BYTES = new Histogram();
+    // Duração de cada evento em que uma thread virtual ficou presa à portadora
+    private static final Histogram PINNED_NANOS = new Histogram();
+    private static final LongAdder HEARTBEAT_PINGS = new LongAdder();
+    private static final LongAdder REAPED = new LongAdder();
+    private static final Histogram TIMER_TICK_NANOS = new Histogram();
+    private static final Histogram COMPRESS_CPU_NANOS = new Histogram();
+    private static final LongAdder COMPRESS_IN = new LongAdder();
+    private static final LongAdder COMPRESS_OUT = new LongAdder();
+    private static final LongAdder COMPRESS_SKIPPED = new LongAdder();
+    // Por frame comprimido: bytes do resultado por mil bytes sem compressão
+    private static final Histogram COMPRESS_PERMILLE = new Histogram();
+    // Por frame entregue a uma conexão com compressão: bytes que seriam enviados sem ela e bytes enviados
+    private static final LongAdder COMPRESSED_SENT_PLAIN = new LongAdder();
+    private static final LongAdder COMPRESSED_SENT_WIRE = new LongAdder();
+    private static final LongAdder TIMER_EXPIRED = new LongAdder();
+    private static volatile long timerScheduled;
+    // Tempo entre o início da JVM e o servidor ficar pronto (0 enquanto não estiver)
+    private static volatile long startupMillis;
+    private static final Histogram SEARCH_NANOS = new Histogram();
+    private static final LongAdder SEARCH_INDEXED = new LongAdder();
+    private static final LongAdder SEARCH_DROPPED = new LongAdder();
+    private static final LongAdder SEARCH_MERGES = new LongAdder();
+    private static volatile long searchSegments;
+    private static final LongAdder CLUSTER_SENT = new LongAdder();
+    private static final LongAdder CLUSTER_RECEIVED = new LongAdder();
+    private static final LongAdder CLUSTER_DROPPED = new LongAdder();
+    private static final Map<String, LongAdder> ROOM_MESSAGES = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> COMMAND_COUNTS = new ConcurrentHashMap<>();
+    // Conexões cujas filas de saída são medidas individualmente (visão viva do RoomManager)
+    private static volatile Collection<ChatConnection> connections = List.of();
+
+    /**
+     * Estado da fila de saída de uma conexão no momento da leitura.
+     */
+    record QueueStats(String userName, int depth, int maxDepth, long dropped) {
+        private static final Comparator<QueueStats> FULLEST = Comparator.comparingInt(QueueStats::depth)
+                .thenComparingInt(QueueStats::maxDepth).thenComparingLong(QueueStats::dropped);
+    }
+
+    /**
+     * Bytes entregues a uma conexão com compressão: quanto seriam sem ela e quanto foram enviados.
+     */
+    record CompressionStats(String userName, long plainBytes, long wireBytes) {
+        private static final Comparator<CompressionStats> LARGEST = Comparator.comparingLong(CompressionStats::plainBytes);
+
+        /**
+         * Bytes enviados sobre bytes sem compressão; 1 se nada foi enviado.
+         */
+        double ratio() {
+            return plainBytes > 0 ? (double) wireBytes / plainBytes : 1;
+        }
+    }
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * Registra as métricas no servidor JMX da plataforma.
+     */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMetrics(),
+                    new ObjectName("org.jorgeroberto:type=ServerMetrics"));
+        } catch (JMException e) {
+            System.err.println("SERVIDOR: Não foi possível registrar as métricas no JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Define as conexões cujas filas de saída aparecem individualmente nas métricas.
+     * @param localConnections As conexões identificadas deste servidor, lidas a cada consulta.
+     */
+    static void trackQueues(Collection<ChatConnection> localConnections) {
+        connections = localConnections;
+    }
+
+    /**
+     * As filas de saída mais cheias: primeiro a profundidade atual, depois a maior já atingida
+     * e os descartes. A leitura percorre as conexões, então só é feita na consulta das métricas.
+     * @param limit Quantidade máxima de filas.
+     * @return As filas, da mais cheia para a menos cheia.
+     */
+    static List<QueueStats> fullestQueues(int limit) {
+        PriorityQueue<QueueStats> top = new PriorityQueue<>(QueueStats.FULLEST);
+        for (ChatConnection connection : connections) {
+            String userName = connection.getUserName();
+            OutboundQueue queue = connection.getOutboundQueue();
+            if (userName == null || queue == null) {
+                continue;
+            }
+            top.add(new QueueStats(userName, queue.size(), queue.getMaxDepth(), queue.getDroppedCount()));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        List<QueueStats> result = new ArrayList<>(top);
+        result.sort(QueueStats.FULLEST.reversed());
+        return result;
+    }
+
+    /**
+     * As conexões com compressão que mais receberam bytes, com a taxa de compressão de cada
+     * uma. O tempo de CPU não é separado por conexão: cada frame é comprimido uma única vez
+     * para todos os destinatários.
+     * @param limit Quantidade máxima de conexões.
+     * @return As conexões, da que mais recebeu para a que menos recebeu.
+     */
+    static List<CompressionStats> largestCompressedConnections(int limit) {
+        PriorityQueue<CompressionStats> top = new PriorityQueue<>(CompressionStats.LARGEST);
+        for (ChatConnection connection : connections) {
+            String userName = connection.getUserName();
+            WireEncoder encoder = connection.getEncoder();
+            if (userName == null || encoder == null || encoder.getCompressedPlainBytes() == 0) {
+                continue;
+            }
+            top.add(new CompressionStats(userName, encoder.getCompressedPlainBytes(), encoder.getCompressedWireBytes()));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        List<CompressionStats> result = new ArrayList<>(top);
+        result.sort(CompressionStats.LARGEST.reversed());
+        return result;
+    }
+
+    static void connectionOpened() {
+        OPENED.increment();
+    }
+
+    static void connectionClosed() {
+        CLOSED.increment();
+    }
+
+    /**
+     * Registra um broadcast concluído.
+     * @param roomName A sala.
+     * @param recipients Quantidade de membros que receberam a mensagem.
+     * @param nanos Tempo gasto no fan-out.
+     */
+    static void broadcast(String roomName, int recipients, long nanos) {
+        BROADCAST_NANOS.record(nanos);
+        DELIVERIES.add(recipients);
+        LongAdder counter = ROOM_MESSAGES.get(roomName);
+        if (counter == null) {
+            String key = ROOM_MESSAGES.size() < MAX_TRACKED_ROOMS ? roomName : OTHER_ROOMS;
+            counter = ROOM_MESSAGES.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Registra a gravação de uma entrada de log.
+     * @param writeNanos Tempo da gravação no MessageStore.
+     * @param delayNanos Tempo desde o enfileiramento até a gravação.
+     */
+    static void logWrite(long writeNanos, long delayNanos) {
+        LOG_WRITE_NANOS.record(writeNanos);
+        LOG_DELAY_NANOS.record(delayNanos);
+    }
+
+    static void logDropped() {
+        LOG_DROPPED.increment();
+    }
+
+    static void logSpilled() {
+        LOG_SPILLED.increment();
+    }
+
+    static void queueDepth(int depth) {
+        QUEUE_DEPTH.record(depth);
+    }
+
+    static void queueDropped() {
+        QUEUE_DROPPED.increment();
+    }
+
+    static void queueCoalesced() {
+        QUEUE_COALESCED.increment();
+    }
+
+    static void slowConsumerDisconnected() {
+        SLOW_CONSUMERS.increment();
+    }
+
+    static void privateMessage(boolean delivered) {
+        (delivered ? PRIVATE_HITS : PRIVATE_MISSES).increment();
+    }
+
+    /**
+     * Registra uma mensagem descartada pelo controle de flood.
+     * @param room true se o limite atingido foi o da sala, false se foi o do usuário.
+     */
+    static void floodDropped(boolean room) {
+        (room ? FLOOD_ROOM_DROPPED : FLOOD_USER_DROPPED).increment();
+    }
+
+    static void floodPaused() {
+        FLOOD_PAUSES.increment();
+    }
+
+    static void floodDisconnected() {
+        FLOOD_DISCONNECTS.increment();
+    }
+
+    /**
+     * Registra o envio de um lote de frames a um cliente.
+     * @param calls Chamadas de escrita no socket usadas pelo lote.
+     * @param frames Frames do lote.
+     * @param bytes Tamanho do lote.
+     */
+    static void socketWrites(int calls, int frames, long bytes) {
+        SOCKET_WRITES.add(calls);
+        FRAMES_WRITTEN.add(frames);
+        WRITE_BATCH_BYTES.record(bytes);
+    }
+
+    /**
+     * Registra um evento de pinning de thread virtual.
+     * @param nanos Tempo que a thread virtual ficou presa à portadora.
+     */
+    static void virtualThreadPinned(long nanos) {
+        PINNED_NANOS.record(nanos);
+    }
+
+    static void heartbeatPing() {
+        HEARTBEAT_PINGS.increment();
+    }
+
+    static void connectionReaped() {
+        REAPED.increment();
+    }
+
+    /**
+     * Registra um tick da roda de timers.
+     * @param nanos Tempo gasto no tick.
+     * @param expired Prazos vencidos e executados no tick.
+     * @param scheduled Prazos ainda agendados na roda.
+     */
+    static void timerTick(long nanos, int expired, int scheduled) {
+        TIMER_TICK_NANOS.record(nanos);
+        TIMER_EXPIRED.add(expired);
+        timerScheduled = scheduled;
+    }
+
+    /**
+     * Registra a compressão de um frame (ou lote de frames), feita uma vez para todos os destinatários.
+     * @param plainBytes Tamanho sem compressão.
+     * @param wireBytes Tamanho enviado (igual ao original se a compressão não compensou).
+     * @param cpuNanos Tempo de CPU gasto.
+     */
+    static void frameCompressed(int plainBytes, int wireBytes, long cpuNanos) {
+        COMPRESS_CPU_NANOS.record(cpuNanos);
+        COMPRESS_IN.add(plainBytes);
+        COMPRESS_OUT.add(wireBytes);
+        COMPRESS_PERMILLE.record(wireBytes * 1000L / plainBytes);
+        if (wireBytes >= plainBytes) {
+            COMPRESS_SKIPPED.increment();
+        }
+    }
+
+    /**
+     * Registra a entrega de um frame a uma conexão que negociou a compressão.
+     * @param plainBytes Bytes que seriam enviados sem compressão.
+     * @param wireBytes Bytes enviados.
+     */
+    static void compressedFrameSent(int plainBytes, int wireBytes) {
+        COMPRESSED_SENT_PLAIN.add(plainBytes);
+        COMPRESSED_SENT_WIRE.add(wireBytes);
+    }
+
+    static void ready(long bootMillis) {
+        startupMillis = bootMillis;
+    }
+
+    /**
+     * Registra uma busca concluída.
+     * @param nanos Tempo da busca, incluindo a leitura dos resultados no MessageStore.
+     */
+    static void search(long nanos) {
+        SEARCH_NANOS.record(nanos);
+    }
+
+    static void searchIndexed() {
+        SEARCH_INDEXED.increment();
+    }
+
+    static void searchDropped() {
+        SEARCH_DROPPED.increment();
+    }
+
+    static void searchSegments(int segments) {
+        searchSegments = segments;
+    }
+
+    static void searchMerged(int segments) {
+        SEARCH_MERGES.increment();
+        searchSegments = segments;
+    }
+
+    static void clusterSent(int frames) {
+        CLUSTER_SENT.add(frames);
+    }
+
+    static void clusterReceived() {
+        CLUSTER_RECEIVED.increment();
+    }
+
+    static void clusterDropped() {
+        CLUSTER_DROPPED.increment();
+    }
+
+    /**
+     * Registra um comando recebido.
+     * @param action O comando, com ou sem a barra (ex: "/join").
+     */
+    static void command(String action) {
+        String name = action.startsWith("/") ? action.substring(1) : action;
+        if (name.equals("quit")) {
+            name = "exit";
+        }
+        COMMAND_COUNTS.computeIfAbsent(COMMANDS.contains(name) ? name : UNKNOWN_COMMAND, k -> new LongAdder()).increment();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((key, value) -> result.put(key, value.sum()));
+        return result;
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return OPENED.sum() - CLOSED.sum();
+    }
+
+    @Override
+    public long getOpenedConnections() {
+        return OPENED.sum();
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return CLOSED.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return BROADCAST_NANOS.getCount();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return DELIVERIES.sum();
+    }
+
+    @Override
+    public double getBroadcastMeanMicros() {
+        return BROADCAST_NANOS.getMean() / 1000;
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return micros(BROADCAST_NANOS.percentile(0.99));
+    }
+
+    @Override
+    public long getBroadcastMaxMicros() {
+        return micros(BROADCAST_NANOS.getMax());
+    }
+
+    @Override
+    public long getLogWrites() {
+        return LOG_WRITE_NANOS.getCount();
+    }
+
+    @Override
+    public long getLogWriteP99Micros() {
+        return micros(LOG_WRITE_NANOS.percentile(0.99));
+    }
+
+    @Override
+    public long getLogDelayP99Micros() {
+        return micros(LOG_DELAY_NANOS.percentile(0.99));
+    }
+
+    @Override
+    public long getLogDropped() {
+        return LOG_DROPPED.sum();
+    }
+
+    @Override
+    public long getLogSpilled() {
+        return LOG_SPILLED.sum();
+    }
+
+    @Override
+    public long getQueueDepthP99() {
+        return QUEUE_DEPTH.percentile(0.99);
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return QUEUE_DEPTH.getMax();
+    }
+
+    @Override
+    public Map<String, Long> getFullestOutboundQueues() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (QueueStats stats : fullestQueues(TOP_QUEUES)) {
+            result.put(stats.userName(), (long) stats.depth());
+        }
+        return result;
+    }
+
+    @Override
+    public long getQueueDropped() {
+        return QUEUE_DROPPED.sum();
+    }
+
+    @Override
+    public long getQueueCoalesced() {
+        return QUEUE_COALESCED.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return SLOW_CONSUMERS.sum();
+    }
+
+    @Override
+    public long getPrivateHits() {
+        return PRIVATE_HITS.sum();
+    }
+
+    @Override
+    public long getPrivateMisses() {
+        return PRIVATE_MISSES.sum();
+    }
+
+    @Override
+    public long getFloodDropped() {
+        return FLOOD_USER_DROPPED.sum() + FLOOD_ROOM_DROPPED.sum();
+    }
+
+    @Override
+    public long getFloodPauses() {
+        return FLOOD_PAUSES.sum();
+    }
+
+    @Override
+    public long getFloodDisconnects() {
+        return FLOOD_DISCONNECTS.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return SOCKET_WRITES.sum();
+    }
+
+    @Override
+    public long getFramesWritten() {
+        return FRAMES_WRITTEN.sum();
+    }
+
+    @Override
+    public long getPinnedEvents() {
+        return PINNED_NANOS.getCount();
+    }
+
+    @Override
+    public long getPinnedMaxMicros() {
+        return micros(PINNED_NANOS.getMax());
+    }
+
+    @Override
+    public long getHeartbeatPings() {
+        return HEARTBEAT_PINGS.sum();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return REAPED.sum();
+    }
+
+    @Override
+    public long getTimerTickP99Micros() {
+        return micros(TIMER_TICK_NANOS.percentile(0.99));
+    }
+
+    @Override
+    public long getTimerScheduled() {
+        return timerScheduled;
+    }
+
+    @Override
+    public long getCompressedBytesIn() {
+        return COMPRESS_IN.sum();
+    }
+
+    @Override
+    public long getCompressedBytesOut() {
+        return COMPRESS_OUT.sum();
+    }
+
+    @Override
+    public long getCompressionCpuP99Micros() {
+        return micros(COMPRESS_CPU_NANOS.percentile(0.99));
+    }
+
+    @Override
+    public Map<String, Double> getCompressionRatioByUser() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (CompressionStats stats : largestCompressedConnections(TOP_COMPRESSED)) {
+            result.put(stats.userName(), stats.ratio());
+        }
+        return result;
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    @Override
+    public long getSearchIndexed() {
+        return SEARCH_INDEXED.sum();
+    }
+
+    @Override
+    public long getSearchSegments() {
+        return searchSegments;
+    }
+
+    @Override
+    public long getSearchP99Micros() {
+        return micros(SEARCH_NANOS.percentile(0.99));
+    }
+
+    @Override
+    public long getClusterSent() {
+        return CLUSTER_SENT.sum();
+    }
+
+    @Override
+    public long getClusterReceived() {
+        return CLUSTER_RECEIVED.sum();
+    }
+
+    @Override
+    public long getClusterDropped() {
+        return CLUSTER_DROPPED.sum();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesPerRoom() {
+        return snapshot(ROOM_MESSAGES);
+    }
+
+    @Override
+    public Map<String, Long> getCommands() {
+        return snapshot(COMMAND_COUNTS);
+    }
+
+    @Override
+    public String scrape() {
+        return render();
+    }
+
+    /**
+     * Todas as métricas no formato de texto do Prometheus.
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "chat_connections_active", "Conexões abertas no momento", OPENED.sum() - CLOSED.sum());
+        counter(out, "chat_connections_opened_total", "Conexões aceitas", OPENED.sum());
+        counter(out, "chat_connections_closed_total", "Conexões encerradas", CLOSED.sum());
+        counter(out, "chat_deliveries_total", "Mensagens entregues às filas dos membros", DELIVERIES.sum());
+        summary(out, "chat_broadcast_seconds", "Tempo do fan-out de um broadcast", BROADCAST_NANOS, 1e-9);
+        summary(out, "chat_log_write_seconds", "Tempo de gravação de uma entrada no MessageStore", LOG_WRITE_NANOS, 1e-9);
+        summary(out, "chat_log_delay_seconds", "Tempo entre o enfileiramento e a gravação do log", LOG_DELAY_NANOS, 1e-9);
+        counter(out, "chat_log_dropped_total", "Entradas de log descartadas (fila cheia, falha de escrita ou após o encerramento)", LOG_DROPPED.sum());
+        counter(out, "chat_log_spilled_total", "Entradas de log gravadas no arquivo de transbordo", LOG_SPILLED.sum());
+        summary(out, "chat_outbound_queue_depth", "Profundidade da fila de saída após cada inserção", QUEUE_DEPTH, 1);
+        counter(out, "chat_outbound_dropped_total", "Mensagens descartadas por filas de saída cheias", QUEUE_DROPPED.sum());
+        List<QueueStats> fullest = fullestQueues(TOP_QUEUES);
+        perUser(out, "chat_outbound_queue_user_depth", "Profundidade atual das " + TOP_QUEUES + " filas de saída mais cheias, por usuário",
+                "gauge", fullest, QueueStats::userName, QueueStats::depth);
+        perUser(out, "chat_outbound_queue_user_max_depth", "Maior profundidade já atingida pelas mesmas filas",
+                "gauge", fullest, QueueStats::userName, QueueStats::maxDepth);
+        perUser(out, "chat_outbound_queue_user_dropped_total", "Mensagens descartadas pelas mesmas filas",
+                "counter", fullest, QueueStats::userName, QueueStats::dropped);
+        counter(out, "chat_outbound_coalesced_total", "Mensagens agrupadas por filas de saída cheias", QUEUE_COALESCED.sum());
+        counter(out, "chat_slow_consumer_disconnects_total", "Clientes desconectados por fila de saída cheia", SLOW_CONSUMERS.sum());
+        out.append("# HELP chat_private_messages_total Mensagens privadas por resultado\n");
+        out.append("# TYPE chat_private_messages_total counter\n");
+        out.append("chat_private_messages_total{result=\"hit\"} ").append(PRIVATE_HITS.sum()).append('\n');
+        out.append("chat_private_messages_total{result=\"miss\"} ").append(PRIVATE_MISSES.sum()).append('\n');
+        out.append("# HELP chat_flood_dropped_total Mensagens descartadas por limite de taxa\n");
+        out.append("# TYPE chat_flood_dropped_total counter\n");
+        out.append("chat_flood_dropped_total{scope=\"user\"} ").append(FLOOD_USER_DROPPED.sum()).append('\n');
+        out.append("chat_flood_dropped_total{scope=\"room\"} ").append(FLOOD_ROOM_DROPPED.sum()).append('\n');
+        counter(out, "chat_flood_pauses_total", "Pausas de leitura aplicadas por excesso de mensagens", FLOOD_PAUSES.sum());
+        counter(out, "chat_flood_disconnects_total", "Clientes desconectados por excesso de mensagens", FLOOD_DISCONNECTS.sum());
+        counter(out, "chat_socket_writes_total", "Chamadas de escrita nos sockets dos clientes", SOCKET_WRITES.sum());
+        counter(out, "chat_frames_written_total", "Frames escritos nos sockets dos clientes", FRAMES_WRITTEN.sum());
+        summary(out, "chat_write_batch_bytes", "Tamanho de cada lote escrito em um socket", WRITE_BATCH_BYTES, 1);
+        summary(out, "chat_virtual_thread_pinned_seconds", "Tempo em que uma thread virtual ficou presa à portadora, por evento", PINNED_NANOS, 1e-9);
+        counter(out, "chat_heartbeat_pings_total", "PINGs enviados a conexões inativas", HEARTBEAT_PINGS.sum());
+        counter(out, "chat_connections_reaped_total", "Conexões encerradas por não responder ao PING", REAPED.sum());
+        summary(out, "chat_timer_tick_seconds", "Tempo de cada tick da roda de timers", TIMER_TICK_NANOS, 1e-9);
+        counter(out, "chat_timer_expired_total", "Prazos vencidos na roda de timers", TIMER_EXPIRED.sum());
+        gauge(out, "chat_timer_scheduled", "Prazos agendados na roda de timers", timerScheduled);
+        counter(out, "chat_compression_in_bytes_total", "Bytes submetidos à compressão de frames", COMPRESS_IN.sum());
+        counter(out, "chat_compression_out_bytes_total", "Bytes resultantes da compressão de frames", COMPRESS_OUT.sum());
+        counter(out, "chat_compression_skipped_total", "Frames em que a compressão não diminuiu o tamanho", COMPRESS_SKIPPED.sum());
+        summary(out, "chat_compression_cpu_seconds", "Tempo de CPU para comprimir um frame", COMPRESS_CPU_NANOS, 1e-9);
+        summary(out, "chat_compression_ratio", "Bytes enviados sobre bytes sem compressão, por frame comprimido", COMPRESS_PERMILLE, 1e-3);
+        counter(out, "chat_compression_sent_plain_bytes_total", "Bytes que as conexões com compressão receberiam sem ela", COMPRESSED_SENT_PLAIN.sum());
+        counter(out, "chat_compression_sent_wire_bytes_total", "Bytes enviados às conexões com compressão", COMPRESSED_SENT_WIRE.sum());
+        List<CompressionStats> compressed = largestCompressedConnections(TOP_COMPRESSED);
+        perUser(out, "chat_compression_user_plain_bytes_total", "Bytes que as " + TOP_COMPRESSED
+                        + " conexões com compressão que mais receberam receberiam sem ela, por usuário",
+                "counter", compressed, CompressionStats::userName, CompressionStats::plainBytes);
+        perUser(out, "chat_compression_user_wire_bytes_total", "Bytes enviados às mesmas conexões",
+                "counter", compressed, CompressionStats::userName, CompressionStats::wireBytes);
+        header(out, "chat_startup_seconds", "Tempo entre o início do processo e o servidor ficar pronto", "gauge");
+        out.append("chat_startup_seconds ").append(startupMillis / 1000.0).append('\n');
+        summary(out, "chat_search_seconds", "Tempo de uma busca do comando /search", SEARCH_NANOS, 1e-9);
+        counter(out, "chat_search_indexed_total", "Mensagens adicionadas ao índice de busca", SEARCH_INDEXED.sum());
+        counter(out, "chat_search_dropped_total", "Mensagens não indexadas por fila do indexador cheia", SEARCH_DROPPED.sum());
+        counter(out, "chat_search_merges_total", "Junções de segmentos do índice de busca", SEARCH_MERGES.sum());
+        gauge(out, "chat_search_segments", "Segmentos do índice de busca", searchSegments);
+        counter(out, "chat_cluster_sent_total", "Frames enviados a outros nós do cluster", CLUSTER_SENT.sum());
+        counter(out, "chat_cluster_received_total", "Mensagens recebidas de outros nós do cluster", CLUSTER_RECEIVED.sum());
+        counter(out, "chat_cluster_dropped_total", "Frames descartados por filas de pares cheias", CLUSTER_DROPPED.sum());
+        labeled(out, "chat_room_messages_total", "Mensagens transmitidas por sala", "room", snapshot(ROOM_MESSAGES));
+        labeled(out, "chat_commands_total", "Comandos recebidos por tipo", "command", snapshot(COMMAND_COUNTS));
+        counter(out, "chat_encoded_frames_total", "Codificações de frames de saída", MessageFrame.getEncodedFrames());
+        counter(out, "chat_encoded_bytes_total", "Bytes codificados em frames de saída", MessageFrame.getEncodedBytes());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, Histogram histogram, double scale) {
+        header(out, name, help, "summary");
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(quantile) * scale).append('\n');
+        }
+        out.append(name).append("_max ").append(histogram.getMax() * scale).append('\n');
+        out.append(name).append("_sum ").append(histogram.getSum() * scale).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void labeled(StringBuilder out, String name, String help, String label, Map<String, Long> values) {
+        header(out, name, help, "counter");
+        values.forEach((key, value) -> out.append(name).append('{').append(label).append("=\"")
+                .append(escape(key)).append("\"} ").append(value).append('\n'));
+    }
+
+    private static <T> void perUser(StringBuilder out, String name, String help, String type, List<T> stats,
+                                    Function<T, String> userName, ToLongFunction<T> value) {
+        header(out, name, help, type);
+        for (T entry : stats) {
+            out.append(name).append("{user=\"").append(escape(userName.apply(entry))).append("\"} ")
+                    .append(value.applyAsLong(entry)).append('\n');
+        }
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,111 @@
+package org.jorgeroberto;
+
+import java.util.Map;
+
+/**
+ * Interface JMX das métricas do servidor (registrada como org.jorgeroberto:type=ServerMetrics).
+ * Tempos em microssegundos.
+ */
+public interface ServerMetricsMBean {
+
+    long getActiveConnections();
+
+    long getOpenedConnections();
+
+    long getClosedConnections();
+
+    long getBroadcasts();
+
+    long getDeliveries();
+
+    double getBroadcastMeanMicros();
+
+    long getBroadcastP99Micros();
+
+    long getBroadcastMaxMicros();
+
+    long getLogWrites();
+
+    long getLogWriteP99Micros();
+
+    long getLogDelayP99Micros();
+
+    long getLogDropped();
+
+    long getLogSpilled();
+
+    long getQueueDepthP99();
+
+    long getQueueDepthMax();
+
+    /**
+     * Profundidade atual das filas de saída mais cheias, por usuário.
+     */
+    Map<String, Long> getFullestOutboundQueues();
+
+    long getQueueDropped();
+
+    long getQueueCoalesced();
+
+    long getSlowConsumerDisconnects();
+
+    long getPrivateHits();
+
+    long getPrivateMisses();
+
+    long getFloodDropped();
+
+    long getFloodPauses();
+
+    long getFloodDisconnects();
+
+    long getSocketWrites();
+
+    long getFramesWritten();
+
+    long getPinnedEvents();
+
+    long getPinnedMaxMicros();
+
+    long getHeartbeatPings();
+
+    long getReapedConnections();
+
+    long getTimerTickP99Micros();
+
+    long getTimerScheduled();
+
+    long getCompressedBytesIn();
+
+    long getCompressedBytesOut();
+
+    long getCompressionCpuP99Micros();
+
+    /**
+     * Bytes enviados sobre bytes sem compressão das conexões com compressão que mais receberam, por usuário.
+     */
+    Map<String, Double> getCompressionRatioByUser();
+
+    long getStartupMillis();
+
+    long getSearchIndexed();
+
+    long getSearchSegments();
+
+    long getSearchP99Micros();
+
+    long getClusterSent();
+
+    long getClusterReceived();
+
+    long getClusterDropped();
+
+    Map<String, Long> getMessagesPerRoom();
+
+    Map<String, Long> getCommands();
+
+    /**
+     * As métricas no formato de texto do endpoint HTTP.
+     */
+    String scrape();
+}
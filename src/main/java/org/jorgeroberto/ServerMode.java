@@ -0,0 +1,22 @@
+package org.jorgeroberto;
+
+/**
+ * Modos de execução disponíveis para o servidor de chat.
+ */
+public enum ServerMode {
+    /** Uma thread de plataforma por conexão (ServerSocket bloqueante). */
+    THREAD,
+    /** Uma thread virtual por conexão (Executors.newVirtualThreadPerTaskExecutor). */
+    VIRTUAL,
+    /** Poucas threads de I/O baseadas em Selector (java.nio). */
+    NIO;
+
+    /**
+     * Converte o nome informado na linha de comando para o modo correspondente.
+     * @param value O nome do modo (ex: "thread", "nio").
+     * @return O modo de execução.
+     */
+    public static ServerMode fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,164 @@
+package org.jorgeroberto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Roda de timers com hash (hashed timing wheel): uma única thread atende os prazos de todas
+ * as conexões, em vez de um timer por socket. A roda tem N posições que avançam uma a cada
+ * tick; um prazo cai na posição (tick do vencimento % N) e, se estiver mais de uma volta à
+ * frente, espera as voltas restantes. Agendar e cancelar custam O(1); a precisão é de um tick.
+ * Novos prazos chegam por uma fila lock-free e são colocados na roda pela própria thread.
+ */
+final class TimerWheel implements AutoCloseable {
+
+    /**
+     * Prazo agendado na roda.
+     */
+    static final class Timeout {
+        private final Runnable action;
+        private final long deadlineTick;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable action, long deadlineTick) {
+            this.action = action;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancela o prazo. Se a ação já estiver em execução, ela não é interrompida.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<List<Timeout>> buckets;
+    private final int mask;
+    // Prazos recém-agendados, ainda não colocados na roda
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger scheduled = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Tick atual, escrito apenas pela thread da roda
+    private volatile long tick;
+
+    /**
+     * Cria e inicia a roda.
+     * @param name Nome da thread da roda.
+     * @param tickMillis Duração de cada tick (precisão dos prazos).
+     * @param size Número de posições da roda (arredondado para uma potência de 2).
+     */
+    TimerWheel(String name, long tickMillis, int size) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1) << 1);
+        this.buckets = new ArrayList<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.mask = capacity - 1;
+        this.thread = Thread.ofPlatform().daemon().name(name).start(this::run);
+    }
+
+    /**
+     * Agenda uma ação. Pode ser chamado de qualquer thread; a ação roda na thread da roda
+     * e não deve bloquear.
+     * @param action A ação a executar no vencimento.
+     * @param delay O prazo a partir de agora.
+     * @param unit A unidade do prazo.
+     */
+    Timeout schedule(Runnable action, long delay, TimeUnit unit) {
+        // O vencimento vem do relógio, não do tick atual: se a thread da roda estiver atrasada,
+        // ela recupera os ticks em sequência e dispararia o prazo antes da hora
+        long deadlineNanos = System.nanoTime() - startNanos + unit.toNanos(delay);
+        long deadlineTick = Math.max(tick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(action, deadlineTick);
+        pending.offer(timeout);
+        scheduled.incrementAndGet();
+        return timeout;
+    }
+
+    /**
+     * Quantidade de prazos agendados e ainda não vencidos nem descartados.
+     */
+    int size() {
+        return scheduled.get();
+    }
+
+    private void run() {
+        while (running) {
+            long next = startNanos + (tick + 1) * tickNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            long start = System.nanoTime();
+            tick++;
+            transferPending();
+            int expired = expire(buckets.get((int) (tick & mask)));
+            ServerMetrics.timerTick(System.nanoTime() - start, expired, scheduled.get());
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                scheduled.decrementAndGet();
+                continue;
+            }
+            // Prazo que venceu enquanto esperava na fila cai no tick atual
+            long deadline = Math.max(timeout.deadlineTick, tick);
+            timeout.rounds = (deadline - tick) / buckets.size();
+            buckets.get((int) (deadline & mask)).add(timeout);
+        }
+    }
+
+    /**
+     * Executa os prazos vencidos da posição e remove os cancelados, compactando a lista.
+     * @return Quantidade de ações executadas.
+     */
+    private int expire(List<Timeout> bucket) {
+        int expired = 0;
+        int kept = 0;
+        int size = bucket.size();
+        for (int i = 0; i < size; i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled) {
+                scheduled.decrementAndGet();
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            scheduled.decrementAndGet();
+            expired++;
+            try {
+                timeout.action.run();
+            } catch (RuntimeException e) {
+                System.err.println("SERVIDOR: Erro em " + Thread.currentThread().getName() + ": " + e);
+            }
+        }
+        bucket.subList(kept, size).clear();
+        return expired;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,45 @@
+package org.jorgeroberto;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket sem lock, implementado como GCRA: em vez de contar fichas, guarda o
+ * instante teórico em que o balde estaria cheio de novo. Cada tentativa custa uma
+ * leitura do relógio e um compareAndSet, sem alocação.
+ */
+final class TokenBucket {
+
+    private final long intervalNanos;
+    // Quanto o instante teórico pode estar à frente do relógio: a rajada permitida
+    private final long toleranceNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * Construtor. O balde começa cheio.
+     * @param ratePerSecond Fichas repostas por segundo.
+     * @param burst Tamanho do balde (mensagens aceitas de uma vez).
+     */
+    TokenBucket(double ratePerSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Consome uma ficha, se houver.
+     * @return false se o limite foi atingido.
+     */
+    boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long base = current - now > 0 ? current : now;
+            if (base - now > toleranceNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, base + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+}
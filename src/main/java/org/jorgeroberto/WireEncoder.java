@@ -0,0 +1,155 @@
+package org.jorgeroberto;
+
+import java.io.IOException;
+
+/**
+ * Converte os frames de saída de uma conexão em bytes, no protocolo negociado.
+ * Usado apenas pelo escritor da conexão (thread escritora ou reator), portanto
+ * mantém sem sincronização o protocolo atual. Os identificadores de salas e usuários
+ * pertencem à conexão e são limitados a {@value #MAX_SYMBOLS} de cada tipo, de modo que
+ * a rotatividade de nomes no servidor não faz a memória crescer.
+ */
+final class WireEncoder {
+
+    // Identificadores de cada tipo por conexão; além disso, os menos usados são redefinidos
+    static final int MAX_SYMBOLS = 1024;
+
+    /**
+     * Destino dos blocos de bytes produzidos pelo codificador.
+     */
+    interface ChunkSink {
+        void accept(byte[] chunk) throws IOException;
+    }
+
+    private boolean binary;
+    private boolean compressed;
+    // Bytes entregues com compressão: o que seria enviado sem ela e o que foi enviado.
+    // Escritos só pelo escritor da conexão e lidos pelas métricas
+    private volatile long compressedPlainBytes;
+    private volatile long compressedWireBytes;
+    // Identificadores de salas e usuários já definidos para este cliente
+    private final BinaryProtocol.ConnectionSymbols rooms = new BinaryProtocol.ConnectionSymbols(MAX_SYMBOLS);
+    private final BinaryProtocol.ConnectionSymbols users = new BinaryProtocol.ConnectionSymbols(MAX_SYMBOLS);
+
+    /**
+     * Codifica um frame, emitindo antes as definições de salas e usuários ainda
+     * desconhecidos pelo cliente quando o protocolo é binário.
+     * @param frame O frame a ser codificado.
+     * @param sink O destino dos bytes.
+     */
+    void encode(MessageFrame frame, ChunkSink sink) throws IOException {
+        switch (frame.kind()) {
+            case COMPOSITE:
+                if (compressed) {
+                    // O lote inteiro (como o histórico do /join) vira um único bloco comprimido
+                    encodeCompressed(frame, sink);
+                    return;
+                }
+                for (MessageFrame part : frame.parts()) {
+                    encode(part, sink);
+                }
+                return;
+            case SWITCH_TO_BINARY:
+                binary = true;
+                return;
+            case SWITCH_TO_COMPRESSED:
+                binary = true;
+                compressed = true;
+                return;
+            default:
+                break;
+        }
+        if (!binary) {
+            sink.accept(frame.textBytes());
+            return;
+        }
+        if (compressed) {
+            encodeCompressed(frame, sink);
+            return;
+        }
+        encodeBinary(frame, sink);
+    }
+
+    /**
+     * Envia o frame com os identificadores desta conexão, definindo antes os que o cliente
+     * ainda não conhece. Só o cabeçalho é montado aqui; o texto codificado é o mesmo para
+     * todos os destinatários.
+     */
+    private void encodeBinary(MessageFrame frame, ChunkSink sink) throws IOException {
+        byte[] header;
+        switch (frame.kind()) {
+            case CHAT:
+                int roomId = reference(rooms, BinaryProtocol.DEFINE_ROOM, frame.room(), sink);
+                int userId = reference(users, BinaryProtocol.DEFINE_USER, frame.user(), sink);
+                header = BinaryProtocol.header(BinaryProtocol.ROOM_MESSAGE, frame.binaryText().length, roomId, userId);
+                break;
+            case PRIVATE_FROM:
+                header = BinaryProtocol.header(BinaryProtocol.PRIVATE_FROM, frame.binaryText().length,
+                        reference(users, BinaryProtocol.DEFINE_USER, frame.user(), sink));
+                break;
+            case PRIVATE_TO:
+                header = BinaryProtocol.header(BinaryProtocol.PRIVATE_TO, frame.binaryText().length,
+                        reference(users, BinaryProtocol.DEFINE_USER, frame.user(), sink));
+                break;
+            default:
+                // Avisos e heartbeat não referenciam salas nem usuários
+                sink.accept(frame.binaryBytes());
+                return;
+        }
+        sink.accept(header);
+        if (frame.binaryText().length > 0) {
+            sink.accept(frame.binaryText());
+        }
+    }
+
+    /**
+     * Identificador do nome nesta conexão, emitindo antes o DEFINE se ele ainda não foi
+     * apresentado ao cliente (ou se o identificador foi reaproveitado para outro nome).
+     */
+    private static int reference(BinaryProtocol.ConnectionSymbols table, int defineOpcode, String name,
+                                 ChunkSink sink) throws IOException {
+        int id = table.find(name);
+        if (id == 0) {
+            id = table.assign(name);
+            sink.accept(BinaryProtocol.define(defineOpcode, id, name));
+        }
+        return id;
+    }
+
+    /**
+     * Envia o frame comprimido, se compensar. Dentro do bloco comprimido as salas e os
+     * usuários vão pelo nome, sem depender desta conexão; assim o bloco é o mesmo para todos
+     * os destinatários. Se a compressão não compensar, as partes vão como frames comuns.
+     * Cada entrega é registrada na conexão e nas métricas, com o tamanho que teria sem compressão.
+     */
+    private void encodeCompressed(MessageFrame frame, ChunkSink sink) throws IOException {
+        byte[] bytes = frame.compressedBytes();
+        int plain = frame.connectionSize();
+        int wire = plain;
+        if (bytes != null) {
+            sink.accept(bytes);
+            wire = bytes.length;
+        } else {
+            for (MessageFrame part : frame.parts()) {
+                encodeBinary(part, sink);
+            }
+        }
+        compressedPlainBytes += plain;
+        compressedWireBytes += wire;
+        ServerMetrics.compressedFrameSent(plain, wire);
+    }
+
+    /**
+     * Bytes que esta conexão teria recebido sem compressão, desde que ela foi negociada.
+     */
+    long getCompressedPlainBytes() {
+        return compressedPlainBytes;
+    }
+
+    /**
+     * Bytes de fato enviados a esta conexão desde que a compressão foi negociada.
+     */
+    long getCompressedWireBytes() {
+        return compressedWireBytes;
+    }
+}
@@ -0,0 +1,162 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class BinaryProtocolTest {
+
+    @Test
+    void varintRoundTrip() throws IOException {
+        int[] values = {0, 1, 127, 128, 300, 16_383, 16_384, BinaryProtocol.MAX_PAYLOAD, Integer.MAX_VALUE};
+        for (int value : values) {
+            byte[] bytes = new byte[5];
+            int end = BinaryProtocol.writeVarint(bytes, 0, value);
+            assertEquals(BinaryProtocol.varintSize(value), end, "tamanho de " + value);
+            assertEquals(value, BinaryProtocol.readVarint(ByteBuffer.wrap(bytes, 0, end)));
+        }
+    }
+
+    @Test
+    void truncatedVarintIsRejected() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80});
+        assertThrows(Exception.class, () -> BinaryProtocol.readVarint(buffer));
+    }
+
+    @Test
+    void frameLayoutIsOpcodeLengthPayload() {
+        byte[] frame = new BinaryProtocol.FrameBuilder(BinaryProtocol.NOTICE).text("oi").build();
+        assertArrayEquals(new byte[]{0x40, 2, 'o', 'i'}, frame);
+    }
+
+    @Test
+    void headerPlusTextMatchesTheBuiltFrame() {
+        byte[] text = "x".repeat(200).getBytes(StandardCharsets.UTF_8);
+        byte[] built = new BinaryProtocol.FrameBuilder(BinaryProtocol.ROOM_MESSAGE).varint(3).varint(300).text("x".repeat(200)).build();
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        joined.writeBytes(BinaryProtocol.header(BinaryProtocol.ROOM_MESSAGE, text.length, 3, 300));
+        joined.writeBytes(text);
+        assertArrayEquals(built, joined.toByteArray());
+    }
+
+    @Test
+    void clientReferencesMustBeInlineNames() throws IOException {
+        byte[] inline = new BinaryProtocol.FrameBuilder(BinaryProtocol.JOIN).varint(0).string("#geral").build();
+        assertEquals("#geral", BinaryProtocol.readReference(ByteBuffer.wrap(inline, 2, inline.length - 2)));
+        // Um identificador pode ter sido redefinido pelo escritor: não é resolvido
+        assertNull(BinaryProtocol.readReference(ByteBuffer.wrap(new byte[]{1})));
+    }
+
+    @Test
+    void fullSymbolTableRecyclesTheLeastRecentlyUsedId() {
+        BinaryProtocol.ConnectionSymbols symbols = new BinaryProtocol.ConnectionSymbols(2);
+        int ana = symbols.assign("ana");
+        int bob = symbols.assign("bob");
+        // ana foi usada por último: bob é quem cede o identificador
+        assertEquals(ana, symbols.find("ana"));
+
+        int caio = symbols.assign("caio");
+        assertEquals(bob, caio);
+        assertEquals(0, symbols.find("bob"));
+        assertEquals(caio, symbols.find("caio"));
+        assertEquals(2, symbols.size());
+    }
+
+    @Test
+    void entryNoticesShrinkWithTheDictionary() throws IOException {
+        MessageFrame notice = MessageFrame.of("SERVER: ana" + RoomManager.ENTERED_ROOM);
+        byte[] compressed = notice.compressedBytes();
+        assertTrue(compressed != null && compressed.length < notice.binaryBytes().length);
+
+        ByteBuffer frame = ByteBuffer.wrap(compressed);
+        assertEquals(BinaryProtocol.COMPRESSED, frame.get() & 0xFF);
+        BinaryProtocol.readVarint(frame);
+        ByteBuffer frames = FrameCompression.decompress(frame);
+        assertArrayEquals(notice.binaryBytes(), Arrays.copyOfRange(frames.array(), frames.position(), frames.limit()));
+    }
+
+    @Test
+    void shortChatIsSentWithIdentifiersInsteadOfCompressed() {
+        // Comprimido, o frame levaria os nomes da sala e do usuário e ficaria maior
+        assertNull(MessageFrame.chat("#geral", "ana", "bom dia a todos").compressedBytes());
+    }
+
+    @Test
+    void decoderReassemblesFramesSplitAcrossReads() throws IOException {
+        List<String> received = new ArrayList<>();
+        InboundDecoder decoder = new InboundDecoder(new InboundDecoder.Handler() {
+            @Override
+            public void onLine(String line) {
+                received.add("linha:" + line);
+            }
+
+            @Override
+            public void onFrame(int opcode, ByteBuffer payload) {
+                received.add(opcode + ":" + BinaryProtocol.readText(payload));
+            }
+        }, 4096);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.writeBytes(new BinaryProtocol.FrameBuilder(BinaryProtocol.NICK).text("ana").build());
+        stream.writeBytes(new BinaryProtocol.FrameBuilder(BinaryProtocol.CHAT).text("é".repeat(100)).build());
+        byte[] bytes = stream.toByteArray();
+
+        decoder.feed("PROTO BIN/1\r\n".getBytes(StandardCharsets.UTF_8), 0, 13);
+        decoder.switchToBinary();
+        for (byte b : bytes) {
+            decoder.feed(new byte[]{b}, 0, 1);
+        }
+        assertEquals(List.of("linha:PROTO BIN/1", BinaryProtocol.NICK + ":ana", BinaryProtocol.CHAT + ":" + "é".repeat(100)), received);
+    }
+
+    @Test
+    void decoderRejectsOversizedFrames() {
+        InboundDecoder decoder = new InboundDecoder(new InboundDecoder.Handler() {
+            @Override
+            public void onLine(String line) {
+            }
+
+            @Override
+            public void onFrame(int opcode, ByteBuffer payload) {
+            }
+        }, 4096);
+        decoder.switchToBinary();
+        byte[] header = BinaryProtocol.header(BinaryProtocol.CHAT, BinaryProtocol.MAX_PAYLOAD + 1);
+        assertThrows(IOException.class, () -> decoder.feed(header, 0, header.length));
+    }
+
+    @Test
+    void framesFollowTheLineLimit() throws IOException {
+        List<String> received = new ArrayList<>();
+        InboundDecoder decoder = new InboundDecoder(new InboundDecoder.Handler() {
+            @Override
+            public void onLine(String line) {
+            }
+
+            @Override
+            public void onFrame(int opcode, ByteBuffer payload) {
+                received.add(BinaryProtocol.readText(payload));
+            }
+        }, 64);
+        decoder.switchToBinary();
+        byte[] fits = new BinaryProtocol.FrameBuilder(BinaryProtocol.CHAT).text("x".repeat(64)).build();
+        decoder.feed(fits, 0, fits.length);
+        assertEquals(List.of("x".repeat(64)), received);
+
+        // Rejeitado já pelo cabeçalho, antes de o payload ser acumulado
+        byte[] header = BinaryProtocol.header(BinaryProtocol.CHAT, 65);
+        assertThrows(IOException.class, () -> decoder.feed(header, 0, header.length));
+    }
+}
@@ -0,0 +1,169 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChatSessionTest {
+
+    @TempDir
+    File logDir;
+
+    private RoomLogWriter logWriter;
+    private RoomManager roomManager;
+
+    /**
+     * Conexão que apenas guarda o texto dos frames recebidos.
+     */
+    private static final class RecordingConnection implements ChatConnection {
+        private final List<String> received = new CopyOnWriteArrayList<>();
+        private final OutboundQueue queue = new OutboundQueue();
+        private volatile String userName;
+
+        @Override
+        public void send(MessageFrame frame) {
+            for (MessageFrame part : frame.parts()) {
+                received.add(part.render());
+            }
+        }
+
+        @Override
+        public String getUserName() {
+            return userName;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return queue;
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        logWriter = new RoomLogWriter(logDir);
+        roomManager = new RoomManager(logWriter, new RoomHistory(logWriter.getStore()), RoomManager.DEFAULT_REPLAY_COUNT, 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        roomManager.shutdown();
+        logWriter.close();
+    }
+
+    private ChatSession connect(RecordingConnection connection, String name) {
+        connection.userName = name;
+        ChatSession session = new ChatSession(connection, roomManager);
+        session.handleLine("NICK " + name);
+        return session;
+    }
+
+    @Test
+    void messagesSentDuringAJoinReachTheRoomAfterTheEntryNotice() throws InterruptedException {
+        RecordingConnection bob = new RecordingConnection();
+        connect(bob, "bob").handleLine("/join #dev");
+        awaitLine(bob, "SERVER: Você entrou na sala #dev");
+
+        RecordingConnection ana = new RecordingConnection();
+        ChatSession session = connect(ana, "ana");
+        session.handleLine("/join #dev");
+        session.handleLine("primeira");
+        session.handleLine("/leave");
+        session.handleLine("segunda");
+
+        awaitLine(bob, "SERVER: ana saiu da sala.");
+        List<String> seen = bob.received.stream().filter(line -> line.contains("ana")).toList();
+        int entered = seen.indexOf("SERVER: ana entrou na sala.");
+        int first = indexOfSuffix(seen, "primeira");
+        assertTrue(entered >= 0 && first > entered, seen.toString());
+        assertEquals(-1, indexOfSuffix(seen, "segunda"), seen.toString());
+        // A sala atual só muda quando o cliente já está no lobby
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!session.getCurrentRoom().equals("lobby") && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("lobby", session.getCurrentRoom());
+    }
+
+    @Test
+    void typedPingIsAChatMessageAndOnlyTheControlLineIsAnswered() throws InterruptedException {
+        RecordingConnection bob = new RecordingConnection();
+        connect(bob, "bob").handleLine("/join #dev");
+        RecordingConnection ana = new RecordingConnection();
+        ChatSession session = connect(ana, "ana");
+        session.handleLine("/join #dev");
+        awaitLine(ana, "SERVER: Você entrou na sala #dev");
+
+        session.handleLine("PING");
+        session.handleLine(Heartbeat.PING_LINE);
+        awaitLine(ana, Heartbeat.PONG_LINE);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (indexOfSuffix(bob.received, ": PING") < 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(indexOfSuffix(bob.received, ": PING") >= 0, bob.received.toString());
+        assertEquals(1, ana.received.stream().filter(Heartbeat.PONG_LINE::equals).count());
+    }
+
+    @Test
+    void heartbeatsCountAgainstTheFloodLimit() {
+        // Rajada de 3 e reposição desprezível: o NICK e dois PINGs esgotam o balde
+        roomManager.setFloodPolicy(new FloodControl.Policy(0.001, 3, 0, 0, 4096));
+        RecordingConnection ana = new RecordingConnection();
+        ChatSession session = connect(ana, "ana");
+        for (int i = 0; i < 5; i++) {
+            session.handleLine(Heartbeat.PING_LINE);
+        }
+        assertEquals(2, ana.received.stream().filter(Heartbeat.PONG_LINE::equals).count());
+    }
+
+    @Test
+    void aNameInUseIsRefused() {
+        RecordingConnection ana = new RecordingConnection();
+        connect(ana, "ana");
+        RecordingConnection impostor = new RecordingConnection();
+        ChatSession session = connect(impostor, "ana");
+
+        assertTrue(impostor.received.contains("SERVER: O nome ana já está em uso. Escolha outro (NICK <nome>):"),
+                impostor.received.toString());
+        assertSame(ana, roomManager.getClient("ana"));
+        // A sessão continua aguardando um NICK válido
+        session.handleLine("NICK ana2");
+        assertSame(impostor, roomManager.getClient("ana2"));
+    }
+
+    private static int indexOfSuffix(List<String> lines, String suffix) {
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).endsWith(suffix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void awaitLine(RecordingConnection connection, String line) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!connection.received.contains(line)) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("'" + line + "' não chegou: " + connection.received);
+            }
+            Thread.sleep(5);
+        }
+    }
+}
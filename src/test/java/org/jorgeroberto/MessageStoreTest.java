@@ -0,0 +1,181 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageStoreTest {
+
+    @TempDir
+    File logDir;
+
+    @Test
+    void roomDirectoriesNeverCollide() {
+        List<String> rooms = List.of("#a.b", "#a_b", "#a b", "#lobby", "lobby", "#Dev", "#dev", "#..", "#ação");
+        Set<String> dirs = new HashSet<>();
+        for (String room : rooms) {
+            String dir = MessageStore.encodeRoom(room);
+            assertTrue(dirs.add(dir), room + " repetiu " + dir);
+            assertTrue(dir.matches("[a-z0-9_%A-F-]+"), dir);
+        }
+        assertEquals("%23geral", MessageStore.encodeRoom("#geral"));
+        assertEquals("lobby", MessageStore.encodeRoom("lobby"));
+    }
+
+    @Test
+    void plainTextLogsAreImportedOnce() throws IOException {
+        Files.writeString(new File(logDir, "geral.txt").toPath(),
+                "[23:59:58.5] [ana em ##geral]: boa noite\n"
+                + "[00:00:01.25] SERVER: bia entrou na sala.\n"
+                + "[00:00:02] [bia em ##geral]: duas\nlinhas\n");
+        Files.writeString(new File(logDir, "private.txt").toPath(),
+                "[10:00] [PRIVADO de ana para bia]: oi\n");
+        // Formato do RoomLogWriter, que não é um log antigo
+        Files.writeString(new File(logDir, "spill.txt").toPath(), "[#geral] [2026-01-01T00:00:00Z] ana: x\n");
+
+        try (MessageStore store = new MessageStore(logDir)) {
+            store.prepare(List.of("lobby"));
+            List<MessageRecord> records = store.range("#geral", 1, 10, 10);
+            assertEquals(3, records.size());
+            assertEquals("ana", records.get(0).sender());
+            assertEquals("boa noite", records.get(0).body());
+            assertNull(records.get(1).sender());
+            assertEquals("SERVER: bia entrou na sala.", records.get(1).body());
+            assertEquals("duas\nlinhas", records.get(2).body());
+            // A hora voltou para 00:00: as duas primeiras linhas são do dia anterior
+            assertEquals(2750, records.get(1).timestamp() - records.get(0).timestamp());
+            MessageRecord privateMessage = store.privateRange(1, 10, 10).get(0);
+            assertEquals("bia", privateMessage.target());
+            assertEquals("oi", privateMessage.body());
+        }
+        assertTrue(new File(logDir, "legacy/geral.txt").isFile());
+        assertTrue(new File(logDir, "spill.txt").isFile());
+
+        // O arquivo reaparecendo não duplica as mensagens
+        Files.move(new File(logDir, "legacy/geral.txt").toPath(), new File(logDir, "geral.txt").toPath());
+        try (MessageStore store = new MessageStore(logDir)) {
+            store.prepare(List.of());
+            assertEquals(4, store.nextSeq("#geral"));
+        }
+    }
+
+    @Test
+    void legacyDatesGoBackADayWhenTheClockWraps() {
+        long lastModified = LocalDateTime.of(2024, 3, 10, 12, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long[] timestamps = MessageStore.legacyTimestamps(
+                List.of(LocalTime.of(23, 0), LocalTime.of(9, 0), LocalTime.of(11, 0)), lastModified);
+        assertEquals(LocalDateTime.of(2024, 3, 9, 23, 0), toLocal(timestamps[0]));
+        assertEquals(LocalDateTime.of(2024, 3, 10, 9, 0), toLocal(timestamps[1]));
+        assertEquals(LocalDateTime.of(2024, 3, 10, 11, 0), toLocal(timestamps[2]));
+    }
+
+    private static LocalDateTime toLocal(long timestamp) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
+    }
+
+    @Test
+    void roomsThatUsedToShareADirectoryAreKeptApart() throws IOException {
+        try (MessageStore store = new MessageStore(logDir)) {
+            store.appendRoom("#a.b", 1, "ana", "ponto");
+            store.appendRoom("#a_b", 2, "ana", "sublinhado");
+            assertEquals(1, store.range("#a.b", 1, 10, 10).size());
+            assertEquals("sublinhado", store.range("#a_b", 1, 10, 10).get(0).body());
+            assertEquals(2, store.nextSeq("#a.b"));
+        }
+    }
+
+    @Test
+    void recoveryStopsAtTheFirstRecordWithABadChecksum() throws IOException {
+        try (MessageStore store = new MessageStore(logDir)) {
+            for (int i = 1; i <= 3; i++) {
+                store.appendRoom("#geral", i, "ana", "mensagem " + i);
+            }
+        }
+        // Corrompe o corpo do terceiro registro, como em uma gravação interrompida
+        File segment = new File(logDir, "rooms/%23geral/" + String.format("%020d.seg", 1));
+        int third = 2 * Segment.encode(1, 1, "ana", "#geral", "mensagem 1").length;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(third + Segment.HEADER_SIZE + 20);
+            file.write(0x7F);
+        }
+
+        try (MessageStore store = new MessageStore(logDir)) {
+            List<MessageRecord> records = store.range("#geral", 1, 10, 10);
+            assertEquals(2, records.size());
+            assertEquals("mensagem 2", records.get(1).body());
+            // O registro corrompido é sobrescrito pela próxima gravação
+            assertEquals(3, store.appendRoom("#geral", 4, "ana", "depois"));
+            assertEquals("depois", store.range("#geral", 3, 10, 10).get(0).body());
+        }
+    }
+
+    @Test
+    void segmentsGrowUntilTheMaximumAndThenRoll() throws IOException {
+        String body = "x".repeat(1000);
+        try (MessageStore store = new MessageStore(logDir, 256 * 1024, Long.MAX_VALUE, Long.MAX_VALUE)) {
+            store.appendRoom("#geral", 1, "ana", body);
+            File dir = new File(logDir, "rooms/%23geral");
+            assertEquals(SegmentLog.INITIAL_SEGMENT_SIZE, new File(dir, String.format("%020d.seg", 1)).length());
+
+            for (int i = 2; i <= 600; i++) {
+                store.appendRoom("#geral", i, "ana", body);
+            }
+            File[] segments = dir.listFiles((d, name) -> name.endsWith(".seg"));
+            assertTrue(segments.length >= 2);
+            // O segmento selado é cortado no fim dos dados
+            File first = new File(dir, String.format("%020d.seg", 1));
+            assertTrue(first.length() <= 256 * 1024 && first.length() > 128 * 1024);
+            assertEquals(600, store.range("#geral", 1, Long.MAX_VALUE, 1000).size());
+        }
+    }
+
+    @Test
+    void totalLimitRemovesTheOldestSealedSegmentsOfEveryLog() throws IOException {
+        String body = "x".repeat(1000);
+        try (MessageStore store = new MessageStore(logDir, 64 * 1024, Long.MAX_VALUE, Long.MAX_VALUE, 200 * 1024, 1)) {
+            for (int i = 1; i <= 300; i++) {
+                store.appendRoom("#a", i, "ana", body);
+                store.appendRoom("#b", i, "bob", body);
+            }
+            // Limite de um log aberto: #a foi fechado ao abrir #b
+            assertEquals(1, store.getOpenLogCount());
+            assertTrue(store.applyRetention() > 0);
+
+            long total = 0;
+            for (String room : List.of("%23a", "%23b")) {
+                for (File file : new File(logDir, "rooms/" + room).listFiles((d, name) -> name.endsWith(".seg"))) {
+                    total += file.length();
+                }
+            }
+            assertTrue(total <= 200 * 1024, "total " + total);
+            assertEquals(300, store.nextSeq("#a") - 1);
+            assertEquals(300, store.range("#b", 300, 301, 1).get(0).seq());
+        }
+    }
+
+    @Test
+    void idleLogsAreClosedAndReopenedOnDemand() throws IOException {
+        try (MessageStore store = new MessageStore(logDir)) {
+            store.appendRoom("#geral", 1, "ana", "antes");
+            store.closeIdleLogs(Long.MAX_VALUE);
+            assertEquals(0, store.getOpenLogCount());
+
+            assertEquals(2, store.appendRoom("#geral", 2, "ana", "depois"));
+            assertEquals(2, store.range("#geral", 1, 10, 10).size());
+        }
+    }
+}
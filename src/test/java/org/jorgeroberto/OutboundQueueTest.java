@@ -0,0 +1,94 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+
+    private final MessageFrame a = MessageFrame.of("a");
+    private final MessageFrame b = MessageFrame.of("b");
+    private final MessageFrame c = MessageFrame.of("c");
+
+    @Test
+    void dropOldestDiscardsTheHeadWhenFull() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        assertTrue(queue.offer(a));
+        assertTrue(queue.offer(b));
+        assertTrue(queue.offer(c));
+
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getDroppedCount());
+        assertSame(b, queue.poll());
+        assertSame(c, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void disconnectRejectsWhenFull() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer(a));
+        assertFalse(queue.offer(b));
+
+        assertEquals(1, queue.getDroppedCount());
+        assertSame(a, queue.poll());
+    }
+
+    @Test
+    void coalesceMergesIntoTheLastPendingFrame() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.offer(a);
+        queue.offer(b);
+        queue.offer(c);
+
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getCoalescedCount());
+        assertEquals(0, queue.getDroppedCount());
+        assertSame(a, queue.poll());
+        assertArrayEquals(new MessageFrame[]{b, c}, queue.poll().parts());
+    }
+
+    @Test
+    void closeDeliversPendingFramesThenEnds() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(a);
+        queue.close();
+        assertTrue(queue.offer(b));
+        assertEquals(1, queue.getDroppedCount());
+
+        assertSame(a, queue.take(1, TimeUnit.SECONDS));
+        assertNull(queue.take(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void abortDiscardsPendingFrames() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(a);
+        queue.abort();
+
+        assertTrue(queue.isClosed());
+        assertNull(queue.take(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void closeWakesAWriterBlockedWithoutTimeout() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        FutureTask<MessageFrame> writer = new FutureTask<>(queue::take);
+        Thread thread = Thread.ofPlatform().start(writer);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+
+        queue.close();
+        assertNull(writer.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,77 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RoomHistoryTest {
+
+    @TempDir
+    File logDir;
+
+    @Test
+    void positionsAreTheSequencesOfTheLog() throws Exception {
+        try (MessageStore store = new MessageStore(logDir);
+             RoomHistory history = new RoomHistory(store)) {
+            store.appendRoom("#geral", 1, "ana", "antiga");
+            MessageFrame first = MessageFrame.of("primeira");
+            MessageFrame lost = MessageFrame.of("perdida");
+            MessageFrame second = MessageFrame.of("segunda");
+            history.append("#geral", first);
+            history.append("#geral", lost);
+            history.append("#geral", second);
+
+            history.recorded("#geral", first, store.appendRoom("#geral", 2, null, "primeira"));
+            // Descartada pelo escritor: não ocupa posição no log
+            history.discarded("#geral", lost);
+            history.recorded("#geral", second, store.appendRoom("#geral", 3, null, "segunda"));
+
+            RoomHistory.Page page = history.recent("#geral", 1);
+            assertEquals(List.of(second), page.frames());
+            assertEquals(3, page.cursor());
+
+            page = history.before("#geral", page.cursor(), 10);
+            assertEquals(2, page.frames().size());
+            assertEquals("antiga", page.frames().get(0).text());
+            assertEquals(first, page.frames().get(1));
+            assertEquals(1, page.cursor());
+        }
+    }
+
+    @Test
+    void pendingMessagesPageBeforeTheNextSequence() throws Exception {
+        try (MessageStore store = new MessageStore(logDir);
+             RoomHistory history = new RoomHistory(store)) {
+            store.appendRoom("#geral", 1, "ana", "gravada");
+            MessageFrame pending = MessageFrame.of("pendente");
+            history.append("#geral", pending);
+
+            RoomHistory.Page page = history.recent("#geral", 1);
+            assertEquals(List.of(pending), page.frames());
+            assertEquals(2, page.cursor());
+            assertEquals("gravada", history.before("#geral", page.cursor(), 1).frames().get(0).text());
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedRoomLeavesMemory() {
+        String text = "x".repeat(100);
+        try (RoomHistory history = new RoomHistory(null, 10, 3 * MessageFrame.of(text).size(), 60_000)) {
+            history.append("#a", MessageFrame.of(text));
+            history.append("#b", MessageFrame.of(text));
+            history.append("#c", MessageFrame.of(text));
+            // #a foi acessada depois de #b: #b é a vítima
+            history.recent("#a", 1);
+            history.append("#d", MessageFrame.of(text));
+
+            assertTrue(history.recent("#b", 1).isEmpty());
+            assertEquals(1, history.recent("#a", 1).frames().size());
+            assertEquals(3, history.getRoomCount());
+            assertTrue(history.getCachedChars() <= 3L * MessageFrame.of(text).size());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RoomLogWriterTest {
+
+    @TempDir
+    File logDir;
+
+    @Test
+    void closeWritesEveryPendingEntry() throws IOException {
+        RoomLogWriter writer = new RoomLogWriter(logDir, null, 16, 4, 10_000, RoomLogWriter.BackpressurePolicy.BLOCK);
+        for (int i = 0; i < 50; i++) {
+            writer.append("#geral", "ana", "mensagem " + i);
+        }
+        writer.appendPrivate("ana", "bob", "oi");
+        writer.close();
+
+        try (MessageStore store = new MessageStore(logDir)) {
+            List<MessageRecord> records = store.range("#geral", 1, Long.MAX_VALUE, 100);
+            assertEquals(50, records.size());
+            assertEquals("mensagem 0", records.get(0).body());
+            assertEquals("mensagem 49", records.get(49).body());
+            List<MessageRecord> privates = store.privateSince(0, 10);
+            assertEquals(1, privates.size());
+            assertEquals("bob", privates.get(0).target());
+        }
+    }
+
+    @Test
+    void entriesAfterCloseAreCountedAsDropped() {
+        RoomLogWriter writer = new RoomLogWriter(logDir);
+        writer.close();
+        writer.append("#geral", "ana", "tarde demais");
+        assertEquals(1, writer.getDroppedCount());
+    }
+
+    @Test
+    void entriesRacingWithCloseAreWrittenOrCounted() throws Exception {
+        RoomLogWriter writer = new RoomLogWriter(logDir, null, 16, 4, 10_000, RoomLogWriter.BackpressurePolicy.BLOCK);
+        int threads = 4;
+        int perThread = 500;
+        CountDownLatch started = new CountDownLatch(threads);
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            senders.add(Thread.ofPlatform().start(() -> {
+                started.countDown();
+                for (int i = 0; i < perThread; i++) {
+                    writer.append("#geral", "ana", "mensagem " + i);
+                }
+            }));
+        }
+        started.await();
+        writer.close();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        try (MessageStore store = new MessageStore(logDir)) {
+            long written = store.range("#geral", 1, Long.MAX_VALUE, threads * perThread).size();
+            assertEquals(threads * perThread, written + writer.getDroppedCount());
+        }
+    }
+}
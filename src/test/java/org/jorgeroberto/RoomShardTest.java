@@ -0,0 +1,44 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RoomShardTest {
+
+    @Test
+    void tasksPostedAfterCloseStillRunInOrder() {
+        RoomShard shard = new RoomShard("room-shard-teste");
+        List<Integer> ran = new CopyOnWriteArrayList<>();
+        shard.execute(() -> ran.add(1));
+        shard.close();
+        // Como a segunda etapa de uma troca de sala, enviada por outro shard durante o desligamento
+        shard.execute(() -> {
+            ran.add(2);
+            shard.execute(() -> ran.add(4));
+            ran.add(3);
+        });
+        assertEquals(List.of(1, 2, 3, 4), ran);
+    }
+
+    @Test
+    void roomLimitsAreOwnedByTheShardThread() throws Exception {
+        RoomShard shard = new RoomShard("room-shard-teste");
+        // Uma ficha a cada 1000 s: só a rajada é aceita durante o teste
+        FloodControl.Policy policy = new FloodControl.Policy(0, 1, 0.001, 2, 4096);
+        FloodControl.Policy replaced = new FloodControl.Policy(0, 1, 0.001, 2, 4096);
+        FutureTask<List<Boolean>> acquired = new FutureTask<>(() -> List.of(
+                shard.tryAcquireRoom("#a", policy),
+                shard.tryAcquireRoom("#a", policy),
+                shard.tryAcquireRoom("#a", policy),
+                shard.tryAcquireRoom("#b", policy),
+                shard.tryAcquireRoom("#a", replaced)));
+        shard.execute(acquired);
+        assertEquals(List.of(true, true, false, true, true), acquired.get(5, TimeUnit.SECONDS));
+        shard.close();
+    }
+}
@@ -0,0 +1,110 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchIndexTest {
+
+    @TempDir
+    File logDir;
+
+    @Test
+    void privateMessagesAreOnlyFoundByParticipantsOfTheCurrentSession() throws Exception {
+        try (MessageStore store = new MessageStore(logDir)) {
+            store.appendPrivate(1_000, "ana", "bob", "segredo antigo");
+            store.appendRoom("#geral", 2_000, "ana", "segredo de todos");
+            store.appendPrivate(3_000, "ana", "bob", "segredo novo");
+
+            try (SearchIndex index = new SearchIndex(store)) {
+                awaitRebuild(index);
+                SearchIndex.Query query = SearchIndex.Query.parse("segredo");
+                // bob conectou entre as duas mensagens privadas
+                assertEquals(List.of("segredo novo", "segredo de todos"), bodies(index.search(query, "bob", 2_500, 10)));
+                assertEquals(List.of("segredo novo", "segredo de todos", "segredo antigo"),
+                        bodies(index.search(query, "ana", 0, 10)));
+                assertEquals(List.of("segredo de todos"), bodies(index.search(query, "caio", 0, 10)));
+                assertEquals(List.of("segredo de todos"), bodies(index.search(query, null, 0, 10)));
+            }
+        }
+    }
+
+    @Test
+    void segmentsAreMergedWithoutLosingMessages() throws Exception {
+        try (MessageStore store = new MessageStore(logDir);
+             SearchIndex index = new SearchIndex(store)) {
+            awaitRebuild(index);
+            SearchIndex.Query query = SearchIndex.Query.parse("deploy");
+            // Cada mensagem indexada sozinha vira um segmento; a cada 8 do mesmo nível, eles são juntados
+            for (int i = 1; i <= 9; i++) {
+                boolean privateMessage = i == 5;
+                long seq = privateMessage
+                        ? store.appendPrivate(i * 1_000L, "ana", "bob", "deploy " + i)
+                        : store.appendRoom("#dev", i * 1_000L, "ana", "deploy " + i);
+                index.add(new MessageRecord(seq, i * 1_000L, "ana", privateMessage ? "bob" : "#dev", "deploy " + i), privateMessage);
+                int indexed = i;
+                await(() -> index.search(query, "ana", 0, 20).size() == indexed);
+            }
+            await(() -> index.segmentCount() == 2);
+
+            List<SearchIndex.Hit> hits = index.search(query, "ana", 0, 20);
+            assertEquals(List.of("deploy 9", "deploy 8", "deploy 7", "deploy 6", "deploy 5",
+                    "deploy 4", "deploy 3", "deploy 2", "deploy 1"), bodies(hits));
+            assertEquals(8, index.search(query, "caio", 0, 20).size());
+            assertEquals(List.of("deploy 9", "deploy 8"), bodies(index.search(query, "ana", 0, 2)));
+        }
+    }
+
+    @Test
+    void messagesRemovedByRetentionLeaveTheIndex() throws Exception {
+        // Segmentos de 4 KB e 16 KB por log: a retenção por tamanho remove quase todas as mensagens
+        try (MessageStore store = new MessageStore(logDir, 4096, 16 * 1024, MessageStore.DEFAULT_MAX_AGE_MILLIS)) {
+            for (int i = 1; i <= 2000; i++) {
+                store.appendRoom("#dev", i, "ana", "deploy " + i);
+            }
+            try (SearchIndex index = new SearchIndex(store)) {
+                awaitRebuild(index);
+                SearchIndex.Query query = SearchIndex.Query.parse("deploy");
+                assertEquals(0, index.prune());
+
+                assertTrue(store.applyRetention() > 0);
+                long firstSeq = store.firstSeq("#dev");
+                assertTrue(firstSeq > 1000, "mantidas a partir de " + firstSeq);
+                assertEquals(firstSeq - 1, index.prune());
+                List<SearchIndex.Hit> hits = index.search(query, "ana", 0, 3000);
+                assertEquals(2001 - firstSeq, hits.size());
+                assertEquals(firstSeq, hits.get(hits.size() - 1).record().seq());
+            }
+        }
+    }
+
+    @Test
+    void roomFiltersAreCaseInsensitiveLikeJoin() {
+        assertEquals("#dev", SearchIndex.Query.parse("#Dev deploy").room());
+        assertEquals("lobby", SearchIndex.Query.parse("#LOBBY deploy").room());
+    }
+
+    private static List<String> bodies(List<SearchIndex.Hit> hits) {
+        return hits.stream().map(hit -> hit.record().body()).toList();
+    }
+
+    private static void awaitRebuild(SearchIndex index) throws InterruptedException {
+        await(() -> !index.isRebuilding());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condição não atingida no prazo");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ServerMetricsTest {
+
+    /**
+     * Conexão sem socket: só o nome e a fila de saída.
+     */
+    private record QueuedConnection(String userName, OutboundQueue queue, WireEncoder encoder) implements ChatConnection {
+        QueuedConnection(String userName, OutboundQueue queue) {
+            this(userName, queue, new WireEncoder());
+        }
+
+        @Override
+        public void send(MessageFrame frame) {
+            queue.offer(frame);
+        }
+
+        @Override
+        public String getUserName() {
+            return userName;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public WireEncoder getEncoder() {
+            return encoder;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return queue;
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        ServerMetrics.trackQueues(List.of());
+    }
+
+    @Test
+    void fullestQueuesAreListedPerUser() {
+        List<ChatConnection> connections = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            QueuedConnection connection = new QueuedConnection("u" + i, new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST));
+            for (int j = 0; j < i % 10; j++) {
+                connection.sendMessage("m" + j);
+            }
+            connections.add(connection);
+        }
+        // Esvaziada depois do pico: fica à frente das filas vazias que nunca encheram
+        QueuedConnection drained = new QueuedConnection("ana", new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST));
+        drained.sendMessage("m");
+        drained.queue().poll();
+        connections.add(drained);
+        ServerMetrics.trackQueues(connections);
+
+        List<ServerMetrics.QueueStats> fullest = ServerMetrics.fullestQueues(5);
+        assertEquals(5, fullest.size());
+        assertEquals(List.of(8, 8, 8, 8, 7), fullest.stream().map(ServerMetrics.QueueStats::depth).toList());
+        assertEquals(1, fullest.get(0).dropped());
+        assertEquals("ana", ServerMetrics.fullestQueues(21).get(18).userName());
+
+        String text = ServerMetrics.render();
+        assertTrue(text.contains("chat_outbound_queue_user_dropped_total{user=\"u9\"} 1"), text);
+    }
+
+    @Test
+    void compressionIsReportedPerConnection() throws IOException {
+        QueuedConnection plain = new QueuedConnection("ana", new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST));
+        QueuedConnection compressed = new QueuedConnection("bia", new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST));
+        MessageFrame notice = MessageFrame.of("SERVER: caio" + RoomManager.ENTERED_ROOM);
+        compressed.encoder().encode(MessageFrame.SWITCH_TO_COMPRESSED, chunk -> { });
+        for (QueuedConnection connection : List.of(plain, compressed)) {
+            connection.encoder().encode(notice, chunk -> { });
+        }
+        ServerMetrics.trackQueues(List.of(plain, compressed));
+
+        List<ServerMetrics.CompressionStats> stats = ServerMetrics.largestCompressedConnections(10);
+        assertEquals(1, stats.size());
+        assertEquals("bia", stats.get(0).userName());
+        assertEquals(notice.binaryBytes().length, stats.get(0).plainBytes());
+        assertEquals(notice.compressedBytes().length, stats.get(0).wireBytes());
+        assertTrue(stats.get(0).ratio() < 1);
+        assertTrue(ServerMetrics.render().contains("chat_compression_user_wire_bytes_total{user=\"bia\"} "
+                + notice.compressedBytes().length));
+    }
+}
@@ -0,0 +1,68 @@
+package org.jorgeroberto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+
+    private static final long TICK_MILLIS = 5;
+
+    @Test
+    void timeoutsFireInDeadlineOrderEvenAfterManyTurns() throws InterruptedException {
+        // 4 posições de 5 ms: uma volta da roda dura 20 ms
+        try (TimerWheel wheel = new TimerWheel("roda-teste", TICK_MILLIS, 4)) {
+            List<String> fired = new CopyOnWriteArrayList<>();
+            long[] elapsed = new long[3];
+            CountDownLatch done = new CountDownLatch(3);
+            long start = System.nanoTime();
+            long[] delays = {90, 12, 45};
+            String[] names = {"c", "a", "b"};
+            for (int i = 0; i < delays.length; i++) {
+                int index = i;
+                wheel.schedule(() -> {
+                    elapsed[index] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    fired.add(names[index]);
+                    done.countDown();
+                }, delays[i], TimeUnit.MILLISECONDS);
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of("a", "b", "c"), fired);
+            for (int i = 0; i < delays.length; i++) {
+                // A precisão é de um tick
+                assertTrue(elapsed[i] >= delays[i] - TICK_MILLIS, names[i] + " venceu em " + elapsed[i] + " ms");
+            }
+        }
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRunAndLeaveTheWheel() throws InterruptedException {
+        try (TimerWheel wheel = new TimerWheel("roda-teste", TICK_MILLIS, 4)) {
+            AtomicBoolean cancelledRan = new AtomicBoolean();
+            // Prazos de uma hora: nenhum relógio lento faz a roda alcançá-los durante o teste
+            wheel.schedule(() -> cancelledRan.set(true), 1, TimeUnit.HOURS).cancel();
+            TimerWheel.Timeout placed = wheel.schedule(() -> cancelledRan.set(true), 1, TimeUnit.HOURS);
+            CountDownLatch transferred = new CountDownLatch(1);
+            wheel.schedule(transferred::countDown, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            // A fila de entrada é transferida em ordem: quando o marcador vence, o prazo já está na roda
+            assertTrue(transferred.await(5, TimeUnit.SECONDS));
+            assertEquals(1, wheel.size());
+
+            // Cancelado depois de já estar na roda: sai ao ser visitado, na volta seguinte
+            placed.cancel();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (wheel.size() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(TICK_MILLIS);
+            }
+            assertEquals(0, wheel.size());
+            assertFalse(cancelledRan.get());
+        }
+    }
+}